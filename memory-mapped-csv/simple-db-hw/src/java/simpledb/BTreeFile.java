@@ -0,0 +1,431 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A B+ tree secondary index on one column of a HeapFile. The index maps each
+ * value of the column to the record ids of the tuples that have it, so
+ * equality and range predicates on the column can be answered by reading only
+ * the tuples that satisfy them, in key order.
+ * <p>
+ * Pages of the index are read and written through the BufferPool like pages
+ * of any other file, so they are locked by the LockManager and written out
+ * with the rest of a transaction. Inserts lock the header page for writing,
+ * which keeps them from running concurrently with other inserts. Entries
+ * are removed from leaves when tuples are deleted, but pages are never merged.
+ * <p>
+ * The index has to be added to the catalog with Catalog.addIndex before it is
+ * used. The rows of a HeapFile built from a CSV move when the
+ * CSV is reloaded, so such a table's index must be built again after a reload.
+ *
+ * @see simpledb.BTreePage
+ */
+public class BTreeFile implements IndexFile {
+
+	private static final int HEADER_PAGE = 0;
+
+	private File file;
+	private HeapFile table;
+	private int keyField;
+	private Type keyType;
+	private int id;
+
+	/**
+	 * Opens the index stored in f, or creates an empty one if f is empty or
+	 * doesn't exist.
+	 *
+	 * @param table the table the index is on
+	 * @param keyField the index of the field of the table the index is on
+	 */
+	public BTreeFile(File f, HeapFile table, int keyField) {
+		this.file = f;
+		this.table = table;
+		this.keyField = keyField;
+		this.keyType = table.getTupleDesc().getFieldType(keyField);
+		this.id = f.getAbsoluteFile().hashCode();
+
+		if (f.length() == 0) {
+			try {
+				BTreePage header = emptyPage(HEADER_PAGE, BTreePage.HEADER);
+				header.setRoot(1);
+				writePage(header);
+				writePage(emptyPage(1, BTreePage.LEAF));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Builds an index on a field of a table from the tuples the table holds
+	 * now, writing its pages straight to f instead of inserting one entry at a
+	 * time. Leaves are filled completely, so the index is as small as it can be.
+	 *
+	 * @param tid the transaction to scan the table as part of
+	 */
+	public static BTreeFile create(File f, HeapFile table, int keyField, TransactionId tid)
+			throws IOException, DbException, TransactionAbortedException {
+		final class Entry {
+			Field key;
+			RecordId rid;
+		}
+
+		List<Entry> entries = new ArrayList<>();
+		DbFileIterator it = table.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			Entry entry = new Entry();
+			entry.key = t.getField(keyField);
+			entry.rid = t.getRecordId();
+			entries.add(entry);
+		}
+		it.close();
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				if (a.key.compare(Predicate.Op.LESS_THAN, b.key)) return -1;
+				if (a.key.compare(Predicate.Op.GREATER_THAN, b.key)) return 1;
+				return 0;
+			}
+		});
+
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.setLength(0);
+		raf.close();
+		BTreeFile index = new BTreeFile(f, table, keyField);
+
+		// write the leaves, then each level of internal pages above them
+		List<Integer> level = new ArrayList<>();
+		List<Field> lowKeys = new ArrayList<>();
+		int pageNumber = 1;
+		int perLeaf = index.emptyPage(pageNumber, BTreePage.LEAF).getMaxLeafEntries();
+		for (int start = 0; start < entries.size() || start == 0; start += perLeaf) {
+			BTreePage leaf = index.emptyPage(pageNumber, BTreePage.LEAF);
+			int end = Math.min(start + perLeaf, entries.size());
+			for (int i = start; i < end; i++) {
+				Entry entry = entries.get(i);
+				leaf.insertEntry(entry.key, entry.rid.getPageId().getPageNumber(), entry.rid.getTupleNumber());
+			}
+			if (end < entries.size()) leaf.setNextLeaf(pageNumber + 1);
+			index.writePage(leaf);
+			level.add(pageNumber);
+			lowKeys.add(end > start ? entries.get(start).key : null);
+			pageNumber++;
+		}
+
+		while (level.size() > 1) {
+			List<Integer> parents = new ArrayList<>();
+			List<Field> parentLowKeys = new ArrayList<>();
+			int perPage = index.emptyPage(pageNumber, BTreePage.INTERNAL).getMaxInternalEntries() + 1;
+			for (int start = 0; start < level.size(); start += perPage) {
+				BTreePage page = index.emptyPage(pageNumber, BTreePage.INTERNAL);
+				int end = Math.min(start + perPage, level.size());
+				page.setFirstChild(level.get(start));
+				for (int i = start + 1; i < end; i++) {
+					page.appendChild(lowKeys.get(i), level.get(i));
+				}
+				index.writePage(page);
+				parents.add(pageNumber);
+				parentLowKeys.add(lowKeys.get(start));
+				pageNumber++;
+			}
+			level = parents;
+			lowKeys = parentLowKeys;
+		}
+
+		BTreePage header = index.emptyPage(HEADER_PAGE, BTreePage.HEADER);
+		header.setRoot(level.get(0));
+		index.writePage(header);
+		return index;
+	}
+
+	private BTreePage emptyPage(int pageNumber, int category) throws IOException {
+		BTreePage page = new BTreePage(new BTreePageId(id, pageNumber), BTreePage.createEmptyPageData());
+		page.init(category, keyType);
+		return page;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** @return the table the index is on */
+	public HeapFile getTable() {
+		return table;
+	}
+
+	/** @return the index of the field of the table the index is on */
+	public int getKeyField() {
+		return keyField;
+	}
+
+	public Type getKeyType() {
+		return keyType;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/** @return the TupleDesc of the table, since scans of the index return its tuples */
+	public TupleDesc getTupleDesc() {
+		return table.getTupleDesc();
+	}
+
+	// see DbFile.java for javadocs
+	public Page readPage(PageId pid) {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				raf.seek((long) pid.getPageNumber() * BufferPool.getPageSize());
+				raf.readFully(data);
+			} finally {
+				raf.close();
+			}
+			return new BTreePage(new BTreePageId(id, pid.getPageNumber()), data);
+		} catch (IOException e) {
+			throw new NoSuchElementException("can't read page " + pid.getPageNumber() + " of " + file);
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public void writePage(Page page) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			raf.write(page.getPageData());
+		} finally {
+			raf.close();
+		}
+	}
+
+	public int numPages() {
+		return (int) (file.length() / BufferPool.getPageSize());
+	}
+
+	/** @return false, since an index is only changed through the BufferPool */
+	public boolean isModified() {
+		return false;
+	}
+
+	private BTreePage getPage(TransactionId tid, int pageNumber, Permissions perm)
+			throws TransactionAbortedException, DbException {
+		return (BTreePage) Database.getBufferPool().getPage(tid, this, new BTreePageId(id, pageNumber), perm);
+	}
+
+	/**
+	 * Adds an empty page to the end of the file and returns it, locked for
+	 * writing, as a page of the given category.
+	 */
+	private BTreePage newPage(TransactionId tid, int category)
+			throws IOException, TransactionAbortedException, DbException {
+		int pageNumber;
+		synchronized (this) {
+			pageNumber = numPages();
+			writePage(emptyPage(pageNumber, BTreePage.EMPTY));
+		}
+		BTreePage page = getPage(tid, pageNumber, Permissions.READ_WRITE);
+		page.init(category, keyType);
+		return page;
+	}
+
+	/**
+	 * Finds the leaf that holds the first entry with a key no less than key,
+	 * or the first leaf if key is null.
+	 */
+	private BTreePage findLeaf(TransactionId tid, Field key, Permissions perm)
+			throws TransactionAbortedException, DbException {
+		BTreePage header = getPage(tid, HEADER_PAGE, Permissions.READ_ONLY);
+		int pageNumber = header.getRoot();
+		while (true) {
+			BTreePage page = getPage(tid, pageNumber, Permissions.READ_ONLY);
+			if (page.isLeaf()) {
+				return perm == Permissions.READ_ONLY ? page : getPage(tid, pageNumber, perm);
+			}
+			pageNumber = page.getChild(key == null ? 0 : page.countLessThan(key));
+		}
+	}
+
+	/**
+	 * Adds an entry for a tuple that was just inserted into the table,
+	 * splitting pages that overflow.
+	 *
+	 * @param t a tuple of the table, with the record id it was inserted at
+	 * @return the pages of the index that were changed
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		RecordId rid = t.getRecordId();
+		ArrayList<Page> dirty = new ArrayList<>();
+
+		BTreePage header = getPage(tid, HEADER_PAGE, Permissions.READ_WRITE);
+		List<BTreePage> path = new ArrayList<>();
+		BTreePage page = getPage(tid, header.getRoot(), Permissions.READ_WRITE);
+		while (!page.isLeaf()) {
+			path.add(page);
+			page = getPage(tid, page.getChild(page.countAtMost(key)), Permissions.READ_WRITE);
+		}
+		page.insertEntry(key, rid.getPageId().getPageNumber(), rid.getTupleNumber());
+		dirty.add(page);
+
+		while (page.isOverfull()) {
+			BTreePage right = newPage(tid, page.getCategory());
+			Field separator = page.moveUpperHalfTo(right);
+			dirty.add(right);
+			int left = page.getId().getPageNumber();
+			if (path.isEmpty()) {
+				BTreePage root = newPage(tid, BTreePage.INTERNAL);
+				root.setChildren(left, separator, right.getId().getPageNumber());
+				header.setRoot(root.getId().getPageNumber());
+				dirty.add(root);
+				dirty.add(header);
+				break;
+			}
+			page = path.remove(path.size() - 1);
+			page.insertChild(left, separator, right.getId().getPageNumber());
+			dirty.add(page);
+		}
+		return dirty;
+	}
+
+	/**
+	 * Removes the entry for a tuple that is being deleted from the table.
+	 *
+	 * @return the pages of the index that were changed
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		RecordId rid = t.getRecordId();
+
+		// entries with the same key can run across several leaves
+		BTreePage leaf = findLeaf(tid, key, Permissions.READ_WRITE);
+		int i = leaf.countLessThan(key);
+		while (true) {
+			for (; i < leaf.getNumEntries(); i++) {
+				if (!leaf.getKey(i).equals(key)) {
+					throw new DbException("tuple isn't in the index");
+				}
+				if (leaf.getRidPage(i) == rid.getPageId().getPageNumber() && leaf.getRidSlot(i) == rid.getTupleNumber()) {
+					leaf.deleteEntry(i);
+					ArrayList<Page> dirty = new ArrayList<>();
+					dirty.add(leaf);
+					return dirty;
+				}
+			}
+			if (leaf.getNextLeaf() < 0) throw new DbException("tuple isn't in the index");
+			leaf = getPage(tid, leaf.getNextLeaf(), Permissions.READ_WRITE);
+			i = 0;
+		}
+	}
+
+	/**
+	 * @return the tuples of the table in order of the key
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new IndexIterator(tid, null, null);
+	}
+
+	/**
+	 * @return true for equality and range comparisons
+	 */
+	public boolean supports(Predicate.Op op) {
+		switch (op) {
+		case EQUALS:
+		case GREATER_THAN:
+		case GREATER_THAN_OR_EQ:
+		case LESS_THAN:
+		case LESS_THAN_OR_EQ:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the tuples of the table whose key satisfies "key op operand", in
+	 * order of the key. Only the leaves that hold matching entries, and the
+	 * heap pages of the matching tuples, are read.
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, Predicate.Op op, Field operand) {
+		if (!supports(op)) throw new IllegalArgumentException("can't scan an index for " + op);
+		return new IndexIterator(tid, op, operand);
+	}
+
+	private class IndexIterator extends AbstractDbFileIterator {
+
+		TransactionId transactionId;
+		Predicate.Op op;
+		Field operand;
+
+		BTreePage leaf;
+		int position;
+
+		IndexIterator(TransactionId tid, Predicate.Op op, Field operand) {
+			this.transactionId = tid;
+			this.op = op;
+			this.operand = operand;
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			rewind();
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			// a scan for keys below the operand starts at the first leaf
+			boolean fromStart = op == null || op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ;
+			leaf = findLeaf(transactionId, fromStart ? null : operand, Permissions.READ_ONLY);
+			position = fromStart ? 0 : leaf.countLessThan(operand);
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			leaf = null;
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			while (leaf != null) {
+				if (position == leaf.getNumEntries()) {
+					if (leaf.getNextLeaf() < 0) {
+						leaf = null;
+						return null;
+					}
+					leaf = getPage(transactionId, leaf.getNextLeaf(), Permissions.READ_ONLY);
+					position = 0;
+					continue;
+				}
+
+				int i = position++;
+				if (op != null && !leaf.getKey(i).compare(op, operand)) {
+					// past the matching keys, except for keys equal to the operand of a >
+					if (op == Predicate.Op.GREATER_THAN) continue;
+					leaf = null;
+					return null;
+				}
+
+				HeapPageId pid = new HeapPageId(table.getId(), leaf.getRidPage(i));
+				HeapPage page = (HeapPage) Database.getBufferPool()
+						.getPage(transactionId, table, pid, Permissions.READ_ONLY);
+				Tuple t = page.getTuple(leaf.getRidSlot(i));
+				if (t != null) return t;
+			}
+			return null;
+		}
+	}
+
+}
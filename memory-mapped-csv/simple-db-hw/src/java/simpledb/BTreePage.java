@@ -0,0 +1,360 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * A page of a BTreeFile. Page 0 of the file is a header page that holds the
+ * page number of the root; every other page is an internal page or a leaf.
+ * <p>
+ * A leaf holds sorted (key, record id) entries and the page number of the
+ * next leaf, so range scans can walk the leaves in key order. An internal page
+ * holds n keys and n + 1 children; every key under child i is no greater than
+ * key i, and every key under child i + 1 is no less. Keys may repeat, since
+ * the index is on a column that isn't unique.
+ * <p>
+ * Each page is laid out as a category byte, the type of the keys, the number
+ * of entries, and the next leaf (or, for the header, the root), followed by
+ * the entries.
+ */
+public class BTreePage implements Page {
+
+	public static final int EMPTY = 0;
+	public static final int HEADER = 1;
+	public static final int INTERNAL = 2;
+	public static final int LEAF = 3;
+
+	private static final int PAGE_HEADER_SIZE = 1 + 1 + 4 + 4;
+
+	private BTreePageId pid;
+	private Type keyType;
+	private int category;
+	private int numEntries;
+	// the next leaf, or -1 after the last; for the header page, the root
+	private int next;
+
+	// room for one entry more than fits, so that a page can be split after an insert
+	private Field[] keys;
+	private int[] ridPages;
+	private int[] ridSlots;
+	private int[] children;
+
+	private TransactionId lastTransaction;
+	private boolean isDirty;
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	public BTreePage(BTreePageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.isDirty = false;
+
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		try {
+			category = dis.readByte();
+			keyType = Type.values()[dis.readByte()];
+			numEntries = dis.readInt();
+			next = dis.readInt();
+			allocate();
+			if (category == LEAF) {
+				for (int i = 0; i < numEntries; i++) {
+					keys[i] = keyType.parse(dis);
+					ridPages[i] = dis.readInt();
+					ridSlots[i] = dis.readInt();
+				}
+			} else if (category == INTERNAL) {
+				children[0] = dis.readInt();
+				for (int i = 0; i < numEntries; i++) {
+					keys[i] = keyType.parse(dis);
+					children[i + 1] = dis.readInt();
+				}
+			}
+		} catch (ParseException e) {
+			throw new IOException(e);
+		} finally {
+			dis.close();
+		}
+
+		setBeforeImage();
+	}
+
+	private void allocate() {
+		int capacity = (category == INTERNAL ? getMaxInternalEntries() : getMaxLeafEntries()) + 1;
+		keys = new Field[capacity];
+		ridPages = new int[capacity];
+		ridSlots = new int[capacity];
+		children = new int[capacity + 1];
+	}
+
+	/** @return the number of entries that fit on a leaf */
+	public int getMaxLeafEntries() {
+		return (BufferPool.getPageSize() - PAGE_HEADER_SIZE) / (keyType.getLen() + 8);
+	}
+
+	/** @return the number of keys that fit on an internal page */
+	public int getMaxInternalEntries() {
+		return (BufferPool.getPageSize() - PAGE_HEADER_SIZE - 4) / (keyType.getLen() + 4);
+	}
+
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()];
+	}
+
+	/**
+	 * Turns an empty page into a page of the given category with no entries.
+	 */
+	void init(int category, Type keyType) {
+		this.category = category;
+		this.keyType = keyType;
+		this.numEntries = 0;
+		this.next = -1;
+		allocate();
+	}
+
+	@Override
+	public BTreePageId getId() {
+		return pid;
+	}
+
+	public int getCategory() {
+		return category;
+	}
+
+	public boolean isLeaf() {
+		return category == LEAF;
+	}
+
+	public int getNumEntries() {
+		return numEntries;
+	}
+
+	/** @return whether the page holds more entries than fit, and must be split */
+	public boolean isOverfull() {
+		return numEntries > (category == INTERNAL ? getMaxInternalEntries() : getMaxLeafEntries());
+	}
+
+	public Field getKey(int i) {
+		return keys[i];
+	}
+
+	public int getRidPage(int i) {
+		return ridPages[i];
+	}
+
+	public int getRidSlot(int i) {
+		return ridSlots[i];
+	}
+
+	public int getChild(int i) {
+		return children[i];
+	}
+
+	/** @return the next leaf, or -1 if this is the last one */
+	public int getNextLeaf() {
+		return next;
+	}
+
+	/** @return the page number of the root; only for the header page */
+	public int getRoot() {
+		return next;
+	}
+
+	void setRoot(int root) {
+		next = root;
+	}
+
+	void setNextLeaf(int leaf) {
+		next = leaf;
+	}
+
+	/** @return the number of keys that are less than key */
+	public int countLessThan(Field key) {
+		int low = 0;
+		int high = numEntries;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (keys[mid].compare(Predicate.Op.LESS_THAN, key)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/** @return the number of keys that are no greater than key */
+	public int countAtMost(Field key) {
+		int low = 0;
+		int high = numEntries;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (keys[mid].compare(Predicate.Op.LESS_THAN_OR_EQ, key)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Adds an entry to a leaf after any entries with the same key. The leaf
+	 * may be left overfull.
+	 */
+	void insertEntry(Field key, int ridPage, int ridSlot) {
+		int i = countAtMost(key);
+		System.arraycopy(keys, i, keys, i + 1, numEntries - i);
+		System.arraycopy(ridPages, i, ridPages, i + 1, numEntries - i);
+		System.arraycopy(ridSlots, i, ridSlots, i + 1, numEntries - i);
+		keys[i] = key;
+		ridPages[i] = ridPage;
+		ridSlots[i] = ridSlot;
+		numEntries++;
+	}
+
+	/** Removes entry i from a leaf. */
+	void deleteEntry(int i) {
+		System.arraycopy(keys, i + 1, keys, i, numEntries - i - 1);
+		System.arraycopy(ridPages, i + 1, ridPages, i, numEntries - i - 1);
+		System.arraycopy(ridSlots, i + 1, ridSlots, i, numEntries - i - 1);
+		numEntries--;
+		keys[numEntries] = null;
+	}
+
+	/**
+	 * Adds a key and the child to its right to an internal page, just after
+	 * an existing child. The page may be left overfull.
+	 */
+	void insertChild(int leftChild, Field key, int rightChild) {
+		int i = 0;
+		while (children[i] != leftChild) i++;
+		System.arraycopy(keys, i, keys, i + 1, numEntries - i);
+		System.arraycopy(children, i + 1, children, i + 2, numEntries - i);
+		keys[i] = key;
+		children[i + 1] = rightChild;
+		numEntries++;
+	}
+
+	/** Gives an empty internal page its first child. */
+	void setFirstChild(int child) {
+		children[0] = child;
+		numEntries = 0;
+	}
+
+	/** Adds a key and a child after the last child of an internal page. */
+	void appendChild(Field key, int child) {
+		keys[numEntries] = key;
+		children[numEntries + 1] = child;
+		numEntries++;
+	}
+
+	/** Makes an empty internal page the parent of two children. */
+	void setChildren(int leftChild, Field key, int rightChild) {
+		children[0] = leftChild;
+		keys[0] = key;
+		children[1] = rightChild;
+		numEntries = 1;
+	}
+
+	/**
+	 * Moves the upper half of this page's entries to an empty page of the
+	 * same category that will sit to its right.
+	 *
+	 * @return the key that separates the two pages in their parent
+	 */
+	Field moveUpperHalfTo(BTreePage right) {
+		int mid = numEntries / 2;
+		Field separator;
+		if (category == LEAF) {
+			int moved = numEntries - mid;
+			System.arraycopy(keys, mid, right.keys, 0, moved);
+			System.arraycopy(ridPages, mid, right.ridPages, 0, moved);
+			System.arraycopy(ridSlots, mid, right.ridSlots, 0, moved);
+			right.numEntries = moved;
+			right.next = next;
+			next = right.getId().getPageNumber();
+			separator = keys[mid];
+		} else {
+			// the middle key moves up to the parent rather than to either page
+			int moved = numEntries - mid - 1;
+			System.arraycopy(keys, mid + 1, right.keys, 0, moved);
+			System.arraycopy(children, mid + 1, right.children, 0, moved + 1);
+			right.numEntries = moved;
+			separator = keys[mid];
+		}
+		for (int i = mid; i < numEntries; i++) {
+			keys[i] = null;
+		}
+		numEntries = mid;
+		return separator;
+	}
+
+	@Override
+	public TransactionId isDirty() {
+		if (isDirty) return lastTransaction;
+		return null;
+	}
+
+	@Override
+	public void markDirty(boolean dirty, TransactionId tid) {
+		isDirty = dirty;
+		lastTransaction = tid;
+	}
+
+	@Override
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeByte(category);
+			dos.writeByte(keyType.ordinal());
+			dos.writeInt(numEntries);
+			dos.writeInt(next);
+			if (category == LEAF) {
+				for (int i = 0; i < numEntries; i++) {
+					keys[i].serialize(dos);
+					dos.writeInt(ridPages[i]);
+					dos.writeInt(ridSlots[i]);
+				}
+			} else if (category == INTERNAL) {
+				dos.writeInt(children[0]);
+				for (int i = 0; i < numEntries; i++) {
+					keys[i].serialize(dos);
+					dos.writeInt(children[i + 1]);
+				}
+			}
+			dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	@Override
+	public BTreePage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new BTreePage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	@Override
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+}
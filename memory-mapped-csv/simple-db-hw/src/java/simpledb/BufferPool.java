@@ -2,12 +2,17 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -34,8 +39,12 @@ public class BufferPool {
     
     private int maxNumPages;
     private Map<PageId, Page> pages;
+    // the file each cached page was read from, and is written back or re-read
+    // through, so pages of a table dropped from the Catalog can still be
+    private Map<PageId, DbFile> files;
     private Queue<PageId> pageOrder;
     private LockManager lockManager;
+    private ReadAhead readAhead;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -45,8 +54,10 @@ public class BufferPool {
     public BufferPool(int numPages) {
         maxNumPages = numPages;
         pages = new ConcurrentHashMap<>();
+        files = new ConcurrentHashMap<>();
         pageOrder = new LinkedList<>();
         lockManager = new LockManager();
+        readAhead = new ReadAhead(this, Math.min(ReadAhead.DEFAULT_WINDOW, numPages / 4));
     }
     
     public static int getPageSize() {
@@ -80,6 +91,18 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+    	return getPage(tid, Database.getCatalog().getDatabaseFile(pid.getTableId()), pid, perm);
+    }
+
+    /**
+     * Retrieves a page like getPage(tid, pid, perm), reading it from the
+     * given file if it isn't in the pool. Scans and other operators look
+     * their file up in the Catalog once, and pass it for every page.
+     *
+     * @param file the file the page belongs to
+     */
+    public Page getPage(TransactionId tid, DbFile file, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
     	
     	boolean success = false;
     	if (Permissions.READ_ONLY.equals(perm)) {
@@ -89,7 +112,8 @@ public class BufferPool {
     	}
     	
     	if (success) {
-    		boolean isModified = Database.getCatalog().getDatabaseFile(pid.getTableId()).isModified();
+    		// an in-memory version check, not a stat of the file
+    		boolean isModified = file.isModified();
 //    		System.out.println("isModified: " + isModified);
     		if (isModified) {
     			discardPage(pid);
@@ -97,13 +121,26 @@ public class BufferPool {
     		
 //    		System.out.println("Pages in buffer: " + pages.size());
     		
-    		if (pages.containsKey(pid)) return pages.get(pid);
+    		DbFile table = file.getTableFile();
+    		Page cached = pages.get(pid);
+    		if (cached != null && files.get(pid) != table && cached.isDirty() == null) {
+    			// read from a dropped table that had the same id
+    			discardPage(pid);
+    			cached = null;
+    		}
+    		if (cached != null) return cached;
         	
+    		// start reading the pages after this one if a scan is going through the table
+    		readAhead.missed(file, pid);
         	if (pages.size() >= maxNumPages) {
         		evictPage();
         	}
         	
-        	Page newPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        	Page newPage = readAhead.take(pid);
+        	if (newPage == null) {
+        		newPage = file.readPage(pid);
+        	}
+        	files.put(pid, table);
         	pages.put(pid, newPage);
         	pageOrder.add(pid);
 
@@ -113,6 +150,46 @@ public class BufferPool {
     	return null;
     }
 
+    /** @return whether a page is in the pool, without locking it */
+    boolean isCached(PageId pid) {
+        return pages.containsKey(pid);
+    }
+
+    /**
+     * Takes the lock getPage would take on a page, without reading the page,
+     * for scans that read a file themselves rather than through the pool.
+     * The lock is released when the transaction completes.
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.acquireLock(pid, tid, Permissions.READ_WRITE.equals(perm));
+    }
+
+    /**
+     * Takes a shared lock on a whole table, for scans that read its file
+     * themselves rather than through the pool. It covers every page of the
+     * table with one lock, and makes transactions writing to any of them wait
+     * the way page locks would. The lock is released when the transaction
+     * completes.
+     */
+    public void lockTable(TransactionId tid, int tableId)
+        throws TransactionAbortedException {
+        lockManager.acquireTableLock(tableId, tid);
+    }
+
+    /**
+     * @return whether the pool holds pages of a table that a transaction
+     *   wrote and hasn't committed yet, which scans bypassing the pool
+     *   wouldn't see
+     */
+    public boolean holdsDirtyPages(TransactionId tid, int tableId) {
+        for (PageId pid : lockManager.getPageIds(tid, true)) {
+            Page page = pages.get(pid);
+            if (pid.getTableId() == tableId && page != null && tid.equals(page.isDirty())) return true;
+        }
+        return false;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -163,22 +240,31 @@ public class BufferPool {
     	List<PageId> readPids = lockManager.getPageIds(tid, false);
     	List<PageId> writePids = lockManager.getPageIds(tid, true);
     	
-    	if (commit) {
-    		for (PageId pid : writePids) {
-    			if (pages.containsKey(pid)) {
-        			flushPage(pid);
-        			pages.get(pid).markDirty(false, tid);
-        		}
-    		}
-    	} else {
-    		for (PageId pid : writePids) {
-    			pages.put(pid, Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
-    			pages.get(pid).markDirty(false, tid);
+    	try {
+    		if (commit) {
+    			flushSorted(writePids);
+    			for (PageId pid : writePids) {
+    				if (pages.containsKey(pid)) {
+    					pages.get(pid).markDirty(false, tid);
+    				}
+    			}
+    		} else {
+    			Set<DbFile> written = new HashSet<>();
+    			for (PageId pid : writePids) {
+    				DbFile file = files.get(pid);
+    				if (file != null) written.add(file);
+    				// NO STEAL, so the page on disk is still as it was
+    				discardPage(pid);
+    			}
+    			for (DbFile file : written) {
+    				file.abort(tid);
+    			}
     		}
+    	} finally {
+    		lockManager.release(readPids, tid);
+    		lockManager.release(writePids, tid);
+    		lockManager.releaseTables(tid);
     	}
-    	
-    	lockManager.release(readPids, tid);
-    	lockManager.release(writePids, tid);
     }
 
     /**
@@ -198,14 +284,10 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> dirtyPages = file.insertTuple(tid, t);
-        
-        for (Page page : dirtyPages) {
-        	page.markDirty(true, tid);
-        	pages.put(page.getId(), page);
-        	pageOrder.remove(page.getId());
-        	pageOrder.add(page.getId());
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        cacheDirtyPages(tid, file, file.insertTuple(tid, t));
+        for (IndexFile index : Database.getCatalog().getIndexes(tableId)) {
+        	cacheDirtyPages(tid, index, index.insertTuple(tid, t));
         }
     }
 
@@ -224,11 +306,26 @@ public class BufferPool {
      */
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-    	HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        List<Page> dirtyPages = file.deleteTuple(tid, t);
-        
+    	int tableId = t.getRecordId().getPageId().getTableId();
+    	DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        cacheDirtyPages(tid, file, file.deleteTuple(tid, t));
+        for (IndexFile index : Database.getCatalog().getIndexes(tableId)) {
+        	cacheDirtyPages(tid, index, index.deleteTuple(tid, t));
+        }
+    }
+
+    /**
+     * Marks pages an insert or delete changed as dirty, and puts them in the
+     * pool in place of any older versions.
+     *
+     * @param file the file that changed the pages; a page it read through
+     *   the pool keeps the file it was read from
+     */
+    private void cacheDirtyPages(TransactionId tid, DbFile file, List<Page> dirtyPages) {
         for (Page page : dirtyPages) {
         	page.markDirty(true, tid);
+        	readAhead.forget(page.getId());
+        	if (!files.containsKey(page.getId())) files.put(page.getId(), file);
         	pages.put(page.getId(), page);
         	pageOrder.remove(page.getId());
         	pageOrder.add(page.getId());
@@ -241,9 +338,7 @@ public class BufferPool {
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        for (PageId pageId : pages.keySet()) {
-        	flushPage(pageId);
-        }
+        flushSorted(pages.keySet());
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -255,17 +350,31 @@ public class BufferPool {
         are removed from the cache so they can be reused safely
     */
     public synchronized void discardPage(PageId pid) {
+        readAhead.forget(pid);
         pages.remove(pid);
+        files.remove(pid);
         pageOrder.remove(pid);
     }
 
+    /**
+     * Removes the pages of a table from the buffer pool, once it is dropped.
+     * Pages a running transaction dirtied are left for it to commit or abort.
+     */
+    public synchronized void discardPages(int tableid) {
+        for (PageId pid : new ArrayList<>(pages.keySet())) {
+            if (pid.getTableId() != tableid) continue;
+            Page page = pages.get(pid);
+            if (page == null || page.isDirty() == null) discardPage(pid);
+        }
+        readAhead.forget(tableid);
+    }
+
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
-    	HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
-    	file.writePage(pages.get(pid));
+    	files.get(pid).writePage(pages.get(pid));
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -274,15 +383,57 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
     	
-    	List<PageId> pids = lockManager.getPageIds(tid, true);
-    	
+    	flushSorted(lockManager.getPageIds(tid, true));
+    }
+
+    /**
+     * Writes the dirty pages among pids in table and page number order, with
+     * each run of consecutive pages of a table written in one call if its
+     * file supports it.
+     */
+    private synchronized void flushSorted(Collection<PageId> pids) throws IOException {
+    	List<Page> dirty = new ArrayList<>();
     	for (PageId pid : pids) {
-    		if (pages.containsKey(pid)) {
-    			flushPage(pid);
+    		Page page = pages.get(pid);
+    		if (page != null && page.isDirty() != null) dirty.add(page);
+    	}
+    	Collections.sort(dirty, new Comparator<Page>() {
+			@Override
+			public int compare(Page a, Page b) {
+				int byTable = Integer.compare(a.getId().getTableId(), b.getId().getTableId());
+				if (byTable != 0) return byTable;
+				return Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+			}
+		});
+    	
+    	List<Page> run = new ArrayList<>();
+    	for (Page page : dirty) {
+    		if (!run.isEmpty()) {
+    			PageId last = run.get(run.size() - 1).getId();
+    			if (last.getTableId() != page.getId().getTableId()
+    					|| last.getPageNumber() + 1 != page.getId().getPageNumber()
+    					|| files.get(last) != files.get(page.getId())) {
+    				writeRun(run);
+    				run = new ArrayList<>();
+    			}
     		}
+    		run.add(page);
     	}
+    	writeRun(run);
     }
-
+    
+    private void writeRun(List<Page> run) throws IOException {
+    	if (run.isEmpty()) return;
+    	DbFile file = files.get(run.get(0).getId());
+    	if (run.size() > 1 && file instanceof MultiPageFile) {
+    		((MultiPageFile) file).writePages(run);
+    	} else {
+    		for (Page page : run) {
+    			file.writePage(page);
+    		}
+    	}
+    }
+    
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
@@ -5,7 +5,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -13,12 +13,19 @@ import java.util.concurrent.ConcurrentHashMap;
  * For now, this is a stub catalog that must be populated with tables by a
  * user program before it can be used -- eventually, this should be converted
  * to a catalog that reads a catalog table from disk.
+ * <p>
+ * Lookups never lock: the tables and indexes are kept in an immutable
+ * snapshot that a lookup reads with a single volatile read. Adding or
+ * removing a table copies the snapshot, changes the copy and swaps it in, so
+ * tables can be added and dropped while queries run. Operators resolve the
+ * DbFile of a table once, when they are created, and a query keeps reading
+ * a table that is dropped while it runs.
  * 
  * @Threadsafe
  */
 public class Catalog {
 	
-	private class Table {
+	private static class Table {
 		public DbFile dbFile;
 		public String name;
 		public String pkeyField;
@@ -29,17 +36,68 @@ public class Catalog {
 			pkeyField = p;
 		}
 	}
+
+	/**
+	 * The tables and indexes of the catalog at one point in time. Once a
+	 * snapshot is published it is never changed; changes are made to a copy.
+	 */
+	private static class Snapshot {
+		final Map<Integer, Table> tables;
+		final Map<String, Integer> nameToId;
+		final Map<Integer, IndexFile> indexes;
+		// lists are replaced rather than added to, so copies can share them
+		final Map<Integer, List<IndexFile>> tableIndexes;
+		// files tables read some of their pages through, by their own ids and
+		// by the id of the table
+		final Map<Integer, DbFile> childFiles;
+		final Map<Integer, List<Integer>> tableChildren;
+
+		Snapshot() {
+			tables = new HashMap<>();
+			nameToId = new HashMap<>();
+			indexes = new HashMap<>();
+			tableIndexes = new HashMap<>();
+			childFiles = new HashMap<>();
+			tableChildren = new HashMap<>();
+		}
+
+		Snapshot(Snapshot other) {
+			tables = new HashMap<>(other.tables);
+			nameToId = new HashMap<>(other.nameToId);
+			indexes = new HashMap<>(other.indexes);
+			tableIndexes = new HashMap<>(other.tableIndexes);
+			childFiles = new HashMap<>(other.childFiles);
+			tableChildren = new HashMap<>(other.tableChildren);
+		}
+
+		/** Registers the child files of a table, replacing those it had. */
+		void putChildren(DbFile file) {
+			removeChildren(file.getId());
+			List<Integer> ids = new ArrayList<>();
+			for (DbFile child : file.getChildFiles()) {
+				childFiles.put(child.getId(), child);
+				ids.add(child.getId());
+			}
+			if (!ids.isEmpty()) tableChildren.put(file.getId(), ids);
+		}
+
+		void removeChildren(int tableid) {
+			List<Integer> ids = tableChildren.remove(tableid);
+			if (ids == null) return;
+			for (int id : ids) childFiles.remove(id);
+		}
+	}
 	
-	Map<Integer, Table> tables;
-	Map<String, Integer> nameToId;
+	private volatile Snapshot snapshot;
+	private List<TableProvider> providers;
 
     /**
      * Constructor.
      * Creates a new, empty catalog.
      */
     public Catalog() {
-        tables = new HashMap<>();
-        nameToId = new HashMap<>();
+        snapshot = new Snapshot();
+        providers = new CopyOnWriteArrayList<>();
     }
 
     /**
@@ -51,9 +109,23 @@ public class Catalog {
      * conflict exists, use the last table to be added as the table for a given name.
      * @param pkeyField the name of the primary key field
      */
-    public void addTable(DbFile file, String name, String pkeyField) {
-        tables.put(file.getId(), new Table(file, name, pkeyField));
-        nameToId.put(name, file.getId());
+    public synchronized void addTable(DbFile file, String name, String pkeyField) {
+    	Snapshot next = new Snapshot(snapshot);
+        next.tables.put(file.getId(), new Table(file, name, pkeyField));
+        next.nameToId.put(name, file.getId());
+        next.putChildren(file);
+        snapshot = next;
+    }
+
+    /** Adds tables with a single copy of the catalog. */
+    private synchronized void addTables(List<Table> added) {
+    	Snapshot next = new Snapshot(snapshot);
+    	for (Table table : added) {
+    		next.tables.put(table.dbFile.getId(), table);
+    		next.nameToId.put(table.name, table.dbFile.getId());
+    		next.putChildren(table.dbFile);
+    	}
+    	snapshot = next;
     }
 
     public void addTable(DbFile file, String name) {
@@ -72,14 +144,80 @@ public class Catalog {
     }
 
     /**
-     * Return the id of the table with a specified name,
+     * Adds a source of tables that are opened when first looked up by name.
+     * Tables already in the catalog take precedence over the provider's.
+     */
+    public void addProvider(TableProvider provider) {
+    	providers.add(provider);
+    }
+
+    /**
+     * Stops opening tables through a provider. Tables it already opened stay
+     * in the catalog.
+     */
+    public void removeProvider(TableProvider provider) {
+    	providers.remove(provider);
+    }
+
+    /**
+     * Removes a table from the catalog, along with the indexes on it. Its
+     * name is left to any table added under it since. Queries that already
+     * resolved the table's DbFile can keep reading it, but its pages are
+     * dropped from the BufferPool and the file is closed, so a table added
+     * later under the same id reads its own pages.
+     */
+    public void removeTable(int tableid) {
+    	Table table;
+    	List<IndexFile> removed;
+    	synchronized (this) {
+    		if (!snapshot.tables.containsKey(tableid)) return;
+    		Snapshot next = new Snapshot(snapshot);
+    		table = next.tables.remove(tableid);
+    		if (Integer.valueOf(tableid).equals(next.nameToId.get(table.name))) next.nameToId.remove(table.name);
+    		removed = next.tableIndexes.remove(tableid);
+    		if (removed != null) {
+    			for (IndexFile index : removed) next.indexes.remove(index.getId());
+    		}
+    		next.removeChildren(tableid);
+    		snapshot = next;
+    	}
+
+    	Database.getBufferPool().discardPages(tableid);
+    	table.dbFile.close();
+    	if (removed != null) {
+    		for (IndexFile index : removed) {
+    			Database.getBufferPool().discardPages(index.getId());
+    			index.close();
+    		}
+    	}
+    }
+
+    /**
+     * Return the id of the table with a specified name, opening it through
+     * a TableProvider if it isn't in the catalog yet.
      * @throws NoSuchElementException if the table doesn't exist
      */
     public int getTableId(String name) throws NoSuchElementException {
-    	if (name == null || !nameToId.containsKey(name)) {
-    		throw new NoSuchElementException();
+    	if (name == null) throw new NoSuchElementException();
+    	Integer id = snapshot.nameToId.get(name);
+    	if (id != null) return id;
+    	return openTable(name);
+    }
+
+    /**
+     * Opens a table through the providers, unless another thread just did.
+     */
+    private synchronized int openTable(String name) throws NoSuchElementException {
+    	Integer id = snapshot.nameToId.get(name);
+    	if (id != null) return id;
+    	for (TableProvider provider : providers) {
+    		DbFile file = provider.openTable(name);
+    		if (file != null) {
+    			addTable(file, name, provider.getPrimaryKey(name));
+    			return file.getId();
+    		}
     	}
-        return nameToId.get(name);
+    	throw new NoSuchElementException();
     }
 
     /**
@@ -89,9 +227,10 @@ public class Catalog {
      * @throws NoSuchElementException if the table doesn't exist
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
-    	if (!tables.containsKey(tableid)) throw new NoSuchElementException();
+    	Table table = snapshot.tables.get(tableid);
+    	if (table == null) throw new NoSuchElementException();
     	
-        return tables.get(tableid).dbFile.getTupleDesc();
+        return table.dbFile.getTupleDesc();
     }
 
     /**
@@ -99,36 +238,102 @@ public class Catalog {
      * specified table.
      * @param tableid The id of the table, as specified by the DbFile.getId()
      *     function passed to addTable
+     * @throws NoSuchElementException if the table doesn't exist
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
-        return tables.get(tableid).dbFile;
+    	Snapshot current = snapshot;
+    	Table table = current.tables.get(tableid);
+    	if (table != null) return table.dbFile;
+    	IndexFile index = current.indexes.get(tableid);
+    	if (index != null) return index;
+    	DbFile child = current.childFiles.get(tableid);
+    	if (child != null) return child;
+    	throw new NoSuchElementException();
+    }
+
+    /**
+     * Registers the child files a table has now (see DbFile.getChildFiles),
+     * replacing the ones it had. Does nothing if the file isn't a table in
+     * the catalog.
+     */
+    public synchronized void updateChildFiles(DbFile file) {
+    	Table table = snapshot.tables.get(file.getId());
+    	if (table == null || table.dbFile != file) return;
+    	Snapshot next = new Snapshot(snapshot);
+    	next.putChildren(file);
+    	snapshot = next;
+    }
+
+    /**
+     * Adds an index on one of the tables in the catalog. The index's pages
+     * can then be read through the BufferPool, and it is kept up to date as
+     * tuples are inserted into and deleted from the table.
+     */
+    public synchronized void addIndex(IndexFile index) {
+    	Snapshot next = new Snapshot(snapshot);
+    	next.indexes.put(index.getId(), index);
+    	int tableid = index.getTable().getId();
+    	List<IndexFile> onTable = new ArrayList<IndexFile>(getIndexes(tableid));
+    	onTable.add(index);
+    	next.tableIndexes.put(tableid, Collections.unmodifiableList(onTable));
+    	snapshot = next;
+    }
+
+    /**
+     * @return the indexes on the specified table, which may be none
+     */
+    public List<IndexFile> getIndexes(int tableid) {
+    	List<IndexFile> indexes = snapshot.tableIndexes.get(tableid);
+    	if (indexes == null) return Collections.emptyList();
+    	return indexes;
+    }
+
+    /**
+     * @return an index on the specified field of the table that can answer
+     *   predicates with op, or null if there is none; a hash index is
+     *   preferred for equality
+     */
+    public IndexFile getIndex(int tableid, int field, Predicate.Op op) {
+    	IndexFile found = null;
+    	for (IndexFile index : getIndexes(tableid)) {
+    		if (index.getKeyField() != field || !index.supports(op)) continue;
+    		if (found == null || index instanceof HashIndexFile) found = index;
+    	}
+    	return found;
     }
 
     public String getPrimaryKey(int tableid) {
-        return tables.get(tableid).pkeyField;
+        return snapshot.tables.get(tableid).pkeyField;
     }
 
+    /**
+     * @return the ids of the tables in the catalog as it is now; tables added
+     *   or removed later don't change what the iterator returns
+     */
     public Iterator<Integer> tableIdIterator() {
-        return tables.keySet().iterator();
+        return Collections.unmodifiableSet(snapshot.tables.keySet()).iterator();
     }
 
     public String getTableName(int id) {
-        return tables.get(id).name;
+        return snapshot.tables.get(id).name;
     }
     
     /** Delete all tables from the catalog */
-    public void clear() {
-        nameToId = new HashMap<>();
-        tables = new HashMap<>();
+    public synchronized void clear() {
+        snapshot = new Snapshot();
+        providers.clear();
     }
     
     /**
-     * Reads the schema from a file and creates the appropriate tables in the database.
+     * Reads the schema from a file and adds the tables it lists to the database.
+     * The tables are all added at once, and a table's .dat file isn't opened
+     * until the table is read.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
         String line = "";
-        String baseFolder=new File(new File(catalogFile).getAbsolutePath()).getParent();
+        String baseFolder = new File(new File(catalogFile).getAbsolutePath()).getParent();
+        List<Table> loaded = new ArrayList<Table>();
         try {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
@@ -165,9 +370,10 @@ public class Catalog {
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
-                addTable(tabHf,name,primaryKey);
+                loaded.add(new Table(tabHf, name, primaryKey));
                 System.out.println("Added table : " + name + " with schema " + t);
             }
+            addTables(loaded);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
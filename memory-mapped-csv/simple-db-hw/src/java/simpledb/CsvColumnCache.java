@@ -0,0 +1,363 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * On-disk cache of the parsed rows of a CSV backed table, kept next to the
+ * CSV (as <tt>file.cols</tt>) so that a table doesn't have to parse its CSV
+ * again after a restart.
+ * <p>
+ * The cache holds a length-prefixed block per page, in page order, and only
+ * ever holds full pages, which can't gain rows when the CSV is appended to.
+ * Pages are offered to the cache once all of their columns are decoded (see
+ * CsvPage), so tables only read by scans that project some of their columns
+ * don't fill it.
+ * A block starts with the offsets of the page's bytes in the CSV and their
+ * checksum, the same checksum CsvPageIndex keeps of every complete page.
+ * After that the rows are stored column by column: an int column is an array
+ * of ints, and a string column is an array of lengths followed by the
+ * ISO-8859-1 bytes.
+ * <p>
+ * A cached page is only served while the page index still has the page at the
+ * same offsets with the same checksum. The index can only vouch for bytes it
+ * has scanned, so the first time a page is served after the cache is loaded,
+ * or after the CSV's length or modification time changes, the page's bytes
+ * are checksummed too; reading and checksumming a page is still far cheaper
+ * than parsing it. A page that fails either check is dropped, together with
+ * the pages cached after it, and is parsed and cached again by the next scan.
+ */
+public class CsvColumnCache {
+
+	private static final int MAGIC = 0x43534343;
+	private static final int VERSION = 2;
+	// the block length, and the page's start, end and checksum
+	private static final int BLOCK_HEADER_SIZE = 4 + 3 * 8;
+
+	private File csv;
+	private File cacheFile;
+	private TupleDesc tupleDesc;
+	private int rowsPerPage;
+	private int headerSize;
+
+	// blockOffsets[p] is where the block of page p starts in the cache file
+	private long[] blockOffsets;
+	private int numPages;
+	// the bytes of the csv each cached page was parsed from, and their checksums
+	private long[] pageStarts;
+	private long[] pageEnds;
+	private long[] pageChecksums;
+	// the cached pages whose bytes have been checksummed since the csv last changed
+	private BitSet verified;
+	// length and modification time of the csv the last time the cache was checked
+	private long csvLength;
+	private long csvModified;
+	private boolean loaded;
+
+	public CsvColumnCache(File csv, TupleDesc td, int rowsPerPage) {
+		this.csv = csv;
+		this.cacheFile = new File(csv.getPath() + ".cols");
+		this.tupleDesc = td;
+		this.rowsPerPage = rowsPerPage;
+		this.headerSize = 5 * 4 + td.numFields();
+		this.loaded = false;
+		empty();
+	}
+
+	/**
+	 * Loads the cache from disk the first time, and notes whether the CSV
+	 * changed since the last call, in which case the cached pages' bytes are
+	 * checksummed again as they are served.
+	 */
+	public synchronized void validate() throws IOException {
+		if (!loaded) {
+			loaded = true;
+			if (!load()) clear();
+		}
+		if (csv.length() == csvLength && csv.lastModified() == csvModified) return;
+		verified.clear();
+		csvLength = csv.length();
+		csvModified = csv.lastModified();
+	}
+
+	/**
+	 * Records that the CSV was only appended to, by this process, so that the
+	 * pages already checksummed don't have to be again.
+	 */
+	public synchronized void noteCsvUnchanged() {
+		if (!loaded) return;
+		csvLength = csv.length();
+		csvModified = csv.lastModified();
+	}
+
+	/** Empties the cache. */
+	public synchronized void clear() throws IOException {
+		empty();
+		loaded = true;
+		csvLength = csv.length();
+		csvModified = csv.lastModified();
+
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+		try {
+			raf.setLength(headerSize);
+		} finally {
+			raf.close();
+		}
+		writeHeader();
+	}
+
+	/** @return the number of pages, starting at page 0, that are cached */
+	public synchronized int numPages() {
+		return numPages;
+	}
+
+	/**
+	 * @param index the CSV's page index, covering the page
+	 * @return the rows of a page, or null if the page isn't cached, or was
+	 *   parsed from bytes that have changed since
+	 */
+	public synchronized List<Tuple> readPage(int pageNumber, CsvPageIndex index) throws IOException {
+		if (!loaded || pageNumber >= numPages) return null;
+		if (!matches(pageNumber, index)) {
+			truncate(pageNumber);
+			return null;
+		}
+
+		int length = (int) (blockOffsets[pageNumber + 1] - blockOffsets[pageNumber]) - BLOCK_HEADER_SIZE;
+		byte[] block = new byte[length];
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+		try {
+			raf.seek(blockOffsets[pageNumber] + BLOCK_HEADER_SIZE);
+			raf.readFully(block);
+		} finally {
+			raf.close();
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(block);
+		int numRows = in.getInt();
+		List<Tuple> tuples = new ArrayList<Tuple>(numRows);
+		for (int i = 0; i < numRows; i++) {
+			tuples.add(new Tuple(tupleDesc));
+		}
+		for (int field = 0; field < tupleDesc.numFields(); field++) {
+			if (tupleDesc.getFieldType(field).equals(Type.INT_TYPE)) {
+				for (int i = 0; i < numRows; i++) {
+					tuples.get(i).setField(field, new IntField(in.getInt()));
+				}
+			} else {
+				int[] lengths = new int[numRows];
+				for (int i = 0; i < numRows; i++) {
+					lengths[i] = in.getInt();
+				}
+				for (int i = 0; i < numRows; i++) {
+					String value = new String(block, in.position(), lengths[i], StandardCharsets.ISO_8859_1);
+					in.position(in.position() + lengths[i]);
+					tuples.get(i).setField(field, new StringField(value, 2048));
+				}
+			}
+		}
+		return tuples;
+	}
+
+	/**
+	 * @return whether the index has a page at the same offsets, with the same
+	 *   checksum, as the cached one, and the page's bytes in the CSV have that
+	 *   checksum if they haven't been checked yet
+	 */
+	private boolean matches(int pageNumber, CsvPageIndex index) throws IOException {
+		synchronized (index) {
+			if (pageNumber >= index.numPages() || !index.isComplete(pageNumber)
+					|| index.getPageStart(pageNumber) != pageStarts[pageNumber]
+					|| index.getPageEnd(pageNumber) != pageEnds[pageNumber]
+					|| index.getPageChecksum(pageNumber) != pageChecksums[pageNumber]) {
+				return false;
+			}
+		}
+		if (verified.get(pageNumber)) return true;
+
+		long start = pageStarts[pageNumber];
+		byte[] data = new byte[(int) (pageEnds[pageNumber] - start)];
+		RandomAccessFile raf = new RandomAccessFile(csv, "r");
+		try {
+			if (raf.length() < pageEnds[pageNumber]) return false;
+			raf.seek(start);
+			raf.readFully(data);
+		} finally {
+			raf.close();
+		}
+		if (CsvPageIndex.checksum(CsvPageIndex.CHECKSUM_SEED, data, 0, data.length) != pageChecksums[pageNumber]) {
+			return false;
+		}
+		verified.set(pageNumber);
+		return true;
+	}
+
+	/** Drops the cached pages from pageNumber on. */
+	private void truncate(int pageNumber) throws IOException {
+		numPages = pageNumber;
+		verified.clear(pageNumber, Integer.MAX_VALUE);
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+		try {
+			raf.setLength(blockOffsets[pageNumber]);
+		} finally {
+			raf.close();
+		}
+		writeHeader();
+	}
+
+	/**
+	 * Offers a freshly parsed page to the cache. It is only added if it is the
+	 * next page the cache is missing, it is full, and it starts where the
+	 * cached pages end.
+	 *
+	 * @param start the byte offset of the page in the CSV
+	 * @param data the bytes of the page in the CSV
+	 * @param tuples the rows parsed from data
+	 */
+	public synchronized void addPage(int pageNumber, long start, byte[] data, List<Tuple> tuples)
+			throws IOException {
+		if (!loaded || pageNumber != numPages || tuples.size() != rowsPerPage) return;
+		// only the first page may start after blank lines
+		if (numPages > 0 && start != pageEnds[numPages - 1]) return;
+		for (Tuple t : tuples) {
+			for (int field = 0; field < tupleDesc.numFields(); field++) {
+				// a short row; leave the page to be parsed each time
+				if (t.getField(field) == null) return;
+			}
+		}
+
+		long checksum = CsvPageIndex.checksum(CsvPageIndex.CHECKSUM_SEED, data, 0, data.length);
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+		try {
+			byte[] block = encode(tuples);
+			raf.seek(blockOffsets[numPages]);
+			raf.writeInt(block.length + BLOCK_HEADER_SIZE - 4);
+			raf.writeLong(start);
+			raf.writeLong(start + data.length);
+			raf.writeLong(checksum);
+			raf.write(block);
+			raf.setLength(raf.getFilePointer());
+			addBlock(raf.getFilePointer(), start, start + data.length, checksum);
+		} finally {
+			raf.close();
+		}
+		// the page was parsed from these very bytes
+		verified.set(numPages - 1);
+		writeHeader();
+	}
+
+	private byte[] encode(List<Tuple> tuples) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(tuples.size());
+		for (int field = 0; field < tupleDesc.numFields(); field++) {
+			if (tupleDesc.getFieldType(field).equals(Type.INT_TYPE)) {
+				for (Tuple t : tuples) {
+					out.writeInt(((IntField) t.getField(field)).getValue());
+				}
+			} else {
+				byte[][] values = new byte[tuples.size()][];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = ((StringField) tuples.get(i).getField(field)).getValue()
+							.getBytes(StandardCharsets.ISO_8859_1);
+					out.writeInt(values[i].length);
+				}
+				for (byte[] value : values) {
+					out.write(value);
+				}
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private void empty() {
+		blockOffsets = new long[16];
+		blockOffsets[0] = headerSize;
+		pageStarts = new long[16];
+		pageEnds = new long[16];
+		pageChecksums = new long[16];
+		verified = new BitSet();
+		numPages = 0;
+	}
+
+	/** Adds the next page, whose block ends at offset in the cache file. */
+	private void addBlock(long offset, long start, long end, long checksum) {
+		if (numPages + 1 == blockOffsets.length) {
+			blockOffsets = Arrays.copyOf(blockOffsets, blockOffsets.length * 2);
+			pageStarts = Arrays.copyOf(pageStarts, blockOffsets.length);
+			pageEnds = Arrays.copyOf(pageEnds, blockOffsets.length);
+			pageChecksums = Arrays.copyOf(pageChecksums, blockOffsets.length);
+		}
+		pageStarts[numPages] = start;
+		pageEnds[numPages] = end;
+		pageChecksums[numPages] = checksum;
+		blockOffsets[++numPages] = offset;
+	}
+
+	private void writeHeader() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+		try {
+			raf.seek(0);
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(rowsPerPage);
+			raf.writeInt(tupleDesc.numFields());
+			for (int i = 0; i < tupleDesc.numFields(); i++) {
+				raf.writeByte(tupleDesc.getFieldType(i).ordinal());
+			}
+			raf.writeInt(numPages);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads the header and finds the blocks by following their lengths.
+	 * Blocks written after the header was last updated are ignored.
+	 *
+	 * @return false if there is no usable cache on disk
+	 */
+	private boolean load() {
+		if (!cacheFile.exists()) return false;
+
+		try {
+			RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+			try {
+				if (raf.length() < headerSize || raf.readInt() != MAGIC || raf.readInt() != VERSION
+						|| raf.readInt() != rowsPerPage || raf.readInt() != tupleDesc.numFields()) {
+					return false;
+				}
+				for (int i = 0; i < tupleDesc.numFields(); i++) {
+					if (raf.readByte() != tupleDesc.getFieldType(i).ordinal()) return false;
+				}
+				int savedPages = raf.readInt();
+
+				long offset = headerSize;
+				for (int p = 0; p < savedPages; p++) {
+					if (offset + BLOCK_HEADER_SIZE > raf.length()) return false;
+					raf.seek(offset);
+					long end = offset + 4 + raf.readInt();
+					if (end > raf.length()) return false;
+					addBlock(end, raf.readLong(), raf.readLong(), raf.readLong());
+					offset = end;
+				}
+				return true;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+}
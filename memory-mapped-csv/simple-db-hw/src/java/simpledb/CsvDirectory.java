@@ -0,0 +1,227 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A TableProvider for a directory of CSVs, the Java side of what
+ * pycsvdb/monitor.py does: every CSV in the directory is a table named after
+ * the file (<tt>trips.csv</tt> is the table <tt>trips</tt>), without a
+ * catalog file listing them.
+ * <p>
+ * Nothing is read until a query names a table. The table's schema is then
+ * inferred from its first SAMPLE_ROWS rows, the way csvtable.get_type infers
+ * it: a column is an int if every sampled value of it is one, and a string
+ * otherwise (SimpleDB has no floats, so they are strings too). Columns are
+ * named <tt>table_0</tt>, <tt>table_1</tt> and so on, as in pycsvdb.
+ * <p>
+ * {@link #watch()} starts a thread that lists the directory every
+ * FileWatcher.POLL_MILLIS and drops the tables whose CSVs are gone from the
+ * Catalog. Changes to a CSV that is still there are picked up by its table.
+ *
+ * @Threadsafe
+ */
+public class CsvDirectory implements TableProvider {
+
+	/** The number of rows a table's schema is inferred from. */
+	public static final int SAMPLE_ROWS = 100;
+	/** The most bytes read from the start of a CSV to infer its schema. */
+	private static final int SAMPLE_BYTES = 64 * 1024;
+
+	private File directory;
+	private String extension;
+	private boolean mapped;
+	// the tables opened so far, by name
+	private Map<String, DbFile> opened;
+	private Thread watchThread;
+
+	/**
+	 * Provides a CsvFile table for each file ending with .csv in a directory.
+	 */
+	public CsvDirectory(File directory) {
+		this(directory, ".csv", false);
+	}
+
+	/**
+	 * @param directory the directory the CSVs are in
+	 * @param extension the ending of the names of CSVs; other files in the
+	 *                  directory are ignored
+	 * @param mapped whether tables are MappedFiles rather than CsvFiles
+	 */
+	public CsvDirectory(File directory, String extension, boolean mapped) {
+		this.directory = directory;
+		this.extension = extension;
+		this.mapped = mapped;
+		this.opened = new HashMap<>();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	private File[] listFiles() {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isFile() && !f.getName().startsWith(".") && f.getName().endsWith(extension);
+			}
+		});
+		return files != null ? files : new File[0];
+	}
+
+	private String tableName(File f) {
+		return f.getName().substring(0, f.getName().length() - extension.length());
+	}
+
+	/**
+	 * Opens the table over the CSV with the given name, inferring its schema.
+	 * The CSV's pages aren't indexed, and its rows aren't counted, until the
+	 * table is scanned.
+	 *
+	 * @throws IllegalArgumentException if the CSV can't be read
+	 */
+	@Override
+	public synchronized DbFile openTable(String name) {
+		if (name.isEmpty() || name.startsWith(".")) return null;
+		File csv = new File(directory, name + extension);
+		if (!csv.isFile()) return null;
+
+		TupleDesc td;
+		try {
+			td = inferSchema(csv, name);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("can't read " + csv, e);
+		}
+		DbFile table = mapped ? new MappedFile(csv, td) : new CsvFile(csv, td);
+		opened.put(name, table);
+		return table;
+	}
+
+	/** CSVs have no primary keys. */
+	@Override
+	public String getPrimaryKey(String name) {
+		return "";
+	}
+
+	/**
+	 * Lists the directory, dropping the tables whose CSVs are gone from the
+	 * Catalog, along with their statistics.
+	 *
+	 * @return the names of the tables in the directory, in order
+	 */
+	public List<String> refresh() {
+		List<String> names = new ArrayList<>();
+		for (File f : listFiles()) {
+			names.add(tableName(f));
+		}
+		Collections.sort(names);
+
+		Map<String, DbFile> gone = new HashMap<>();
+		synchronized (this) {
+			Iterator<Map.Entry<String, DbFile>> it = opened.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, DbFile> entry = it.next();
+				if (Collections.binarySearch(names, entry.getKey()) >= 0) continue;
+				gone.put(entry.getKey(), entry.getValue());
+				it.remove();
+			}
+		}
+		// the Catalog opens tables through openTable() under its own lock, so
+		// it is only called once this one is released
+		for (Map.Entry<String, DbFile> entry : gone.entrySet()) {
+			Database.getCatalog().removeTable(entry.getValue().getId());
+			TableStats.getStatsMap().remove(entry.getKey());
+		}
+		return names;
+	}
+
+	/**
+	 * Starts refreshing the tables every FileWatcher.POLL_MILLIS, on a
+	 * background thread, until {@link #stop()} is called.
+	 */
+	public synchronized void watch() {
+		if (watchThread != null) return;
+		watchThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					refresh();
+					try {
+						Thread.sleep(FileWatcher.POLL_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "csv directory watcher");
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	public synchronized void stop() {
+		if (watchThread == null) return;
+		watchThread.interrupt();
+		watchThread = null;
+	}
+
+	/**
+	 * Infers the schema of a CSV from its first SAMPLE_ROWS rows. A column
+	 * is an int if each of those rows that has it holds an int in it, and a
+	 * string otherwise; empty values are strings, as in csvtable.get_type.
+	 *
+	 * @param name the name of the table, which the columns are named after
+	 */
+	public static TupleDesc inferSchema(File csv, String name) throws IOException {
+		ByteBuffer sample;
+		RandomAccessFile raf = new RandomAccessFile(csv, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			sample = ByteBuffer.allocate((int) Math.min(channel.size(), SAMPLE_BYTES));
+			while (sample.hasRemaining() && channel.read(sample) >= 0);
+			sample.flip();
+			if (sample.limit() < channel.size()) {
+				// leave out the row the sample cuts through
+				int end = sample.limit();
+				while (end > 0 && sample.get(end - 1) != '\n') end--;
+				if (end > 0) sample.limit(end);
+			}
+		} finally {
+			raf.close();
+		}
+
+		CsvTokenizer tokenizer = new CsvTokenizer(new TupleDesc(new Type[] { Type.STRING_TYPE }));
+		tokenizer.reset(sample);
+		// whether every sampled value of each column so far is an int
+		List<Boolean> ints = new ArrayList<>();
+		for (int rows = 0; rows < SAMPLE_ROWS && tokenizer.nextRow(); rows++) {
+			for (int i = 0; i < tokenizer.numFields(); i++) {
+				if (i == ints.size()) ints.add(true);
+				if (!ints.get(i)) continue;
+				try {
+					tokenizer.getInt(i);
+				} catch (NumberFormatException e) {
+					ints.set(i, false);
+				}
+			}
+		}
+		if (ints.isEmpty()) ints.add(false);
+
+		Type[] types = new Type[ints.size()];
+		String[] names = new String[ints.size()];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = ints.get(i) ? Type.INT_TYPE : Type.STRING_TYPE;
+			names[i] = name + "_" + i;
+		}
+		return new TupleDesc(types, names);
+	}
+}
@@ -1,107 +1,324 @@
 package simpledb;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class CsvFile implements DbFile {
+public class CsvFile implements DbFile, ParallelScannable, MultiPageFile, FilterableFile {
 	
-	private long lastKnownCsvMod;
+	/**
+	 * One version of the CSV. The CSV is opened as soon as a scan starts on
+	 * the version, or a later version is noticed, so a version that was
+	 * replaced by moving a new file over the CSV can still be read once the
+	 * path leads to the new one. A table that is never read never opens its
+	 * CSV. When a newer version replaces it, the snapshot gets a copy of the
+	 * page index as it was, and it is closed once no scan reads it.
+	 */
+	private static class Snapshot extends FileSnapshot {
+		// the pages of a retired snapshot; the current one uses the table's index
+		CsvPageIndex index;
+
+		Snapshot(File file) {
+			super(file, false);
+		}
+
+		/** Reads the bytes in [start, end) with positional reads on the kept handle. */
+		byte[] read(long start, long end) throws IOException {
+			byte[] data = new byte[(int) (end - start)];
+			if (!read(ByteBuffer.wrap(data), start)) {
+				throw new EOFException(file + " ends before byte " + end);
+			}
+			return data;
+		}
+	}
+
 	private File file;
+	// the version of the CSV new scans and the buffer pool read
+	private volatile Snapshot current;
+	private FileWatcher.WatchedFile watched;
+	// the version of the CSV the cached pages and the index were read from
+	private volatile long knownVersion;
 	private TupleDesc tupleDesc;
 	private Set<PageId> pages;
-	private boolean stopReading;
-	private int rowsInCsv;
+	private CsvPageIndex index;
+	private CsvColumnCache columnCache;
+	private CsvZoneMap zoneMap;
+	// rows inserted by each running transaction, written to the CSV when it commits
+	private Map<TransactionId, StringBuilder> pendingAppends;
+	// the page new rows go on, or -1 to start from the last page of the CSV
+	private int tailPage;
+	// whether the table was dropped, so that every version is closed once read
+	private boolean closed;
 	
 	public CsvFile(File file, TupleDesc td) {
 		this.file = file;
 		this.tupleDesc = td;
-		this.pages = new HashSet<>();
-		this.stopReading = false;
-		this.rowsInCsv = getNumRowsInCsv();
+		this.pages = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+		this.index = new CsvPageIndex(file, getNumTuplesPerPage());
+		this.columnCache = new CsvColumnCache(file, td, getNumTuplesPerPage());
+		this.zoneMap = new CsvZoneMap(file, td);
+		this.watched = FileWatcher.getInstance().watch(file);
+		this.knownVersion = watched.check();
+		this.pendingAppends = new HashMap<>();
+		this.tailPage = -1;
+		this.current = new Snapshot(file);
 	}
 
 	@Override
 	public Page readPage(PageId id) {
 //		System.out.println("reading page");
-		List<Tuple> tuples = new ArrayList<Tuple>();
+		int pageNumber = id.getPageNumber();
+		// the page is read through the index anyway, so numPages() won't count rows
+		getIndex();
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(file));
-			for (int i = 0; i < id.getPageNumber() * getNumTuplesPerPage(); i++) {
-				br.readLine();
-			}
-			
-			String line = br.readLine();
-			int numTuplesRead = 0;
-			while(line != null && numTuplesRead < getNumTuplesPerPage()) {
-				tuples.add(getTupleFromString(line));
-//				System.out.println(line);
-				numTuplesRead++;
-				line = br.readLine();
-			}
-			if (line == null) stopReading = true;
-			br.close();
+			// pages parsed before, even by an earlier run, come from the column cache
+			columnCache.validate();
+			List<Tuple> cached = columnCache.readPage(pageNumber, getIndex());
+			if (cached != null) return toPage(pageNumber, cached);
+
+			// seek straight to the page instead of reading every line before it
+			long start = getIndex().getPageStart(pageNumber);
+			return parsePage(pageNumber, start, read(start, getIndex().getPageEnd(pageNumber)), start);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 		
-		lastKnownCsvMod = file.lastModified();
-		CsvPageId pageId = new CsvPageId(getId(), id.getPageNumber());
-		pages.add(pageId);
+		return toPage(pageNumber, new ArrayList<Tuple>());
+	}
+
+	private CsvPage toPage(int pageNumber, List<Tuple> tuples) {
 //		System.out.println(tuples.size());
-		return new CsvPage(pageId, tuples);
+		return new CsvPage(readPageId(pageNumber), tuples);
 	}
 
+	/**
+	 * Summarizes a page a filtered scan read, if it is complete and isn't
+	 * summarized yet. Pages are only summarized for scans with filters, the
+	 * only ones that can use a summary, so plain scans don't pay for it.
+	 *
+	 * @param index the index of the version the page was read from
+	 */
+	private void summarize(CsvPage page, CsvPageIndex index) {
+		int pageNumber = page.getId().getPageNumber();
+		long checksum;
+		synchronized (index) {
+			// the last page can still gain rows, so it isn't worth summarizing
+			if (!index.isComplete(pageNumber)) return;
+			checksum = index.getPageChecksum(pageNumber);
+		}
+		if (!zoneMap.contains(pageNumber, checksum)) page.summarize(zoneMap, checksum);
+	}
+
+	/** Notes that a page of the current version is cached. */
+	private CsvPageId readPageId(int pageNumber) {
+		CsvPageId pageId = new CsvPageId(getId(), pageNumber);
+		pages.add(pageId);
+		return pageId;
+	}
+
+	/**
+	 * Makes a page of rows read from the CSV. The rows are only decoded as
+	 * scans ask for their columns, and the page goes to the column cache once
+	 * all of them have been.
+	 *
+	 * @param start the offset of the page in the CSV
+	 * @param data bytes of the CSV that include the page, from offset dataStart
+	 */
+	private CsvPage parsePage(int pageNumber, long start, byte[] data, long dataStart) {
+		int from = (int) (start - dataStart);
+		int length = (int) (getIndex().getPageEnd(pageNumber) - start);
+		byte[] page = data;
+		if (from != 0 || length != data.length) {
+			page = new byte[length];
+			System.arraycopy(data, from, page, 0, length);
+		}
+
+		return new CsvPage(readPageId(pageNumber), start, page, tupleDesc, getNumTuplesPerPage(),
+				columnCache);
+	}
+	
+	/**
+	 * Reads bytes of the current version, holding it meanwhile so that a
+	 * change noticed during the read closes it only once the read is done.
+	 */
+	private byte[] read(long start, long end) throws IOException {
+		Snapshot snapshot = acquireSnapshot();
+		try {
+			return snapshot.read(start, end);
+		} finally {
+			releaseSnapshot(snapshot);
+		}
+	}
+
+	/**
+	 * Reads a page of a retired version of the CSV straight from the handle
+	 * the version kept, bypassing the buffer pool and the caches, which only
+	 * hold the current version.
+	 *
+	 * @throws DbException if the page's bytes changed all the same, because
+	 *   the CSV was rewritten in place rather than replaced; the last page
+	 *   is checked up to where the version ended, partial row included
+	 */
+	private CsvPage readPage(Snapshot snapshot, int pageNumber) throws DbException {
+		CsvPageIndex index = snapshot.index;
+		long start = index.getPageStart(pageNumber);
+		try {
+			byte[] data = snapshot.read(start, index.getPageEnd(pageNumber));
+			if (index.getRangeChecksum(pageNumber)
+					!= CsvPageIndex.checksum(CsvPageIndex.CHECKSUM_SEED, data, 0, data.length)) {
+				throw new DbException(file + " was rewritten in place while a scan was reading it");
+			}
+			return new CsvPage(new CsvPageId(getId(), pageNumber), start, data, tupleDesc,
+					getNumTuplesPerPage(), null);
+		} catch (IOException e) {
+			throw new DbException("can't read " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the pages the column cache doesn't have with one read of the CSV
+	 * bytes they span. Pages that only hold rows not yet written to the CSV
+	 * aren't returned.
+	 */
 	@Override
-	public void writePage(Page p) throws IOException {
-		PrintWriter pw = new PrintWriter(new FileWriter(file, true));
-		Iterator<Tuple> iterator = ((CsvPage) p).iterator();
+	public List<Page> readPages(PageId first, int count) throws IOException {
+		int from = first.getPageNumber();
+		count = Math.min(count, getIndex().numPages() - from);
+		List<Page> result = new ArrayList<>();
+		if (count <= 0) return result;
 		
-		while(iterator.hasNext()) {
-			pw.println(tupleToString(iterator.next()));
+		columnCache.validate();
+		long dataStart = getIndex().getPageStart(from);
+		byte[] data = null;
+		for (int p = from; p < from + count; p++) {
+			List<Tuple> tuples = columnCache.readPage(p, getIndex());
+			if (tuples != null) {
+				result.add(toPage(p, tuples));
+				continue;
+			}
+			if (data == null) data = read(dataStart, getIndex().getPageEnd(from + count - 1));
+			result.add(parsePage(p, getIndex().getPageStart(p), data, dataStart));
 		}
-		pw.flush();
-		pw.close();
+		return result;
 	}
 
+	/**
+	 * Writing any dirty page appends all of its transaction's rows, so the
+	 * pages are simply written one after another.
+	 */
+	@Override
+	public void writePages(List<Page> pages) throws IOException {
+		for (Page p : pages) {
+			writePage(p);
+		}
+	}
+
+	/**
+	 * Rows are appended to the CSV rather than written back page by page, so
+	 * writing a dirty page writes out every row its transaction inserted.
+	 */
+	@Override
+	public void writePage(Page p) throws IOException {
+		TransactionId tid = p.isDirty();
+		if (tid != null) flushAppends(tid);
+	}
+
+	/**
+	 * Adds a tuple to the last page of the file, or to a new page after it if
+	 * the last page is full. The row is kept in memory until the transaction
+	 * commits, when all of its rows are appended to the CSV in one write.
+	 */
 	@Override
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		int currentPageNumber = 0;
-    	CsvPage currentPage = (CsvPage) Database.getBufferPool()
-				.getPage(tid, new CsvPageId(getId(), currentPageNumber), Permissions.READ_ONLY);
-    	while (currentPage.numTuples() >= getNumTuplesPerPage() && currentPageNumber < numPages()) {
-    		Database.getBufferPool().releasePage(tid, new HeapPageId(getId(), currentPageNumber));
-    		currentPageNumber++;
-    		currentPage = (CsvPage) Database.getBufferPool()
-    				.getPage(tid, new CsvPageId(getId(), currentPageNumber), Permissions.READ_ONLY);
-    	}
-    	
-    	currentPage = (CsvPage) Database.getBufferPool()
-				.getPage(tid, new CsvPageId(getId(), currentPageNumber), Permissions.READ_WRITE);
-    	currentPage.insertTuple(t);
-    	
-    	// force tuple to disk to stay in sync with CSV file
-    	PrintWriter pw = new PrintWriter(new FileWriter(file, true));
-		pw.println(tupleToString(t));
-		pw.flush();
-		pw.close();
-    	
-    	rowsInCsv++;
-    	ArrayList<Page> pages = new ArrayList<>();
-    	pages.add(currentPage);
-    	return pages;
+		CsvPage currentPage = (CsvPage) Database.getBufferPool()
+				.getPage(tid, this, new CsvPageId(getId(), getTailPage()), Permissions.READ_WRITE);
+		if (currentPage.numTuples() >= getNumTuplesPerPage()) {
+			int nextPage = currentPage.getId().getPageNumber() + 1;
+			currentPage = (CsvPage) Database.getBufferPool()
+					.getPage(tid, this, new CsvPageId(getId(), nextPage), Permissions.READ_WRITE);
+			synchronized (this) {
+				tailPage = nextPage;
+			}
+		}
+		currentPage.insertTuple(t);
+
+		synchronized (this) {
+			StringBuilder rows = pendingAppends.get(tid);
+			if (rows == null) {
+				rows = new StringBuilder();
+				pendingAppends.put(tid, rows);
+			}
+			rows.append(tupleToString(t)).append('\n');
+		}
+
+		ArrayList<Page> pages = new ArrayList<>();
+		pages.add(currentPage);
+		return pages;
+	}
+
+	/**
+	 * Appends the rows a transaction inserted to the CSV with a single write.
+	 */
+	private synchronized void flushAppends(TransactionId tid) throws IOException {
+		StringBuilder rows = pendingAppends.remove(tid);
+		if (rows == null || rows.length() == 0) return;
+
+		boolean changedElsewhere = watched.check() != knownVersion;
+		if (!endsWithNewline()) rows.insert(0, '\n');
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(rows.toString().getBytes(StandardCharsets.ISO_8859_1));
+		} finally {
+			out.close();
+		}
+
+		refreshIndex();
+		// our own append shouldn't look like somebody else changed the CSV
+		long version = watched.check();
+		if (!changedElsewhere) {
+			knownVersion = version;
+			columnCache.noteCsvUnchanged();
+		}
+	}
+
+	/**
+	 * Forgets the rows inserted by a transaction that aborted.
+	 */
+	@Override
+	public synchronized void abort(TransactionId tid) {
+		if (pendingAppends.remove(tid) != null) tailPage = -1;
+	}
+
+	private synchronized int getTailPage() {
+		if (tailPage < 0) tailPage = getIndex().numPages() - 1;
+		return tailPage;
+	}
+
+	private boolean endsWithNewline() throws IOException {
+		if (file.length() == 0) return true;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(file.length() - 1);
+			return raf.read() == '\n';
+		} finally {
+			raf.close();
+		}
 	}
 
 	@Override
@@ -113,30 +330,137 @@ public class CsvFile implements DbFile {
 
 	@Override
 	public DbFileIterator iterator(TransactionId tid) {
-		if (isModified()) {
-			for(PageId pid : pages) {
+		return iterator(tid, null);
+	}
+
+	/**
+	 * Scans the file decoding only the given columns of each row. Pages are
+	 * still shared through the buffer pool; columns another scan needs later
+	 * are decoded then.
+	 */
+	@Override
+	public DbFileIterator iterator(TransactionId tid, BitSet columns) {
+		return iterator(tid, columns, null);
+	}
+
+	@Override
+	public boolean canFilter(Predicate p) {
+		return CsvTokenizer.canEvaluate(tupleDesc, p);
+	}
+
+	/**
+	 * Scans the file, evaluating the filters on each page's raw rows when
+	 * they haven't been decoded yet.
+	 */
+	@Override
+	public DbFileIterator iterator(TransactionId tid, BitSet columns, List<Predicate> filters) {
+		// one stat per scan, in case the watcher hasn't caught up yet
+		watched.check();
+		if (isModified()) update();
+		
+		return new DbFileIteratorImpl(tid, columns, filters);
+	}
+
+	/**
+	 * Brings the page index up to date with a CSV that changed, other than by
+	 * our own appends. The version scans were reading is retired: scans that
+	 * are running keep reading it, from its handle and a copy of the index as
+	 * it was, while new scans and the buffer pool move on to the CSV as it is
+	 * now.
+	 */
+	private synchronized void update() {
+		knownVersion = watched.getVersion();
+		try {
+			Snapshot old = current;
+			CsvPageIndex before = old.readers() > 0 ? getIndex().copy() : null;
+			CsvPageIndex.Change change = index.update();
+			// only drop pages whose bytes changed; on an append that is just
+			// the old last page, and the new pages were never cached
+			BitSet changed = index.getChangedPages();
+			for (int p = changed.nextSetBit(0); p >= 0; p = changed.nextSetBit(p + 1)) {
+				PageId pid = new CsvPageId(getId(), p);
 				Database.getBufferPool().discardPage(pid);
+				pages.remove(pid);
 			}
-			pages = new HashSet<>();
-			lastKnownCsvMod = file.lastModified();
-			rowsInCsv = getNumRowsInCsv();
-//			System.out.println("is modified");
+			zoneMap.forget(changed);
+			if (change == CsvPageIndex.Change.REWRITE) tailPage = -1;
+
+			if (change != CsvPageIndex.Change.NONE) {
+				current = new Snapshot(file);
+				if (closed) {
+					current.closeWhenUnused();
+				} else {
+					current.open();
+				}
+				old.index = before;
+				old.retire();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		
-		return new DbFileIteratorImpl(tid);
+	}
+
+	private synchronized Snapshot acquireSnapshot() {
+		// a scan reads its pages through the index, so build it rather than count rows
+		getIndex();
+		current.open();
+		current.acquire();
+		return current;
+	}
+
+	private synchronized void releaseSnapshot(Snapshot snapshot) {
+		snapshot.release();
+	}
+
+	/** @return the number of pages a scan of the given version reads */
+	private int numPages(Snapshot snapshot) {
+		return snapshot.index != null ? snapshot.index.numPages() : numPages();
 	}
 	
-	private int getNumRowsInCsv() {
-		int total = 0;
-		
+	/**
+	 * @return the page index, loading or building it on first use
+	 */
+	private CsvPageIndex getIndex() {
+		if (!index.isLoaded()) refreshIndex();
+		return index;
+	}
+	
+	/**
+	 * Extends the page index over any rows appended since the last refresh.
+	 */
+	private void refreshIndex() {
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(file));
-			while(br.readLine() != null) {
-				total++;
-			}
-		} catch (IOException e) {}
-		
-		return total;
+			index.refresh();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops watching the CSV and closes it as soon as no scan is reading it,
+	 * and again after every read that comes after all.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) return;
+		closed = true;
+		FileWatcher.getInstance().unwatch(file);
+		current.closeWhenUnused();
+		zoneMap.save();
+	}
+
+	/**
+	 * Scans the CSV in parallel chunks, bypassing the buffer pool but taking
+	 * a shared lock on the table first.
+	 */
+	@Override
+	public DbFileIterator parallelIterator(TransactionId tid, boolean ordered) {
+		return new ParallelCsvScan(file, tupleDesc).lockTable(tid, getId()).iterator(ordered);
+	}
+
+	/** @return the CSV the table is backed by */
+	public File getFile() {
+		return file;
 	}
 
 	@Override
@@ -149,28 +473,28 @@ public class CsvFile implements DbFile {
 		return tupleDesc;
 	}
 
+	/**
+	 * Includes a new last page that holds only rows that haven't been
+	 * written to the CSV yet.
+	 */
 	@Override
 	public int numPages() {
-		return ((rowsInCsv - 1) / getNumTuplesPerPage()) + 1;
+		int indexed;
+		try {
+			// until the CSV is first read its rows are counted, not indexed
+			indexed = index.countPages();
+		} catch (IOException e) {
+			e.printStackTrace();
+			indexed = getIndex().numPages();
+		}
+		synchronized (this) {
+			return Math.max(indexed, tailPage + 1);
+		}
 	}
 	
 	@Override
 	public boolean isModified() {
-		return file.lastModified() > lastKnownCsvMod;
-	}
-	
-	private Tuple getTupleFromString(String line) {
-		String[] values = line.split(",");
-		Tuple tuple = new Tuple(tupleDesc);
-		for(int i = 0; i < values.length; i++) {
-			if(tupleDesc.getFieldType(i).equals(Type.INT_TYPE)) {
-				tuple.setField(i, new IntField(Integer.valueOf(values[i])));
-			} else if(tupleDesc.getFieldType(i).equals(Type.STRING_TYPE)) {
-				tuple.setField(i, new StringField(values[i], 2048));
-			}
-		}
-		
-		return tuple;
+		return watched.getVersion() != knownVersion;
 	}
 	
 	private String tupleToString(Tuple t) {
@@ -199,13 +523,19 @@ public class CsvFile implements DbFile {
 	private class DbFileIteratorImpl extends AbstractDbFileIterator {
 		
 		TransactionId transactionId;
+		BitSet columns;
+		List<Predicate> filters;
     	int nextPageNumber;
     	Iterator<Tuple> currentTupleIterator;
     	
     	boolean open;
+    	// the version of the CSV the scan reads, from open() until close()
+    	Snapshot snapshot;
 
-    	public DbFileIteratorImpl(TransactionId tid) {
+    	public DbFileIteratorImpl(TransactionId tid, BitSet columns, List<Predicate> filters) {
     		this.transactionId = tid;
+    		this.columns = columns;
+    		this.filters = filters;
     		this.nextPageNumber = 0;
     		currentTupleIterator = (new ArrayList<Tuple>()).iterator();
     		open = false;
@@ -213,21 +543,23 @@ public class CsvFile implements DbFile {
 
 		@Override
 		public void open() throws DbException, TransactionAbortedException {
+			if (!open) snapshot = acquireSnapshot();
 			open = true;
-			stopReading = false;
 		}
 		
 		@Override
 		public void close() {
 			super.close();
+			if (open) releaseSnapshot(snapshot);
+			snapshot = null;
 			open = false;
+			zoneMap.save();
 		}
 	
 		@Override
 		public void rewind() throws DbException, TransactionAbortedException {
 			nextPageNumber = 0;
 			currentTupleIterator = (new ArrayList<Tuple>()).iterator();
-			stopReading = false;
 			moveToNextPopulatedPage();
 		}
 	
@@ -250,12 +582,30 @@ public class CsvFile implements DbFile {
 		}
 		
 		private void moveToNextPopulatedPage() throws TransactionAbortedException, DbException {
-			while(!currentTupleIterator.hasNext() && nextPageNumber < numPages()) {
-				CsvPage page = (CsvPage) Database.getBufferPool()
-						.getPage(transactionId, new CsvPageId(getId(), nextPageNumber), Permissions.READ_ONLY);
+			// a change noticed while the scan runs retires its version, rather
+			// than letting rows of the new one in
+			if (isModified()) update();
+			Snapshot reading = snapshot != null ? snapshot : current;
+			while(!currentTupleIterator.hasNext() && nextPageNumber < numPages(reading)) {
+				// pages whose zone shows no row can match aren't read at all
+				CsvPageIndex index = reading.index != null ? reading.index : getIndex();
+				if (filters != null && zoneMap.canSkip(nextPageNumber, filters, index)) {
+					nextPageNumber++;
+					continue;
+				}
+				CsvPage page;
+				if (reading.index == null) {
+					page = (CsvPage) Database.getBufferPool()
+							.getPage(transactionId, CsvFile.this, new CsvPageId(getId(), nextPageNumber), Permissions.READ_ONLY);
+				} else {
+					// the table has moved on to a newer version, which this scan mustn't see
+					page = readPage(reading, nextPageNumber);
+				}
+
+				if (filters != null) summarize(page, index);
 
 				nextPageNumber++;
-				currentTupleIterator = page.iterator();
+				currentTupleIterator = page.iterator(columns, filters);
 			}
 		}
 		
@@ -1,7 +1,9 @@
 package simpledb;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 
@@ -13,12 +15,87 @@ public class CsvPage implements Page {
     private List<Tuple> tuples;
     private TransactionId lastTransaction;
     private boolean isDirty;
+
+    // for a page read from the CSV, the raw rows and which columns of them
+    // have been decoded into tuples so far
+    private byte[] data;
+    private long start;
+    private TupleDesc tupleDesc;
+    private int maxRows;
+    private BitSet decoded;
+    private CsvColumnCache columnCache;
     
     public CsvPage(CsvPageId pid, List<Tuple> tuples) {
     	this.pid = pid;
     	this.tuples = tuples;
     	this.isDirty = false;
     }
+
+	/**
+	 * Creates a page whose rows are decoded from the CSV bytes only as
+	 * columns are asked for, so a scan that needs two columns of a wide table
+	 * doesn't decode the rest. Once every column has been decoded the page is
+	 * offered to the column cache and the bytes are dropped. The cache only
+	 * holds whole pages, so a page only projected scans have read, with
+	 * fields left null, isn't offered to it and is parsed again next time.
+	 *
+	 * @param start the offset of the page in the CSV
+	 * @param data the bytes of the page's rows
+	 * @param maxRows the most rows the page holds
+	 * @param columnCache the cache to offer the decoded page to, or null
+	 */
+	public CsvPage(CsvPageId pid, long start, byte[] data, TupleDesc td, int maxRows,
+			CsvColumnCache columnCache) {
+		this(pid, null);
+		this.start = start;
+		this.data = data;
+		this.tupleDesc = td;
+		this.maxRows = maxRows;
+		this.decoded = new BitSet();
+		this.columnCache = columnCache;
+	}
+
+	/**
+	 * Decodes the given columns of every row, if they haven't been already.
+	 * Tuples handed out before keep their identity; the new fields are set on
+	 * them in place.
+	 *
+	 * @param columns the columns to decode, or null for all of them
+	 */
+	private synchronized void decode(BitSet columns) {
+		if (data == null) return;
+
+		BitSet missing = new BitSet();
+		if (columns == null) {
+			missing.set(0, tupleDesc.numFields());
+		} else {
+			missing.or(columns);
+		}
+		missing.andNot(decoded);
+		if (tuples != null && missing.isEmpty()) return;
+
+		boolean first = tuples == null;
+		if (first) tuples = new ArrayList<Tuple>();
+		CsvTokenizer tokenizer = new CsvTokenizer(tupleDesc);
+		tokenizer.reset(ByteBuffer.wrap(data));
+		for (int row = 0; row < maxRows && tokenizer.nextRow(); row++) {
+			if (first) {
+				tuples.add(tokenizer.readTuple(null, missing));
+			} else {
+				tokenizer.readTuple(tuples.get(row), missing);
+			}
+		}
+		decoded.or(missing);
+
+		if (decoded.cardinality() >= tupleDesc.numFields() && columnCache != null) {
+			try {
+				columnCache.addPage(pid.getPageNumber(), start, data, tuples);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			data = null;
+		}
+	}
 	
 	@Override
 	public PageId getId() {
@@ -33,7 +110,7 @@ public class CsvPage implements Page {
 
 	@Override
 	public void markDirty(boolean dirty, TransactionId tid) {
-		isDirty = true;
+		isDirty = dirty;
 		lastTransaction = tid;
 	}
 
@@ -54,6 +131,7 @@ public class CsvPage implements Page {
 
 	@Override
 	public void setBeforeImage() {
+		decode(null);
 		synchronized(oldDataLock)
         {
         oldData = new ArrayList<Tuple>(tuples);
@@ -61,14 +139,75 @@ public class CsvPage implements Page {
 	}
 	
 	public Iterator<Tuple> iterator() {
+		return iterator(null);
+	}
+
+	/**
+	 * @param columns the columns the caller reads, or null for all of them;
+	 *   other fields of the tuples may be null
+	 */
+	public Iterator<Tuple> iterator(BitSet columns) {
+		decode(columns);
 		return tuples.iterator();
 	}
+
+	/**
+	 * Returns the rows that satisfy every filter. While the page still holds
+	 * its raw rows the filters are evaluated on those, and only matching rows
+	 * are decoded, into tuples of their own rather than the page's.
+	 *
+	 * @param columns the columns the caller reads, or null for all of them
+	 * @param filters predicates CsvTokenizer.canEvaluate accepts, or null
+	 */
+	public Iterator<Tuple> iterator(BitSet columns, List<Predicate> filters) {
+		if (filters == null || filters.isEmpty()) return iterator(columns);
+
+		List<Tuple> matching = new ArrayList<Tuple>();
+		synchronized (this) {
+			if (data != null) {
+				CsvTokenizer tokenizer = new CsvTokenizer(tupleDesc);
+				tokenizer.reset(ByteBuffer.wrap(data));
+				for (int row = 0; row < maxRows && tokenizer.nextRow(); row++) {
+					if (tokenizer.satisfiesAll(filters)) matching.add(tokenizer.readTuple(null, columns));
+				}
+				return matching.iterator();
+			}
+		}
+
+		for (Tuple t : tuples) {
+			boolean passes = true;
+			for (Predicate p : filters) {
+				if (t.getField(p.getField()) == null || !p.filter(t)) {
+					passes = false;
+					break;
+				}
+			}
+			if (passes) matching.add(t);
+		}
+		return matching.iterator();
+	}
 	
+	/**
+	 * Adds a summary of this page's rows to a zone map, from the raw rows
+	 * if the page still has them.
+	 *
+	 * @param checksum the checksum CsvPageIndex has for the page
+	 */
+	synchronized void summarize(CsvZoneMap zoneMap, long checksum) {
+		if (data != null) {
+			zoneMap.addPage(pid.getPageNumber(), ByteBuffer.wrap(data), checksum);
+		} else {
+			zoneMap.addPage(pid.getPageNumber(), tuples, checksum);
+		}
+	}
+
 	public int numTuples() {
+		decode(new BitSet());
 		return tuples.size();
 	}
 
 	public void insertTuple(Tuple t) {
+		decode(null);
 		tuples.add(t);
 	}
 
@@ -28,6 +28,11 @@ public class CsvPageId implements PageId {
 	public int getPageNumber() {
 		return pageNumber;
 	}
+
+	@Override
+	public PageId withPageNumber(int pageNumber) {
+		return new CsvPageId(tableId, pageNumber);
+	}
 	
 	/**
      * @return a hash code for this page, represented by the concatenation of
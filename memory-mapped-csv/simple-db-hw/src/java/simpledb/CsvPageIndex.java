@@ -0,0 +1,650 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sparse index from the page number of a CSV backed table to the byte offset
+ * of the first row on that page. The index is built lazily by scanning the
+ * CSV for line breaks and is persisted next to the CSV (as <tt>file.idx</tt>)
+ * so that it only ever has to be extended over bytes it hasn't seen yet.
+ * <p>
+ * The index keeps a checksum of the bytes it covers, which lets
+ * {@link #update()} tell a CSV that only grew at the tail apart from one that
+ * was rewritten. A persisted index whose CSV has changed since it was saved is
+ * only reused if that checksum still matches.
+ * <p>
+ * Every complete page also has a checksum of its own bytes. When the CSV is
+ * rewritten, the pages whose checksums come out the same after rebuilding the
+ * index hold the same rows as before, so {@link #getChangedPages()} reports
+ * only the others as changed.
+ * <p>
+ * Only complete rows (terminated by a newline) are recorded in the index. A
+ * trailing row without a newline is still counted by {@link #numRows()}, but
+ * will be rescanned once more data is appended after it. Blank lines are
+ * skipped, the same way HeapFileEncoder skips them, and newlines inside
+ * double-quoted fields don't end a row.
+ * <p>
+ * The rows of a CSV can also be counted without building the index (see
+ * {@link #countRows()}), so that a table can tell how many pages it has
+ * before it is first read.
+ */
+public class CsvPageIndex {
+
+	/** How a CSV changed since its index was last brought up to date. */
+	public enum Change {
+		/** Nothing was added or rewritten. */
+		NONE,
+		/** Rows were only added at the end; existing pages are unchanged. */
+		APPEND,
+		/** Bytes that were already indexed changed; see getChangedPages(). */
+		REWRITE
+	}
+
+	private static final int MAGIC = 0x43535649;
+	private static final int VERSION = 6;
+	static final long CHECKSUM_SEED = 0xcbf29ce484222325L;
+	private static final long CHECKSUM_PRIME = 0x100000001b3L;
+	private static final int SCAN_BUFFER_SIZE = 1 << 16;
+	/** Bytes of the CSV counted by each task of countRows(); larger CSVs are counted in parallel. */
+	static final int COUNT_CHUNK_SIZE = 8 << 20;
+
+	private File csv;
+	private File indexFile;
+	private int rowsPerPage;
+
+	// offsets[p] is the byte offset of the first row of page p
+	private long[] offsets;
+	private int numOffsets;
+	// pageChecksums[p] is the checksum of the bytes of page p, for every page
+	// but the last, tailChecksum that of the last page's indexed bytes, and
+	// endChecksum that of all of its bytes up to csvLength
+	private long[] pageChecksums;
+	private long tailChecksum;
+	private long endChecksum;
+	// pages that changed in the last update()
+	private BitSet changedPages;
+	// number of bytes of the csv covered by complete rows
+	private long indexedLength;
+	private int numCompleteRows;
+	// FNV-1a hash of the first indexedLength bytes of the csv
+	private long prefixChecksum;
+	// length of the csv when the index was last refreshed
+	private long csvLength;
+	// length and modification time of the csv when the index was saved
+	private long savedLength;
+	private long savedModified;
+	private boolean loaded;
+	// the rows countRows() counted, and the length and modification time of
+	// the csv when it did
+	private int countedRows;
+	private long countedLength;
+	private long countedModified;
+
+	public CsvPageIndex(File csv, int rowsPerPage) {
+		this.csv = csv;
+		this.indexFile = new File(csv.getPath() + ".idx");
+		this.rowsPerPage = rowsPerPage;
+		clear();
+		this.loaded = false;
+		this.countedRows = -1;
+	}
+
+	/**
+	 * Extends the index over rows appended to the CSV, loading it from disk the
+	 * first time. This doesn't check that the indexed bytes are unchanged, so
+	 * it should only be used after appending to the CSV; use {@link #update()}
+	 * when the CSV may have been changed by someone else.
+	 */
+	public synchronized void refresh() throws IOException {
+		ensureLoaded();
+		extend();
+	}
+
+	/**
+	 * Brings the index up to date with the CSV, working out whether it was
+	 * appended to or rewritten since the last refresh. On an append only the
+	 * new tail is scanned; on a rewrite the index is rebuilt.
+	 *
+	 * @return how the CSV changed
+	 */
+	public synchronized Change update() throws IOException {
+		ensureLoaded();
+
+		long length = csv.length();
+		int oldNumPages = numPages();
+		Change change;
+		if (length < indexedLength || checksum(indexedLength) != prefixChecksum) {
+			long[] oldChecksums = Arrays.copyOf(pageChecksums, numOffsets - 1);
+			clear();
+			extend();
+			change = Change.REWRITE;
+
+			changedPages = new BitSet();
+			changedPages.set(0, Math.max(oldNumPages, numPages()));
+			for (int p = 0; p < oldChecksums.length && p < numOffsets - 1; p++) {
+				if (oldChecksums[p] == pageChecksums[p]) changedPages.clear(p);
+			}
+		} else {
+			change = length == csvLength && length == indexedLength ? Change.NONE : Change.APPEND;
+			extend();
+
+			changedPages = new BitSet();
+			if (change == Change.APPEND) changedPages.set(oldNumPages - 1, numPages());
+		}
+		return change;
+	}
+
+	/**
+	 * @return the pages whose rows may have changed in the last
+	 *         {@link #update()}, including pages that were added or removed
+	 */
+	public synchronized BitSet getChangedPages() {
+		return (BitSet) changedPages.clone();
+	}
+
+	/**
+	 * Throws away everything indexed so far and rebuilds the index from the
+	 * start of the CSV.
+	 */
+	public synchronized void reset() throws IOException {
+		clear();
+		loaded = true;
+		extend();
+	}
+
+	/**
+	 * @return a copy of the index as it is now, which later updates of this
+	 *         index don't change; the copy is only meant for looking pages up
+	 */
+	public synchronized CsvPageIndex copy() {
+		CsvPageIndex copy = new CsvPageIndex(csv, rowsPerPage);
+		copy.offsets = Arrays.copyOf(offsets, numOffsets);
+		copy.numOffsets = numOffsets;
+		copy.pageChecksums = Arrays.copyOf(pageChecksums, numOffsets);
+		copy.tailChecksum = tailChecksum;
+		copy.endChecksum = endChecksum;
+		copy.indexedLength = indexedLength;
+		copy.numCompleteRows = numCompleteRows;
+		copy.prefixChecksum = prefixChecksum;
+		copy.csvLength = csvLength;
+		copy.loaded = true;
+		return copy;
+	}
+
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+
+	public synchronized int numRows() {
+		return numCompleteRows + (csvLength > indexedLength ? 1 : 0);
+	}
+
+	public synchronized int numPages() {
+		return ((numRows() - 1) / rowsPerPage) + 1;
+	}
+
+	/**
+	 * Counts the rows of the CSV without building the index, if it hasn't
+	 * been: a saved index is used if the CSV hasn't changed since it was
+	 * saved, and otherwise the CSV is mapped and its newlines counted, in
+	 * parallel for CSVs over COUNT_CHUNK_SIZE. The count is kept until the
+	 * length or modification time of the CSV changes.
+	 *
+	 * @return the number of rows numRows() gives once the index is built
+	 */
+	public synchronized int countRows() throws IOException {
+		if (loaded) return numRows();
+
+		long length = csv.length();
+		long modified = csv.lastModified();
+		if (countedRows < 0 || countedLength != length || countedModified != modified) {
+			countedRows = savedRows(length, modified);
+			if (countedRows < 0) countedRows = countRows(csv, length, COUNT_CHUNK_SIZE);
+			countedLength = length;
+			countedModified = modified;
+		}
+		return countedRows;
+	}
+
+	/** @return the number of pages numPages() gives once the index is built; see countRows() */
+	public synchronized int countPages() throws IOException {
+		return ((countRows() - 1) / rowsPerPage) + 1;
+	}
+
+	/** @return the byte offset of the first row on the given page */
+	public synchronized long getPageStart(int pageNumber) {
+		if (pageNumber < numOffsets) return offsets[pageNumber];
+		return csvLength;
+	}
+
+	/** @return the byte offset just past the last row on the given page */
+	public synchronized long getPageEnd(int pageNumber) {
+		if (pageNumber + 1 < numOffsets) return offsets[pageNumber + 1];
+		return csvLength;
+	}
+
+	/**
+	 * @return whether a page is followed by another, so that its rows are
+	 *         complete and it has a checksum of its own
+	 */
+	public synchronized boolean isComplete(int pageNumber) {
+		return pageNumber >= 0 && pageNumber < numOffsets - 1;
+	}
+
+	/**
+	 * @return the checksum of the bytes of a complete page; see isComplete()
+	 */
+	public synchronized long getPageChecksum(int pageNumber) {
+		if (!isComplete(pageNumber)) throw new IllegalArgumentException("page " + pageNumber + " isn't complete");
+		return pageChecksums[pageNumber];
+	}
+
+	/**
+	 * @return the checksum of the bytes from getPageStart() to getPageEnd()
+	 *         of any page: the checksum of a complete page, and for the last
+	 *         page that of its bytes up to the length of the CSV when the
+	 *         index was last refreshed, partial row included
+	 */
+	public synchronized long getRangeChecksum(int pageNumber) {
+		if (isComplete(pageNumber)) return pageChecksums[pageNumber];
+		if (pageNumber == numOffsets - 1) return endChecksum;
+		return CHECKSUM_SEED;
+	}
+
+	public int getRowsPerPage() {
+		return rowsPerPage;
+	}
+
+	private void ensureLoaded() throws IOException {
+		if (loaded) return;
+
+		loaded = true;
+		if (!load()) {
+			clear();
+		} else if (savedLength != csv.length() || savedModified != csv.lastModified()) {
+			// the csv changed since the index was saved; keep it only if the
+			// indexed bytes are still the same
+			if (csv.length() < indexedLength || checksum(indexedLength) != prefixChecksum) clear();
+		}
+	}
+
+	private void extend() throws IOException {
+		long length = csv.length();
+		if (length < indexedLength || !endsWithNewline(indexedLength)) {
+			clear();
+		}
+
+		boolean changed = length != csvLength;
+		if (length > indexedLength) {
+			scan(length);
+		} else {
+			endChecksum = tailChecksum;
+		}
+		csvLength = length;
+		if (changed) save();
+	}
+
+	private void clear() {
+		offsets = new long[16];
+		offsets[0] = 0;
+		numOffsets = 1;
+		pageChecksums = new long[16];
+		tailChecksum = CHECKSUM_SEED;
+		endChecksum = CHECKSUM_SEED;
+		changedPages = new BitSet();
+		indexedLength = 0;
+		numCompleteRows = 0;
+		prefixChecksum = CHECKSUM_SEED;
+		csvLength = 0;
+	}
+
+	/** Ends the last page, which had the given checksum, at offset. */
+	private void addOffset(long offset, long pageChecksum) {
+		if (numOffsets == offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			pageChecksums = Arrays.copyOf(pageChecksums, offsets.length);
+		}
+		pageChecksums[numOffsets - 1] = pageChecksum;
+		offsets[numOffsets++] = offset;
+	}
+
+	/**
+	 * Scans [indexedLength, length) for newlines, recording the start of every
+	 * page along the way.
+	 */
+	private void scan(long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(csv, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+			long pos = indexedLength;
+			long rowStart = indexedLength;
+			long checksum = prefixChecksum;
+			long rowStartChecksum = prefixChecksum;
+			long pageChecksum = tailChecksum;
+			long rowStartPageChecksum = tailChecksum;
+			boolean blank = true;
+			int state = CsvTokenizer.FIELD_START;
+
+			while (pos < length) {
+				buffer.clear();
+				int read = fc.read(buffer, pos);
+				if (read <= 0) break;
+
+				for (int i = 0; i < read; i++) {
+					byte b = buffer.get(i);
+					checksum = (checksum ^ (b & 0xff)) * CHECKSUM_PRIME;
+					pageChecksum = (pageChecksum ^ (b & 0xff)) * CHECKSUM_PRIME;
+					boolean rowEnd = b == '\n' && state != CsvTokenizer.QUOTED;
+					state = CsvTokenizer.nextState(state, b);
+					if (rowEnd) {
+						if (!blank) {
+							numCompleteRows++;
+							if (numCompleteRows % rowsPerPage == 0) {
+								addOffset(pos + i + 1, pageChecksum);
+								pageChecksum = CHECKSUM_SEED;
+							}
+						} else if (numCompleteRows % rowsPerPage == 0) {
+							// keep page starts pointing at real rows
+							offsets[numOffsets - 1] = pos + i + 1;
+							pageChecksum = CHECKSUM_SEED;
+						}
+						rowStart = pos + i + 1;
+						rowStartChecksum = checksum;
+						rowStartPageChecksum = pageChecksum;
+						blank = true;
+					} else if (b != '\r') {
+						blank = false;
+					}
+				}
+				pos += read;
+			}
+
+			indexedLength = rowStart;
+			prefixChecksum = rowStartChecksum;
+			tailChecksum = rowStartPageChecksum;
+			endChecksum = pageChecksum;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Counts the rows in the first length bytes of a CSV the way the index
+	 * does, a chunk of chunkSize bytes per task.
+	 */
+	static int countRows(File csv, long length, int chunkSize) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(csv, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			List<RowCount> counts = new ArrayList<>();
+			for (long start = 0; start < length; start += chunkSize) {
+				counts.add(new RowCount(fc, start, (int) Math.min(chunkSize, length - start)));
+			}
+			try {
+				if (counts.size() == 1) {
+					counts.get(0).invoke();
+				} else {
+					ForkJoinTask.invokeAll(counts);
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			// stitch the chunks together, each from the state the last one ended in
+			int rows = 0;
+			int s = CsvTokenizer.FIELD_START;
+			boolean inRow = false;
+			long rowStart = 0;
+			for (RowCount count : counts) {
+				rows += count.rows[s];
+				if (count.lastRowEnd[s] >= 0) {
+					// a row that started in an earlier chunk ended in this one
+					if (inRow && count.firstRowBlank[s]) rows++;
+					rowStart = count.lastRowEnd[s];
+					inRow = count.endsInRow[s];
+				} else {
+					inRow |= count.endsInRow[s];
+				}
+				s = count.endState[s];
+			}
+			return rows + (length > rowStart ? 1 : 0);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Counts the rows that end in one chunk of a CSV, for the chunk starting
+	 * in each of the quote states, since which it is depends on the chunks
+	 * before it.
+	 */
+	private static class RowCount extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private FileChannel channel;
+		private long start;
+		private int size;
+		// starting in each quote state: the state the chunk ends in, the rows
+		// that end in the chunk and aren't blank within it, the offset just
+		// past the last one (-1 if none ends), whether the first one was blank
+		// within the chunk, and whether there is more than blank space after
+		// the last one
+		int[] endState = new int[CsvTokenizer.NUM_STATES];
+		int[] rows = new int[CsvTokenizer.NUM_STATES];
+		long[] lastRowEnd = { -1, -1, -1, -1 };
+		boolean[] firstRowBlank = new boolean[CsvTokenizer.NUM_STATES];
+		boolean[] endsInRow = new boolean[CsvTokenizer.NUM_STATES];
+
+		RowCount(FileChannel channel, long start, int size) {
+			this.channel = channel;
+			this.start = start;
+			this.size = size;
+		}
+
+		@Override
+		protected void compute() {
+			MappedByteBuffer data;
+			try {
+				data = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			int[] state = new int[CsvTokenizer.NUM_STATES];
+			boolean[] blank = new boolean[CsvTokenizer.NUM_STATES];
+			for (int s = 0; s < state.length; s++) {
+				state[s] = s;
+				blank[s] = true;
+			}
+			for (int i = 0; i < size; i++) {
+				byte b = data.get(i);
+				for (int s = 0; s < state.length; s++) {
+					if (b == '\n' && state[s] != CsvTokenizer.QUOTED) {
+						if (lastRowEnd[s] < 0) firstRowBlank[s] = blank[s];
+						if (!blank[s]) rows[s]++;
+						lastRowEnd[s] = start + i + 1;
+						blank[s] = true;
+					} else if (b != '\r') {
+						blank[s] = false;
+					}
+					state[s] = CsvTokenizer.nextState(state[s], b);
+				}
+			}
+			for (int s = 0; s < state.length; s++) {
+				endState[s] = state[s];
+				endsInRow[s] = !blank[s];
+			}
+		}
+
+	}
+
+	/** @return the checksum of the first length bytes of the csv */
+	private long checksum(long length) throws IOException {
+		return checksum(csv, length);
+	}
+
+	/**
+	 * @return the checksum of the first length bytes of a file, the same
+	 *         checksum this index keeps of the bytes it covers
+	 */
+	static long checksum(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+			long checksum = CHECKSUM_SEED;
+			long pos = 0;
+
+			while (pos < length) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), length - pos));
+				int read = fc.read(buffer, pos);
+				if (read <= 0) break;
+
+				checksum = checksum(checksum, buffer.array(), 0, read);
+				pos += read;
+			}
+			return checksum;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Continues a checksum over more bytes, so that the checksum of a prefix
+	 * can be extended without reading the prefix again.
+	 *
+	 * @param checksum the checksum of the bytes before these, or
+	 *                 {@link #CHECKSUM_SEED} for the start of a file
+	 */
+	static long checksum(long checksum, byte[] data, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			checksum = (checksum ^ (data[i] & 0xff)) * CHECKSUM_PRIME;
+		}
+		return checksum;
+	}
+
+	/** Continues a checksum over the bytes between a buffer's position and limit. */
+	static long checksum(long checksum, ByteBuffer data) {
+		for (int i = data.position(); i < data.limit(); i++) {
+			checksum = (checksum ^ (data.get(i) & 0xff)) * CHECKSUM_PRIME;
+		}
+		return checksum;
+	}
+
+	private boolean endsWithNewline(long offset) throws IOException {
+		if (offset == 0) return true;
+
+		RandomAccessFile raf = new RandomAccessFile(csv, "r");
+		try {
+			raf.seek(offset - 1);
+			return raf.read() == '\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the rows of the saved index if it was saved with the CSV at the
+	 *         given length and modification time, or -1 if it wasn't
+	 */
+	private int savedRows(long length, long modified) {
+		if (!indexFile.exists()) return -1;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != rowsPerPage) return -1;
+				if (in.readLong() != length || in.readLong() != modified) return -1;
+				long indexed = in.readLong();
+				in.readLong();
+				in.readLong();
+				in.readLong();
+				return in.readInt() + (length > indexed ? 1 : 0);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private boolean load() {
+		if (!indexFile.exists()) return false;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != rowsPerPage) return false;
+				savedLength = in.readLong();
+				savedModified = in.readLong();
+				csvLength = savedLength;
+				indexedLength = in.readLong();
+				prefixChecksum = in.readLong();
+				tailChecksum = in.readLong();
+				endChecksum = in.readLong();
+				numCompleteRows = in.readInt();
+				numOffsets = in.readInt();
+				offsets = new long[Math.max(16, numOffsets)];
+				pageChecksums = new long[offsets.length];
+				for (int i = 0; i < numOffsets; i++) {
+					offsets[i] = in.readLong();
+					pageChecksums[i] = in.readLong();
+				}
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void save() {
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(rowsPerPage);
+				out.writeLong(csvLength);
+				out.writeLong(csv.lastModified());
+				out.writeLong(indexedLength);
+				out.writeLong(prefixChecksum);
+				out.writeLong(tailChecksum);
+				out.writeLong(endChecksum);
+				out.writeInt(numCompleteRows);
+				out.writeInt(numOffsets);
+				for (int i = 0; i < numOffsets; i++) {
+					out.writeLong(offsets[i]);
+					out.writeLong(pageChecksums[i]);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// the index is only a cache; it will be rebuilt next time
+			indexFile.delete();
+		}
+	}
+
+}
@@ -0,0 +1,357 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Splits CSV rows into fields straight from their bytes. A tokenizer keeps the
+ * field boundaries of the current row in arrays it reuses from row to row, and
+ * ints are parsed from the bytes without building a String first, so walking
+ * a buffer of rows and reading their primitive values with getInt allocates
+ * nothing.
+ * <p>
+ * When rows are decoded into tuples, the tokenizer remembers the last field it
+ * decoded for each column, and hands out that same field again while the
+ * column keeps its value, the way sorted or low-cardinality columns do. Fields
+ * are immutable, so tuples can share them; a run of equal values costs one
+ * field rather than one per row.
+ * <p>
+ * Fields may be double-quoted, in which case they can contain commas and
+ * newlines, and "" stands for a single quote. A carriage return before a
+ * newline is ignored, and blank rows are skipped.
+ * <p>
+ * A tokenizer is not thread-safe; give each scan its own.
+ */
+public class CsvTokenizer {
+
+	private static final int MAX_STRING_LENGTH = 2048;
+
+	/*
+	 * The quoting rules as states between two bytes, for code that finds row
+	 * boundaries without tokenizing the rows: a quote only opens a field at
+	 * the start of the field, and "" inside a quoted field stands for a quote,
+	 * so a quote anywhere else is just part of the field.
+	 */
+	/** At the start of a field, where a quote opens a quoted field. */
+	static final int FIELD_START = 0;
+	/** Inside a field that wasn't quoted. */
+	static final int UNQUOTED = 1;
+	/** Inside a quoted field, where newlines and commas don't end anything. */
+	static final int QUOTED = 2;
+	/** Just past a quote in a quoted field, which closes it unless another quote follows. */
+	static final int CLOSED = 3;
+	static final int NUM_STATES = 4;
+
+	private TupleDesc tupleDesc;
+	private ByteBuffer data;
+	private int pos;
+	private int limit;
+
+	// the fields of the current row; for quoted fields start and end exclude the quotes
+	private int numFields;
+	private int[] starts;
+	private int[] ends;
+	private boolean[] quoted;
+	private boolean[] escaped;
+
+	private byte[] scratch;
+	// the field last decoded for each column
+	private Field[] lastValues;
+
+	public CsvTokenizer(TupleDesc td) {
+		this.tupleDesc = td;
+		int n = Math.max(td.numFields(), 1);
+		this.starts = new int[n];
+		this.ends = new int[n];
+		this.quoted = new boolean[n];
+		this.escaped = new boolean[n];
+		this.scratch = new byte[64];
+		this.lastValues = new Field[td.numFields()];
+	}
+
+	/**
+	 * Starts tokenizing the bytes between the buffer's position and limit,
+	 * which should start at a row boundary. The buffer itself is not moved.
+	 */
+	public void reset(ByteBuffer data) {
+		this.data = data;
+		this.pos = data.position();
+		this.limit = data.limit();
+		this.numFields = 0;
+	}
+
+	/** @return the offset in the buffer just past the current row */
+	public int position() {
+		return pos;
+	}
+
+	/**
+	 * Moves to the next row that isn't blank.
+	 *
+	 * @return false if there are no rows left
+	 */
+	public boolean nextRow() {
+		while (pos < limit) {
+			pos = tokenizeRow(pos);
+			if (numFields > 1 || ends[0] > starts[0] || quoted[0]) return true;
+		}
+		numFields = 0;
+		return false;
+	}
+
+	/** @return the number of fields in the current row */
+	public int numFields() {
+		return numFields;
+	}
+
+	/**
+	 * Parses a field of the current row as a decimal int, ignoring
+	 * surrounding spaces.
+	 *
+	 * @throws NumberFormatException if the field isn't an int
+	 */
+	public int getInt(int field) {
+		int start = starts[field];
+		int end = ends[field];
+		while (start < end && data.get(start) == ' ') start++;
+		while (end > start && data.get(end - 1) == ' ') end--;
+
+		boolean negative = false;
+		if (start < end && (data.get(start) == '-' || data.get(start) == '+')) {
+			negative = data.get(start) == '-';
+			start++;
+		}
+		if (start == end) throw new NumberFormatException("empty int field " + field);
+
+		// accumulate negatively so that Integer.MIN_VALUE parses
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = data.get(i) - '0';
+			if (digit < 0 || digit > 9 || value < (Integer.MIN_VALUE + digit) / 10) {
+				throw new NumberFormatException("bad int field " + field);
+			}
+			value = value * 10 - digit;
+		}
+		if (!negative && value == Integer.MIN_VALUE) throw new NumberFormatException("bad int field " + field);
+		return negative ? value : -value;
+	}
+
+	/** Decodes a field of the current row, undoing any quoting. */
+	public String getString(int field) {
+		int length = unescape(field);
+		return new String(scratch, 0, Math.min(length, MAX_STRING_LENGTH), StandardCharsets.ISO_8859_1);
+	}
+
+	/** @return a new tuple holding the current row */
+	public Tuple readTuple() {
+		return readTuple(null, null);
+	}
+
+	/**
+	 * Sets fields of a tuple to the current row's. Only the fields in columns
+	 * are decoded; the others are left as they were (null in a new tuple).
+	 * Skipped fields cost nothing beyond finding where they end.
+	 *
+	 * @param tuple a tuple to set the fields of, such as one an earlier call
+	 *              decoded other columns of this row into, or null to create
+	 *              a new one
+	 * @param columns the fields to decode, or null for all of them
+	 * @return the tuple
+	 */
+	public Tuple readTuple(Tuple tuple, BitSet columns) {
+		if (tuple == null) tuple = new Tuple(tupleDesc);
+		int n = Math.min(numFields, tupleDesc.numFields());
+		for (int i = 0; i < n; i++) {
+			if (columns != null && !columns.get(i)) continue;
+			Field value = readField(i);
+			if (value != null) tuple.setField(i, value);
+		}
+		return tuple;
+	}
+
+	/**
+	 * @return a field of the current row, which is the field this tokenizer
+	 *   last returned for the column if the value is the same
+	 */
+	private Field readField(int field) {
+		Field last = lastValues[field];
+		Type type = tupleDesc.getFieldType(field);
+		if (type.equals(Type.INT_TYPE)) {
+			int value = getInt(field);
+			if (last == null || ((IntField) last).getValue() != value) {
+				lastValues[field] = new IntField(value);
+			}
+		} else if (type.equals(Type.STRING_TYPE)) {
+			if (last == null || !matches(field, ((StringField) last).getValue())) {
+				lastValues[field] = new StringField(getString(field), MAX_STRING_LENGTH);
+			}
+		}
+		return lastValues[field];
+	}
+
+	/**
+	 * @return whether satisfies can evaluate p on rows of td: int
+	 *   comparisons, and string equality
+	 */
+	public static boolean canEvaluate(TupleDesc td, Predicate p) {
+		if (p.getField() < 0 || p.getField() >= td.numFields()) return false;
+		Type type = td.getFieldType(p.getField());
+		if (type.equals(Type.INT_TYPE)) return p.getOperand() instanceof IntField;
+		return type.equals(Type.STRING_TYPE) && p.getOperand() instanceof StringField
+				&& p.getOp() == Predicate.Op.EQUALS;
+	}
+
+	/**
+	 * @return the quote state after byte b, given the state before it; a
+	 *   newline ends a row unless the state before it is QUOTED
+	 */
+	static int nextState(int state, byte b) {
+		switch (state) {
+		case QUOTED:
+			return b == '"' ? CLOSED : QUOTED;
+		case FIELD_START:
+		case CLOSED:
+			if (b == '"') return QUOTED;
+			// fall through
+		default:
+			return b == ',' || b == '\n' ? FIELD_START : UNQUOTED;
+		}
+	}
+
+	/**
+	 * @return the quote state after byte prev in the most likely case, that
+	 *   it wasn't inside a quoted field
+	 */
+	static int guessState(byte prev) {
+		if (prev == ',' || prev == '\n') return FIELD_START;
+		return prev == '"' ? CLOSED : UNQUOTED;
+	}
+
+	/**
+	 * Evaluates a predicate on the bytes of the current row, without decoding
+	 * it into a tuple. The predicate must be one canEvaluate accepts. A row
+	 * too short to have the field doesn't satisfy it.
+	 *
+	 * @throws NumberFormatException if the field should be an int but isn't
+	 */
+	public boolean satisfies(Predicate p) {
+		int field = p.getField();
+		if (field >= numFields) return false;
+		if (p.getOperand() instanceof StringField) {
+			return matches(field, ((StringField) p.getOperand()).getValue());
+		}
+
+		int value = getInt(field);
+		int operand = ((IntField) p.getOperand()).getValue();
+		switch (p.getOp()) {
+		case EQUALS:
+		case LIKE:
+			return value == operand;
+		case NOT_EQUALS:
+			return value != operand;
+		case GREATER_THAN:
+			return value > operand;
+		case GREATER_THAN_OR_EQ:
+			return value >= operand;
+		case LESS_THAN:
+			return value < operand;
+		case LESS_THAN_OR_EQ:
+			return value <= operand;
+		}
+		return false;
+	}
+
+	/** @return whether the current row satisfies every predicate in filters */
+	public boolean satisfiesAll(List<Predicate> filters) {
+		for (int i = 0; i < filters.size(); i++) {
+			if (!satisfies(filters.get(i))) return false;
+		}
+		return true;
+	}
+
+	/** @return the offset just past the row starting at p */
+	private int tokenizeRow(int p) {
+		numFields = 0;
+		while (true) {
+			int start;
+			int end;
+			boolean isQuoted = false;
+			boolean isEscaped = false;
+			if (p < limit && data.get(p) == '"') {
+				isQuoted = true;
+				start = ++p;
+				while (p < limit) {
+					if (data.get(p) == '"') {
+						if (p + 1 < limit && data.get(p + 1) == '"') {
+							isEscaped = true;
+							p += 2;
+							continue;
+						}
+						break;
+					}
+					p++;
+				}
+				end = p;
+				// anything between the closing quote and the next delimiter is dropped
+				while (p < limit && data.get(p) != ',' && data.get(p) != '\n') p++;
+			} else {
+				start = p;
+				while (p < limit && data.get(p) != ',' && data.get(p) != '\n') p++;
+				end = p;
+				if (end > start && data.get(end - 1) == '\r' && (p == limit || data.get(p) == '\n')) end--;
+			}
+			addField(start, end, isQuoted, isEscaped);
+
+			if (p < limit && data.get(p) == ',') {
+				p++;
+				continue;
+			}
+			return p < limit ? p + 1 : p;
+		}
+	}
+
+	private void addField(int start, int end, boolean isQuoted, boolean isEscaped) {
+		if (numFields == starts.length) {
+			int n = starts.length * 2;
+			starts = Arrays.copyOf(starts, n);
+			ends = Arrays.copyOf(ends, n);
+			quoted = Arrays.copyOf(quoted, n);
+			escaped = Arrays.copyOf(escaped, n);
+		}
+		starts[numFields] = start;
+		ends[numFields] = end;
+		quoted[numFields] = isQuoted;
+		escaped[numFields] = isEscaped;
+		numFields++;
+	}
+
+	/** Copies a field into scratch, collapsing "" to ". @return its length */
+	private int unescape(int field) {
+		int start = starts[field];
+		int end = ends[field];
+		if (scratch.length < end - start) {
+			scratch = new byte[Math.max(end - start, scratch.length * 2)];
+		}
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			byte b = data.get(i);
+			scratch[length++] = b;
+			if (b == '"' && escaped[field]) i++;
+		}
+		return length;
+	}
+
+	/** @return whether a field of the current row decodes to s */
+	private boolean matches(int field, String s) {
+		int length = unescape(field);
+		if (Math.min(length, MAX_STRING_LENGTH) != s.length()) return false;
+		for (int i = 0; i < s.length(); i++) {
+			if ((scratch[i] & 0xff) != s.charAt(i)) return false;
+		}
+		return true;
+	}
+
+}
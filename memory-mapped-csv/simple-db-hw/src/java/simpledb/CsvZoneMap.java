@@ -0,0 +1,322 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-page summaries of the rows of a CSV backed table, kept next to the CSV
+ * (as <tt>file.zones</tt>), that let a filtered scan skip pages none of whose
+ * rows can match without reading them. For each page the zone map records the
+ * smallest and largest value of every int column, and the smallest and
+ * largest leading {@link #PREFIX_LENGTH} characters of every string column.
+ * A page is summarized by the first filtered scan that reads it, so tables
+ * that are never filtered don't build summaries at all.
+ * <p>
+ * Each summary is stored with the checksum of the page bytes it was built
+ * from, and is only used while CsvPageIndex has the same checksum for the
+ * page. That way a summary can never be used for rows it didn't see: pages
+ * rewritten in the CSV, the last page (which can still gain rows) and pages
+ * that so far only hold inserted rows are always read.
+ */
+public class CsvZoneMap {
+
+	private static final int MAGIC = 0x43535a4d;
+	private static final int VERSION = 1;
+
+	/** Number of leading characters of a string a page summary keeps. */
+	public static final int PREFIX_LENGTH = 8;
+
+	private static class Zone {
+		long checksum;
+		// for int fields, the range of values; for string fields, of prefixes
+		int[] min;
+		int[] max;
+		String[] minPrefix;
+		String[] maxPrefix;
+
+		Zone(int numFields) {
+			min = new int[numFields];
+			max = new int[numFields];
+			minPrefix = new String[numFields];
+			maxPrefix = new String[numFields];
+			for (int i = 0; i < numFields; i++) {
+				min[i] = Integer.MAX_VALUE;
+				max[i] = Integer.MIN_VALUE;
+			}
+		}
+
+		void add(int field, int value) {
+			min[field] = Math.min(min[field], value);
+			max[field] = Math.max(max[field], value);
+		}
+
+		void add(int field, String value) {
+			String prefix = prefix(value);
+			if (minPrefix[field] == null || prefix.compareTo(minPrefix[field]) < 0) minPrefix[field] = prefix;
+			if (maxPrefix[field] == null || prefix.compareTo(maxPrefix[field]) > 0) maxPrefix[field] = prefix;
+		}
+
+		/** @return whether some row summarized here could satisfy p */
+		boolean mayMatch(Predicate p) {
+			int field = p.getField();
+			if (p.getOperand() instanceof StringField) {
+				if (p.getOp() != Predicate.Op.EQUALS) return true;
+				if (minPrefix[field] == null) return false;
+				String prefix = prefix(((StringField) p.getOperand()).getValue());
+				return prefix.compareTo(minPrefix[field]) >= 0 && prefix.compareTo(maxPrefix[field]) <= 0;
+			}
+			if (!(p.getOperand() instanceof IntField)) return true;
+
+			int operand = ((IntField) p.getOperand()).getValue();
+			switch (p.getOp()) {
+			case EQUALS:
+			case LIKE:
+				return min[field] <= operand && operand <= max[field];
+			case NOT_EQUALS:
+				return min[field] <= max[field] && (min[field] != operand || max[field] != operand);
+			case GREATER_THAN:
+				return max[field] > operand;
+			case GREATER_THAN_OR_EQ:
+				return max[field] >= operand;
+			case LESS_THAN:
+				return min[field] < operand;
+			case LESS_THAN_OR_EQ:
+				return min[field] <= operand;
+			}
+			return true;
+		}
+	}
+
+	private File zoneFile;
+	private TupleDesc tupleDesc;
+	private Map<Integer, Zone> zones;
+	private boolean loaded;
+	private boolean dirty;
+
+	public CsvZoneMap(File csv, TupleDesc td) {
+		this.zoneFile = new File(csv.getPath() + ".zones");
+		this.tupleDesc = td;
+		this.zones = new HashMap<>();
+		this.loaded = false;
+		this.dirty = false;
+	}
+
+	private static String prefix(String s) {
+		return s.length() > PREFIX_LENGTH ? s.substring(0, PREFIX_LENGTH) : s;
+	}
+
+	/**
+	 * Summarizes a page from its bytes in the CSV, unless it already is. A
+	 * page with a field that doesn't parse isn't summarized.
+	 *
+	 * @param data the bytes of the page's rows, between position and limit
+	 */
+	public void addPage(int pageNumber, ByteBuffer data) {
+		addPage(pageNumber, data, CsvPageIndex.checksum(CsvPageIndex.CHECKSUM_SEED, data));
+	}
+
+	/**
+	 * Summarizes rows from their bytes in a CSV, unless they already are,
+	 * recording the summary under a checksum computed by the caller.
+	 *
+	 * @param data the bytes of the rows, between position and limit
+	 */
+	public synchronized void addPage(int pageNumber, ByteBuffer data, long checksum) {
+		ensureLoaded();
+		Zone zone = zones.get(pageNumber);
+		if (zone != null && zone.checksum == checksum) return;
+
+		zone = new Zone(tupleDesc.numFields());
+		zone.checksum = checksum;
+		CsvTokenizer tokenizer = new CsvTokenizer(tupleDesc);
+		tokenizer.reset(data);
+		try {
+			while (tokenizer.nextRow()) {
+				int n = Math.min(tokenizer.numFields(), tupleDesc.numFields());
+				for (int i = 0; i < n; i++) {
+					if (tupleDesc.getFieldType(i).equals(Type.INT_TYPE)) {
+						zone.add(i, tokenizer.getInt(i));
+					} else {
+						zone.add(i, tokenizer.getString(i));
+					}
+				}
+			}
+		} catch (NumberFormatException e) {
+			zones.remove(pageNumber);
+			return;
+		}
+		zones.put(pageNumber, zone);
+		dirty = true;
+	}
+
+	/**
+	 * Summarizes a page from rows that were already decoded, unless it
+	 * already is.
+	 *
+	 * @param checksum the checksum CsvPageIndex has for the page's bytes
+	 */
+	public synchronized void addPage(int pageNumber, List<Tuple> tuples, long checksum) {
+		ensureLoaded();
+		Zone zone = zones.get(pageNumber);
+		if (zone != null && zone.checksum == checksum) return;
+
+		zone = new Zone(tupleDesc.numFields());
+		zone.checksum = checksum;
+		for (Tuple t : tuples) {
+			for (int i = 0; i < tupleDesc.numFields(); i++) {
+				Field f = t.getField(i);
+				if (f instanceof IntField) {
+					zone.add(i, ((IntField) f).getValue());
+				} else if (f instanceof StringField) {
+					zone.add(i, ((StringField) f).getValue());
+				}
+			}
+		}
+		zones.put(pageNumber, zone);
+		dirty = true;
+	}
+
+	/**
+	 * @param filters predicates CsvTokenizer.canEvaluate accepts
+	 * @param index the index of the CSV as it is now
+	 * @return true if no row of the page can satisfy all of the filters
+	 */
+	public synchronized boolean canSkip(int pageNumber, List<Predicate> filters, CsvPageIndex index) {
+		if (!index.isComplete(pageNumber)) return false;
+		return canSkip(pageNumber, filters, index.getPageChecksum(pageNumber));
+	}
+
+	/**
+	 * @param filters predicates CsvTokenizer.canEvaluate accepts
+	 * @param checksum the checksum the rows have now
+	 * @return true if the rows were summarized with the same checksum, and
+	 *   none of them can satisfy all of the filters
+	 */
+	public synchronized boolean canSkip(int pageNumber, List<Predicate> filters, long checksum) {
+		ensureLoaded();
+		Zone zone = zones.get(pageNumber);
+		if (zone == null || zone.checksum != checksum) return false;
+		for (Predicate p : filters) {
+			if (!zone.mayMatch(p)) return true;
+		}
+		return false;
+	}
+
+	/** @return whether rows with the given checksum are summarized as pageNumber */
+	public synchronized boolean contains(int pageNumber, long checksum) {
+		ensureLoaded();
+		Zone zone = zones.get(pageNumber);
+		return zone != null && zone.checksum == checksum;
+	}
+
+	/** Drops the summaries of pages whose rows changed. */
+	public synchronized void forget(BitSet pages) {
+		for (int p = pages.nextSetBit(0); p >= 0; p = pages.nextSetBit(p + 1)) {
+			if (zones.remove(p) != null) dirty = true;
+		}
+	}
+
+	/** @return the number of pages summarized */
+	public synchronized int numPages() {
+		ensureLoaded();
+		return zones.size();
+	}
+
+	/**
+	 * Writes the summaries out if any were added or dropped since they were
+	 * loaded or last saved.
+	 */
+	public synchronized void save() {
+		if (!dirty) return;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(zoneFile)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(tupleDesc.numFields());
+				for (int i = 0; i < tupleDesc.numFields(); i++) {
+					out.writeByte(tupleDesc.getFieldType(i).ordinal());
+				}
+				out.writeInt(zones.size());
+				for (Map.Entry<Integer, Zone> entry : zones.entrySet()) {
+					Zone zone = entry.getValue();
+					out.writeInt(entry.getKey());
+					out.writeLong(zone.checksum);
+					for (int i = 0; i < tupleDesc.numFields(); i++) {
+						if (tupleDesc.getFieldType(i).equals(Type.INT_TYPE)) {
+							out.writeInt(zone.min[i]);
+							out.writeInt(zone.max[i]);
+						} else {
+							out.writeBoolean(zone.minPrefix[i] != null);
+							if (zone.minPrefix[i] != null) {
+								out.writeUTF(zone.minPrefix[i]);
+								out.writeUTF(zone.maxPrefix[i]);
+							}
+						}
+					}
+				}
+			} finally {
+				out.close();
+			}
+			dirty = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void ensureLoaded() {
+		if (loaded) return;
+		loaded = true;
+		if (!load()) zones.clear();
+	}
+
+	/** @return false if there are no usable summaries on disk */
+	private boolean load() {
+		if (!zoneFile.exists()) return false;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(zoneFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != tupleDesc.numFields()) {
+					return false;
+				}
+				for (int i = 0; i < tupleDesc.numFields(); i++) {
+					if (in.readByte() != tupleDesc.getFieldType(i).ordinal()) return false;
+				}
+				int numZones = in.readInt();
+				for (int z = 0; z < numZones; z++) {
+					int pageNumber = in.readInt();
+					Zone zone = new Zone(tupleDesc.numFields());
+					zone.checksum = in.readLong();
+					for (int i = 0; i < tupleDesc.numFields(); i++) {
+						if (tupleDesc.getFieldType(i).equals(Type.INT_TYPE)) {
+							zone.min[i] = in.readInt();
+							zone.max[i] = in.readInt();
+						} else if (in.readBoolean()) {
+							zone.minPrefix[i] = in.readUTF();
+							zone.maxPrefix[i] = in.readUTF();
+						}
+					}
+					zones.put(pageNumber, zone);
+				}
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+}
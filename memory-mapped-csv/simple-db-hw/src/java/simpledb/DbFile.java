@@ -90,5 +90,49 @@ public interface DbFile {
     
     public int numPages();
     
+    /**
+     * BufferPool calls this on every page it hands out, so it should not
+     * touch the disk; files backed by a CSV compare their FileWatcher version.
+     *
+     * @return whether the file has changed since its pages were last read
+     */
     public boolean isModified();
+
+    /**
+     * Called by the BufferPool when a transaction that wrote pages of this
+     * file aborts, after its dirty pages are dropped. Files that keep changes
+     * outside their pages until commit forget the transaction's here.
+     */
+    public default void abort(TransactionId tid) {
+    }
+
+    /**
+     * Called by the Catalog once the table is removed from it, to stop
+     * watching the file and close what it keeps open. Scans that resolved
+     * the file before it was removed may still be reading it, so handles
+     * they use should be closed when they finish.
+     */
+    public default void close() {
+    }
+
+    /**
+     * Returns the files some pages of this one are read through under ids
+     * of their own, such as the partitions of a partitioned table. The
+     * Catalog resolves those ids to these files; a file whose children
+     * change tells it with {@link Catalog#updateChildFiles(DbFile)}. Called
+     * with the Catalog locked, so it must not wait for the file's own lock.
+     */
+    public default Collection<? extends DbFile> getChildFiles() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Returns the table's own file. A view that reads one version of the
+     * file for a scan returns the file it views, so the BufferPool keeps the
+     * pages read through it as pages of the table, and writes them back
+     * through the table's file.
+     */
+    public default DbFile getTableFile() {
+        return this;
+    }
 }
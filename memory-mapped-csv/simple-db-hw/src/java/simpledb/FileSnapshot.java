@@ -0,0 +1,171 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One version of the file a table is read from, shared by the scans reading
+ * it. The file is opened on first use and the handle is kept, so reading a
+ * page is a single positional read, and a version that was replaced by
+ * moving a new file over its path can still be read through the handle.
+ * <p>
+ * Scans acquire the snapshot they start on and release it when they close.
+ * Once a newer version supersedes it, the snapshot is retired, and it is
+ * discarded (see {@link #discard()}) as soon as no scan holds it. A snapshot
+ * of a table that was dropped is closed whenever no scan holds it instead;
+ * it is opened again if it is read after all.
+ * <p>
+ * The file is opened read-only unless the snapshot is for writing and the
+ * file can be written, and it is never created by opening it.
+ */
+class FileSnapshot {
+
+	final File file;
+	private final boolean forWriting;
+	private FileChannel channel;
+	private boolean writable;
+	private int readers;
+	private boolean retired;
+	private boolean closeWhenUnused;
+
+	/**
+	 * @param forWriting whether pages are written to the file, rather than
+	 *                   only read from it
+	 */
+	FileSnapshot(File file, boolean forWriting) {
+		this.file = file;
+		this.forWriting = forWriting;
+	}
+
+	synchronized FileChannel getChannel() throws IOException {
+		if (channel == null) {
+			if (!file.isFile()) throw new FileNotFoundException(file + " doesn't exist");
+			writable = forWriting && file.canWrite();
+			channel = new RandomAccessFile(file, writable ? "rw" : "r").getChannel();
+		}
+		return channel;
+	}
+
+	private FileChannel getWritableChannel() throws IOException {
+		FileChannel channel = getChannel();
+		if (!writable) throw new IOException(file + " is read-only");
+		return channel;
+	}
+
+	/** Opens the file, if it exists and isn't open already. */
+	void open() {
+		try {
+			getChannel();
+		} catch (IOException e) {
+			// the file doesn't exist yet; it is opened on the first read
+		}
+	}
+
+	/**
+	 * Fills a buffer with the bytes from offset on, with positional reads on
+	 * the kept handle, stopping early at the end of the file.
+	 *
+	 * @return whether the buffer was filled
+	 */
+	boolean read(ByteBuffer buffer, long offset) throws IOException {
+		FileChannel channel = getChannel();
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position() - start) < 0) return false;
+		}
+		return true;
+	}
+
+	/** Writes the bytes in a buffer at offset with positional writes. */
+	void write(ByteBuffer data, long offset) throws IOException {
+		FileChannel channel = getWritableChannel();
+		int start = data.position();
+		while (data.hasRemaining()) {
+			channel.write(data, offset + data.position() - start);
+		}
+	}
+
+	/**
+	 * Writes consecutive buffers starting at offset with one gather write.
+	 * The channel's position is only moved under the lock.
+	 */
+	synchronized void writeFully(ByteBuffer[] buffers, long offset) throws IOException {
+		FileChannel channel = getWritableChannel();
+		channel.position(offset);
+		while (buffers[buffers.length - 1].hasRemaining()) {
+			channel.write(buffers);
+		}
+	}
+
+	/**
+	 * Reads consecutive buffers starting at offset with one scatter read,
+	 * stopping early at the end of the file.
+	 */
+	synchronized void readFully(ByteBuffer[] buffers, long offset) throws IOException {
+		FileChannel channel = getChannel();
+		channel.position(offset);
+		while (buffers[buffers.length - 1].hasRemaining() && channel.read(buffers) >= 0);
+	}
+
+	/** Closes the file; it is opened again if it is read after all. */
+	synchronized void close() {
+		try {
+			if (channel != null) channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		channel = null;
+	}
+
+	/**
+	 * Called once the snapshot is retired and no scan holds it any more;
+	 * closes the file.
+	 */
+	void discard() {
+		close();
+	}
+
+	/** Notes that a scan is reading this snapshot. */
+	synchronized void acquire() {
+		readers++;
+	}
+
+	/** Notes that a scan is done with this snapshot. */
+	synchronized void release() {
+		readers--;
+		if (readers > 0) return;
+		if (retired) {
+			discard();
+		} else if (closeWhenUnused) {
+			close();
+		}
+	}
+
+	/** @return the number of scans reading this snapshot */
+	synchronized int readers() {
+		return readers;
+	}
+
+	/**
+	 * Marks the snapshot as superseded by a newer version, discarding it
+	 * now if no scan holds it.
+	 */
+	synchronized void retire() {
+		retired = true;
+		if (readers == 0) discard();
+	}
+
+	/**
+	 * Has the file closed whenever no scan holds it, for a table that was
+	 * dropped; closes it now if no scan does.
+	 */
+	synchronized void closeWhenUnused() {
+		closeWhenUnused = true;
+		if (readers == 0) close();
+	}
+
+}
@@ -0,0 +1,268 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FileWatcher keeps a version number for each file a table is backed by, and
+ * bumps it whenever the file changes, so that checking a table for changes is
+ * a comparison in memory rather than a stat of the file.
+ * <p>
+ * Changes are noticed by a background thread, through a WatchService on the
+ * directories of the watched files. Files that can't be watched that way (the
+ * file system doesn't support it, or the directory can't be registered) are
+ * stat-ed by the same kind of thread every POLL_MILLIS instead. Either way a
+ * notification only leads to a change if the length or modification time of
+ * the file moved, so a table's own writes can be acknowledged with
+ * {@link WatchedFile#check()} and won't be reported a second time.
+ *
+ * @Threadsafe
+ */
+public class FileWatcher {
+
+	/** How often files that can't be watched are stat-ed, in milliseconds. */
+	public static final int POLL_MILLIS = 1000;
+
+	private static final FileWatcher instance = new FileWatcher();
+
+	/** @return the watcher shared by every table */
+	public static FileWatcher getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The version of one watched file. The version starts at 0 and goes up by
+	 * one each time the file is seen to have changed.
+	 */
+	public static class WatchedFile {
+		private final File file;
+		private volatile long version;
+		// the number of watch() calls not yet matched by an unwatch()
+		private int watchers;
+		private long length;
+		private long modified;
+
+		private WatchedFile(File file) {
+			this.file = file;
+			this.length = file.length();
+			this.modified = file.lastModified();
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/** @return the version of the file, without touching the file */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Stats the file now rather than waiting for a notification, bumping
+		 * the version if it changed.
+		 *
+		 * @return the version after the check
+		 */
+		public synchronized long check() {
+			long newLength = file.length();
+			long newModified = file.lastModified();
+			if (newLength != length || newModified != modified) {
+				length = newLength;
+				modified = newModified;
+				version++;
+			}
+			return version;
+		}
+	}
+
+	private WatchService watchService;
+	private Map<WatchKey, Path> directories;
+	private Map<Path, WatchedFile> files;
+	private List<WatchedFile> polled;
+	private Thread watchThread;
+	private Thread pollThread;
+
+	private FileWatcher() {
+		directories = new HashMap<>();
+		files = new HashMap<>();
+		polled = new ArrayList<>();
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			watchService = null;
+		} catch (UnsupportedOperationException e) {
+			watchService = null;
+		}
+	}
+
+	/**
+	 * Starts watching a file. Watching the same file twice returns the same
+	 * WatchedFile, so tables over the same file share a version; each call
+	 * should be matched by a call to {@link #unwatch(File)}.
+	 */
+	public synchronized WatchedFile watch(File file) {
+		Path path = file.toPath().toAbsolutePath().normalize();
+		WatchedFile watched = files.get(path);
+		if (watched == null) {
+			watched = new WatchedFile(file);
+			files.put(path, watched);
+			if (!register(path.getParent())) {
+				polled.add(watched);
+				startPolling();
+			}
+		}
+		watched.watchers++;
+		return watched;
+	}
+
+	/**
+	 * Stops watching a file for one of the callers of {@link #watch(File)}.
+	 * Once every caller has, the file is forgotten, and so is its directory if
+	 * no other watched file is in it. Watching the file again starts a new
+	 * WatchedFile.
+	 */
+	public synchronized void unwatch(File file) {
+		Path path = file.toPath().toAbsolutePath().normalize();
+		WatchedFile watched = files.get(path);
+		if (watched == null || --watched.watchers > 0) return;
+
+		files.remove(path);
+		polled.remove(watched);
+		Path directory = path.getParent();
+		for (Path other : files.keySet()) {
+			if (other.getParent().equals(directory)) return;
+		}
+		Iterator<Map.Entry<WatchKey, Path>> it = directories.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<WatchKey, Path> e = it.next();
+			if (!e.getValue().equals(directory)) continue;
+			e.getKey().cancel();
+			it.remove();
+		}
+	}
+
+	/** @return whether a file is being watched */
+	public synchronized boolean isWatched(File file) {
+		return files.containsKey(file.toPath().toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Registers the directory of a watched file with the WatchService.
+	 *
+	 * @return false if changes in the directory can't be watched
+	 */
+	private boolean register(Path directory) {
+		if (watchService == null || directory == null) return false;
+		if (directories.containsValue(directory)) return true;
+
+		try {
+			WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			directories.put(key, directory);
+		} catch (IOException e) {
+			return false;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+
+		if (watchThread == null) {
+			watchThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watchLoop();
+				}
+			}, "file watcher");
+			watchThread.setDaemon(true);
+			watchThread.start();
+		}
+		return true;
+	}
+
+	private void startPolling() {
+		if (pollThread != null) return;
+		pollThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				pollLoop();
+			}
+		}, "file poller");
+		pollThread.setDaemon(true);
+		pollThread.start();
+	}
+
+	private void watchLoop() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+
+			List<WatchedFile> changed = new ArrayList<>();
+			synchronized (this) {
+				Path directory = directories.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						// events were lost, so anything in the directory may have changed
+						for (Map.Entry<Path, WatchedFile> e : files.entrySet()) {
+							if (e.getKey().getParent().equals(directory)) changed.add(e.getValue());
+						}
+					} else if (directory != null) {
+						WatchedFile watched = files.get(directory.resolve((Path) event.context()));
+						if (watched != null) changed.add(watched);
+					}
+				}
+
+				if (!key.reset()) {
+					// the directory is gone; fall back to polling its files
+					directories.remove(key);
+					for (Map.Entry<Path, WatchedFile> e : files.entrySet()) {
+						if (e.getKey().getParent().equals(directory)) {
+							polled.add(e.getValue());
+							changed.add(e.getValue());
+						}
+					}
+					startPolling();
+				}
+			}
+
+			for (WatchedFile watched : changed) {
+				watched.check();
+			}
+		}
+	}
+
+	private void pollLoop() {
+		while (true) {
+			try {
+				Thread.sleep(POLL_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			List<WatchedFile> toCheck;
+			synchronized (this) {
+				toCheck = new ArrayList<>(polled);
+			}
+			for (WatchedFile watched : toCheck) {
+				watched.check();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+package simpledb;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A DbFile whose scans can evaluate simple predicates on rows before turning
+ * them into tuples, so that rows a query filters out are never decoded.
+ */
+public interface FilterableFile extends ProjectableFile {
+
+    /**
+     * @return whether scans of this file can evaluate p themselves
+     */
+    public boolean canFilter(Predicate p);
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy every
+     * predicate in filters, decoding only the given columns of them.
+     *
+     * @param tid the transaction the scan runs as part of
+     * @param columns the indexes of the fields the scan has to return, or
+     *   null for all of them
+     * @param filters predicates that canFilter accepted
+     */
+    public DbFileIterator iterator(TransactionId tid, BitSet columns, List<Predicate> filters);
+
+}
@@ -0,0 +1,742 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only table backed by a gzip-compressed CSV, read without
+ * decompressing it to disk first.
+ * <p>
+ * A plain gzip file can only be decompressed from the start, so it is scanned
+ * as a stream, bypassing the buffer pool. A block-gzip (BGZF) file, which is a
+ * series of gzip members of at most 64 KB each whose headers record their
+ * compressed size, can be read at random: on first use the file gets an index
+ * of the offset of every block, and of where the first row starting in it
+ * begins. Page p of the table holds the rows that start in block p, so
+ * reading a page only inflates that block and the start of the next. The
+ * index is built by inflating the blocks in parallel; each block records the
+ * quote state it ends in and where its first row starts, for every quote
+ * state it could start in, so that the blocks only have to be combined in
+ * order at the end.
+ * <p>
+ * Use {@link #compress(File, File)} to write a CSV as BGZF.
+ */
+public class GzipCsvFile implements DbFile, ParallelScannable, FilterableFile {
+
+	/** Most uncompressed bytes in a block written by compress. */
+	public static final int MAX_BLOCK_INPUT = 0xff00;
+	private static final int MAX_BLOCK_SIZE = 1 << 16;
+	private static final int BLOCK_HEADER_SIZE = 18;
+	private static final int BLOCK_TRAILER_SIZE = 8;
+	private static final int STREAM_BUFFER_SIZE = 1 << 16;
+	/** Pages read ahead of the consumer per worker, by a parallel scan. */
+	private static final int PAGES_PER_WORKER = 4;
+
+	private File file;
+	private TupleDesc tupleDesc;
+	private ForkJoinPool pool;
+	private FileWatcher.WatchedFile watched;
+	private volatile long knownVersion;
+
+	// whether the file has been looked at, and for a BGZF file, its block index
+	private boolean indexed;
+	private boolean blockCompressed;
+	private int numBlocks;
+	private long[] blockOffsets;
+	// offset in each block of the first row that starts there, or -1
+	private int[] firstRows;
+
+	public GzipCsvFile(File file, TupleDesc td) {
+		this(file, td, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param file the compressed CSV
+	 * @param td the schema of its rows
+	 * @param pool the pool blocks are inflated on
+	 */
+	public GzipCsvFile(File file, TupleDesc td, ForkJoinPool pool) {
+		this.file = file;
+		this.tupleDesc = td;
+		this.pool = pool;
+		this.watched = FileWatcher.getInstance().watch(file);
+		this.knownVersion = watched.check();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return whether the file is block-compressed, so that its pages can be
+	 *   read at random
+	 */
+	public boolean isBlockCompressed() {
+		ensureIndexed();
+		return blockCompressed;
+	}
+
+	/**
+	 * Builds the block index if the file is BGZF and it hasn't been built
+	 * for the file as it is now.
+	 */
+	private synchronized void ensureIndexed() {
+		if (indexed && !isModified()) return;
+		if (indexed) {
+			for (int p = 0; p < numBlocks; p++) {
+				Database.getBufferPool().discardPage(new CsvPageId(getId(), p));
+			}
+		}
+		knownVersion = watched.getVersion();
+		indexed = true;
+		try {
+			blockCompressed = buildIndex();
+		} catch (IOException e) {
+			e.printStackTrace();
+			blockCompressed = false;
+		}
+		if (!blockCompressed) numBlocks = 0;
+	}
+
+	/** @return false if the file isn't BGZF */
+	private boolean buildIndex() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			numBlocks = 0;
+			blockOffsets = new long[16];
+			for (long offset = 0; offset < length; ) {
+				int size = blockSize(channel, offset);
+				if (size < 0) return false;
+				if (numBlocks == blockOffsets.length) blockOffsets = Arrays.copyOf(blockOffsets, numBlocks * 2);
+				blockOffsets[numBlocks++] = offset;
+				offset += size;
+			}
+			if (numBlocks == 0) return false;
+			blockOffsets = Arrays.copyOf(blockOffsets, numBlocks + 1);
+			blockOffsets[numBlocks] = length;
+
+			List<BlockScan> scans = new ArrayList<>();
+			for (int b = 0; b < numBlocks; b++) {
+				scans.add(new BlockScan(channel, b));
+			}
+			for (BlockScan scan : scans) {
+				pool.execute(scan);
+			}
+			firstRows = new int[numBlocks];
+			// a row starts at the beginning of a block if the one before ended a row
+			int state = CsvTokenizer.FIELD_START;
+			boolean endsRow = true;
+			for (int b = 0; b < numBlocks; b++) {
+				BlockScan scan = scans.get(b);
+				scan.get();
+				if (scan.size == 0) {
+					firstRows[b] = -1;
+					continue;
+				}
+				int first = endsRow ? 0 : scan.firstRow[state];
+				firstRows[b] = first < scan.size ? first : -1;
+				state = scan.endState[state];
+				endsRow = scan.endsWithNewline && state == CsvTokenizer.FIELD_START;
+			}
+			return true;
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException("can't index " + file + ": " + e.getMessage());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** Inflates one block to follow its quotes and find where rows start in it. */
+	private class BlockScan extends RecursiveTask<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private FileChannel channel;
+		private int block;
+		int size;
+		boolean endsWithNewline;
+		// starting in each quote state: the state the block ends in, and just
+		// past the first newline outside quotes
+		int[] endState = new int[CsvTokenizer.NUM_STATES];
+		int[] firstRow = { -1, -1, -1, -1 };
+
+		BlockScan(FileChannel channel, int block) {
+			this.channel = channel;
+			this.block = block;
+		}
+
+		@Override
+		protected Void compute() {
+			byte[] data;
+			try {
+				data = inflate(channel, block);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			size = data.length;
+			endsWithNewline = size > 0 && data[size - 1] == '\n';
+			for (int s = 0; s < endState.length; s++) {
+				endState[s] = s;
+			}
+			for (int i = 0; i < size; i++) {
+				byte b = data[i];
+				for (int s = 0; s < endState.length; s++) {
+					if (b == '\n' && firstRow[s] < 0 && endState[s] != CsvTokenizer.QUOTED) firstRow[s] = i + 1;
+					endState[s] = CsvTokenizer.nextState(endState[s], b);
+				}
+			}
+			return null;
+		}
+
+	}
+
+	/**
+	 * @return the total size of the BGZF block at offset, or -1 if there
+	 *   isn't one there
+	 */
+	private static int blockSize(FileChannel channel, long offset) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header, offset);
+		if (header.hasRemaining()) return -1;
+		if (header.get(0) != 31 || header.get(1) != (byte) 139 || header.get(2) != 8 || (header.get(3) & 4) == 0) {
+			return -1;
+		}
+		int xlen = header.getShort(10) & 0xffff;
+		ByteBuffer extra = ByteBuffer.allocate(xlen).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, extra, offset + 12);
+		for (int i = 0; i + 4 <= xlen; ) {
+			int slen = extra.getShort(i + 2) & 0xffff;
+			if (extra.get(i) == 'B' && extra.get(i + 1) == 'C' && slen == 2 && i + 6 <= xlen) {
+				return (extra.getShort(i + 4) & 0xffff) + 1;
+			}
+			i += 4 + slen;
+		}
+		return -1;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) break;
+		}
+	}
+
+	/** @return the uncompressed bytes of a block */
+	private byte[] inflate(FileChannel channel, int block) throws IOException {
+		long offset = blockOffsets[block];
+		ByteBuffer compressed = ByteBuffer.allocate((int) (blockOffsets[block + 1] - offset));
+		readFully(channel, compressed, offset);
+		if (compressed.hasRemaining()) throw new EOFException(file + " ends inside block " + block);
+
+		byte[] bytes = compressed.array();
+		int xlen = (bytes[10] & 0xff) | (bytes[11] & 0xff) << 8;
+		int dataStart = 12 + xlen;
+		int dataEnd = bytes.length - BLOCK_TRAILER_SIZE;
+		int size = compressed.order(ByteOrder.LITTLE_ENDIAN).getInt(bytes.length - 4);
+		byte[] data = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(bytes, dataStart, dataEnd - dataStart);
+			int n = 0;
+			while (n < size) {
+				int inflated = inflater.inflate(data, n, size - n);
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput())) break;
+				n += inflated;
+			}
+			if (n != size) throw new IOException("block " + block + " of " + file + " is corrupt");
+		} catch (DataFormatException e) {
+			throw new IOException("block " + block + " of " + file + " is corrupt: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return data;
+	}
+
+	/**
+	 * @return the bytes of the rows that start in a block, inflating the
+	 *   blocks after it as far as the next row start
+	 */
+	private byte[] readRows(FileChannel channel, int block) throws IOException {
+		if (firstRows[block] < 0) return new byte[0];
+
+		byte[] first = inflate(channel, block);
+		int next = block + 1;
+		while (next < numBlocks && firstRows[next] < 0) next++;
+		if (next == block + 1 && (next == numBlocks || firstRows[next] == 0)) {
+			return Arrays.copyOfRange(first, firstRows[block], first.length);
+		}
+
+		ByteArrayOutputStream rows = new ByteArrayOutputStream();
+		rows.write(first, firstRows[block], first.length - firstRows[block]);
+		for (int b = block + 1; b < numBlocks && b <= next; b++) {
+			byte[] data = inflate(channel, b);
+			rows.write(data, 0, b == next ? firstRows[b] : data.length);
+		}
+		return rows.toByteArray();
+	}
+
+	private byte[] readRows(int block) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return readRows(raf.getChannel(), block);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads the rows that start in one block of a BGZF file. Pages can only
+	 * be read from block-compressed files.
+	 */
+	@Override
+	public Page readPage(PageId pid) {
+		ensureIndexed();
+		if (!blockCompressed) {
+			throw new IllegalArgumentException(file + " isn't block-compressed, so it can only be scanned");
+		}
+		try {
+			byte[] rows = readRows(pid.getPageNumber());
+			return new CsvPage(new CsvPageId(getId(), pid.getPageNumber()), 0, rows, tupleDesc,
+					Integer.MAX_VALUE, null);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("can't read page " + pid.getPageNumber() + " of " + file
+					+ ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void writePage(Page p) throws IOException {
+		throw new IOException(file + " is compressed, and can't be written to");
+	}
+
+	@Override
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		throw new DbException(file + " is compressed, and can't be inserted into");
+	}
+
+	@Override
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		throw new DbException(file + " is compressed, and can't be deleted from");
+	}
+
+	@Override
+	public DbFileIterator iterator(TransactionId tid) {
+		return iterator(tid, null, null);
+	}
+
+	@Override
+	public DbFileIterator iterator(TransactionId tid, BitSet columns) {
+		return iterator(tid, columns, null);
+	}
+
+	@Override
+	public boolean canFilter(Predicate p) {
+		return CsvTokenizer.canEvaluate(tupleDesc, p);
+	}
+
+	/**
+	 * Scans a BGZF file page by page through the buffer pool, and streams
+	 * any other gzip file.
+	 */
+	@Override
+	public DbFileIterator iterator(TransactionId tid, BitSet columns, List<Predicate> filters) {
+		watched.check();
+		if (isBlockCompressed()) return new PageIterator(tid, columns, filters);
+		return new StreamIterator(columns, filters);
+	}
+
+	/**
+	 * Inflates the pages of a BGZF file in parallel, bypassing the buffer
+	 * pool; any other gzip file can only be streamed.
+	 */
+	@Override
+	public DbFileIterator parallelIterator(TransactionId tid, boolean ordered) {
+		watched.check();
+		if (isBlockCompressed()) return new ParallelIterator(ordered);
+		return new StreamIterator(null, null);
+	}
+
+	/** Stops watching the file; it is only open while a scan reads it. */
+	@Override
+	public void close() {
+		FileWatcher.getInstance().unwatch(file);
+	}
+
+	@Override
+	public int getId() {
+		return file.getAbsoluteFile().hashCode();
+	}
+
+	@Override
+	public TupleDesc getTupleDesc() {
+		return tupleDesc;
+	}
+
+	/**
+	 * @return the number of blocks of a BGZF file, and otherwise the number
+	 *   of pages the compressed bytes would fill, which is what a scan reads
+	 */
+	@Override
+	public int numPages() {
+		if (isBlockCompressed()) return numBlocks;
+		return (int) ((file.length() + BufferPool.getPageSize() - 1) / BufferPool.getPageSize());
+	}
+
+	@Override
+	public boolean isModified() {
+		return watched.getVersion() != knownVersion;
+	}
+
+	private class PageIterator extends AbstractDbFileIterator {
+
+		private TransactionId transactionId;
+		private BitSet columns;
+		private List<Predicate> filters;
+		private int nextPageNumber;
+		private Iterator<Tuple> current;
+		private boolean open;
+
+		PageIterator(TransactionId tid, BitSet columns, List<Predicate> filters) {
+			this.transactionId = tid;
+			this.columns = columns;
+			this.filters = filters;
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			nextPageNumber = 0;
+			current = null;
+			open = true;
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			current = null;
+			open = false;
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (!open) return null;
+
+			while (current == null || !current.hasNext()) {
+				if (nextPageNumber >= numPages()) return null;
+				CsvPage page = (CsvPage) Database.getBufferPool()
+						.getPage(transactionId, GzipCsvFile.this, new CsvPageId(getId(), nextPageNumber), Permissions.READ_ONLY);
+				nextPageNumber++;
+				current = page.iterator(columns, filters);
+			}
+			return current.next();
+		}
+
+	}
+
+	/** Parses the rows that start in one block of a BGZF file. */
+	private class PageTask extends RecursiveTask<List<Tuple>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int block;
+		// where the task goes once it is done, for unordered scans
+		private LinkedBlockingQueue<PageTask> finished;
+
+		PageTask(int block, LinkedBlockingQueue<PageTask> finished) {
+			this.block = block;
+			this.finished = finished;
+		}
+
+		@Override
+		protected List<Tuple> compute() {
+			try {
+				List<Tuple> tuples = new ArrayList<>();
+				CsvTokenizer tokenizer = new CsvTokenizer(tupleDesc);
+				tokenizer.reset(ByteBuffer.wrap(readRows(block)));
+				while (tokenizer.nextRow()) {
+					tuples.add(tokenizer.readTuple());
+				}
+				return tuples;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				// the consumer picks up the result, or the failure, with get()
+				if (finished != null) finished.add(this);
+			}
+		}
+
+	}
+
+	private class ParallelIterator extends AbstractDbFileIterator {
+
+		private boolean ordered;
+		private List<PageTask> running;
+		private LinkedBlockingQueue<PageTask> finished;
+		private int nextToSubmit;
+		private int emitted;
+		private Iterator<Tuple> current;
+
+		ParallelIterator(boolean ordered) {
+			this.ordered = ordered;
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			running = new ArrayList<>();
+			finished = new LinkedBlockingQueue<>();
+			nextToSubmit = 0;
+			emitted = 0;
+			current = null;
+
+			int ahead = pool.getParallelism() * PAGES_PER_WORKER;
+			while (nextToSubmit < numBlocks && nextToSubmit < ahead) {
+				submit();
+			}
+		}
+
+		private void submit() {
+			PageTask task = new PageTask(nextToSubmit++, ordered ? null : finished);
+			running.add(task);
+			pool.execute(task);
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			if (running != null) {
+				for (PageTask task : running) task.cancel(true);
+				running = null;
+			}
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (running == null) return null;
+
+			while (current == null || !current.hasNext()) {
+				if (emitted == numBlocks) return null;
+
+				PageTask task;
+				try {
+					task = ordered ? running.get(0) : finished.take();
+					current = task.get().iterator();
+				} catch (InterruptedException | ExecutionException e) {
+					throw new DbException("parallel scan of " + file + " failed: " + e);
+				}
+				running.remove(task);
+				emitted++;
+				if (nextToSubmit < numBlocks) submit();
+			}
+			return current.next();
+		}
+
+	}
+
+	/**
+	 * Decompresses a gzip file from the start, tokenizing the rows as they
+	 * come out.
+	 */
+	private class StreamIterator extends AbstractDbFileIterator {
+
+		private BitSet columns;
+		private List<Predicate> filters;
+		private InputStream in;
+		private CsvTokenizer tokenizer;
+		// inflated bytes; rows from 0 to rowsEnd are being tokenized, and the
+		// bytes from rowsEnd to length start a row that hasn't ended yet
+		private byte[] buffer;
+		private int length;
+		private int rowsEnd;
+		private int scanned;
+		private int state;
+		private boolean done;
+
+		StreamIterator(BitSet columns, List<Predicate> filters) {
+			this.columns = columns;
+			this.filters = filters;
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			try {
+				in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)), STREAM_BUFFER_SIZE);
+			} catch (IOException e) {
+				throw new DbException("can't open " + file + ": " + e.getMessage());
+			}
+			tokenizer = new CsvTokenizer(tupleDesc);
+			buffer = new byte[STREAM_BUFFER_SIZE];
+			length = 0;
+			rowsEnd = 0;
+			scanned = 0;
+			state = CsvTokenizer.FIELD_START;
+			done = false;
+			tokenizer.reset(ByteBuffer.wrap(buffer, 0, 0));
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			try {
+				if (in != null) in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			in = null;
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (in == null) return null;
+
+			while (true) {
+				while (tokenizer.nextRow()) {
+					if (filters == null || tokenizer.satisfiesAll(filters)) return tokenizer.readTuple(null, columns);
+				}
+				if (done) return null;
+				fill();
+			}
+		}
+
+		/** Inflates more of the file, until at least one more row is complete. */
+		private void fill() throws DbException {
+			// keep the row that hasn't ended yet
+			System.arraycopy(buffer, rowsEnd, buffer, 0, length - rowsEnd);
+			length -= rowsEnd;
+			scanned -= rowsEnd;
+			rowsEnd = 0;
+			try {
+				while (rowsEnd == 0) {
+					if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					int read = in.read(buffer, length, buffer.length - length);
+					if (read < 0) {
+						done = true;
+						rowsEnd = length;
+						break;
+					}
+					length += read;
+					for (; scanned < length; scanned++) {
+						if (buffer[scanned] == '\n' && state != CsvTokenizer.QUOTED) rowsEnd = scanned + 1;
+						state = CsvTokenizer.nextState(state, buffer[scanned]);
+					}
+				}
+			} catch (IOException e) {
+				throw new DbException("can't read " + file + ": " + e.getMessage());
+			}
+			tokenizer.reset(ByteBuffer.wrap(buffer, 0, rowsEnd));
+		}
+
+	}
+
+	/**
+	 * Compresses a CSV into BGZF, in blocks that each start with a whole row
+	 * where rows are short enough, followed by the empty block that marks the
+	 * end of a BGZF file.
+	 */
+	public static void compress(File csv, File target) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(csv));
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+		try {
+			byte[] block = new byte[MAX_BLOCK_INPUT];
+			int length = 0;
+			while (true) {
+				int read = in.read(block, length, block.length - length);
+				if (read > 0) length += read;
+				if (length < block.length && read >= 0) continue;
+				if (length == 0) break;
+
+				// end the block after the last newline in it, if there is one
+				int end = length;
+				if (read >= 0) {
+					while (end > 0 && block[end - 1] != '\n') end--;
+					if (end == 0) end = length;
+				}
+				writeBlock(out, block, end);
+				System.arraycopy(block, end, block, 0, length - end);
+				length -= end;
+				if (read < 0 && length == 0) break;
+			}
+			writeBlock(out, block, 0);
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	private static void writeBlock(OutputStream out, byte[] data, int length) throws IOException {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		byte[] compressed = new byte[MAX_BLOCK_SIZE];
+		int size;
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			size = 0;
+			while (!deflater.finished()) {
+				size += deflater.deflate(compressed, size, compressed.length - size);
+			}
+		} finally {
+			deflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+
+		ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte) 31).put((byte) 139).put((byte) 8).put((byte) 4);
+		header.putInt(0).put((byte) 0).put((byte) 0xff);
+		header.putShort((short) 6).put((byte) 'B').put((byte) 'C').putShort((short) 2);
+		header.putShort((short) (BLOCK_HEADER_SIZE + size + BLOCK_TRAILER_SIZE - 1));
+		ByteBuffer trailer = ByteBuffer.allocate(BLOCK_TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		trailer.putInt((int) crc.getValue()).putInt(length);
+
+		out.write(header.array());
+		out.write(compressed, 0, size);
+		out.write(trailer.array());
+	}
+
+}
@@ -0,0 +1,399 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A persistent hash index on one column of a HeapFile, for point lookups such
+ * as those on a table's primary key. It is a linear hash table: it starts with
+ * a single bucket, and whenever the buckets become too full on average, the
+ * bucket the split pointer is on is split in two, so the table grows one
+ * bucket at a time and no lookup ever reads more than one bucket. A bucket
+ * that fills up before its turn to split chains overflow pages.
+ * <p>
+ * Like BTreeFile, its pages are read and written through the BufferPool, and
+ * inserts and deletes lock the header page for writing. The header page has
+ * room for a limited number of buckets; once they are all in use, buckets
+ * stop splitting and only grow longer chains.
+ *
+ * @see simpledb.HashIndexPage
+ */
+public class HashIndexFile implements IndexFile {
+
+	private static final int HEADER_PAGE = 0;
+
+	/** Share of the room in the buckets used on average before one is split. */
+	private static final double MAX_LOAD = 0.75;
+
+	private File file;
+	private HeapFile table;
+	private int keyField;
+	private Type keyType;
+	private int id;
+
+	/**
+	 * Opens the index stored in f, or creates an empty one if f is empty or
+	 * doesn't exist.
+	 *
+	 * @param table the table the index is on
+	 * @param keyField the index of the field of the table the index is on
+	 */
+	public HashIndexFile(File f, HeapFile table, int keyField) {
+		this.file = f;
+		this.table = table;
+		this.keyField = keyField;
+		this.keyType = table.getTupleDesc().getFieldType(keyField);
+		this.id = f.getAbsoluteFile().hashCode();
+
+		if (f.length() == 0) {
+			try {
+				HashIndexPage header = emptyPage(HEADER_PAGE, HashIndexPage.HEADER);
+				header.addBucket(1);
+				writePage(header);
+				writePage(emptyPage(1, HashIndexPage.BUCKET));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private HashIndexPage emptyPage(int pageNumber, int category) throws IOException {
+		HashIndexPage page = new HashIndexPage(new HashIndexPageId(id, pageNumber),
+				HashIndexPage.createEmptyPageData());
+		page.init(category, keyType);
+		return page;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public HeapFile getTable() {
+		return table;
+	}
+
+	public int getKeyField() {
+		return keyField;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/** @return the TupleDesc of the table, since scans of the index return its tuples */
+	public TupleDesc getTupleDesc() {
+		return table.getTupleDesc();
+	}
+
+	// see DbFile.java for javadocs
+	public Page readPage(PageId pid) {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				raf.seek((long) pid.getPageNumber() * BufferPool.getPageSize());
+				raf.readFully(data);
+			} finally {
+				raf.close();
+			}
+			return new HashIndexPage(new HashIndexPageId(id, pid.getPageNumber()), data);
+		} catch (IOException e) {
+			throw new NoSuchElementException("can't read page " + pid.getPageNumber() + " of " + file);
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public void writePage(Page page) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			raf.write(page.getPageData());
+		} finally {
+			raf.close();
+		}
+	}
+
+	public int numPages() {
+		return (int) (file.length() / BufferPool.getPageSize());
+	}
+
+	/** @return false, since an index is only changed through the BufferPool */
+	public boolean isModified() {
+		return false;
+	}
+
+	private HashIndexPage getPage(TransactionId tid, int pageNumber, Permissions perm)
+			throws TransactionAbortedException, DbException {
+		return (HashIndexPage) Database.getBufferPool().getPage(tid, this, new HashIndexPageId(id, pageNumber), perm);
+	}
+
+	/**
+	 * Adds an empty bucket page to the end of the file and returns it, locked
+	 * for writing.
+	 */
+	private HashIndexPage newPage(TransactionId tid)
+			throws IOException, TransactionAbortedException, DbException {
+		int pageNumber;
+		synchronized (this) {
+			pageNumber = numPages();
+			writePage(emptyPage(pageNumber, HashIndexPage.EMPTY));
+		}
+		HashIndexPage page = getPage(tid, pageNumber, Permissions.READ_WRITE);
+		page.init(HashIndexPage.BUCKET, keyType);
+		return page;
+	}
+
+	/** Spreads the bits of a key's hash code, since the low bits pick the bucket. */
+	private static int hash(Field key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/** @return the bucket key belongs in, given the state in the header page */
+	private static int bucket(HashIndexPage header, Field key) {
+		int h = hash(key);
+		int b = h & ((1 << header.getLevel()) - 1);
+		if (b < header.getNext()) {
+			b = h & ((1 << (header.getLevel() + 1)) - 1);
+		}
+		return b;
+	}
+
+	/** @return the pages of a bucket, in chain order */
+	private List<HashIndexPage> chain(TransactionId tid, int firstPage, Permissions perm)
+			throws TransactionAbortedException, DbException {
+		List<HashIndexPage> chain = new ArrayList<>();
+		for (int p = firstPage; p >= 0; p = chain.get(chain.size() - 1).getOverflow()) {
+			chain.add(getPage(tid, p, perm));
+		}
+		return chain;
+	}
+
+	/**
+	 * Adds an entry to the first page of a bucket with room, adding an
+	 * overflow page to the end of the bucket if they are all full.
+	 */
+	private void addToChain(TransactionId tid, List<HashIndexPage> chain, Field key, int ridPage, int ridSlot,
+			List<Page> dirty) throws IOException, TransactionAbortedException, DbException {
+		HashIndexPage target = null;
+		for (HashIndexPage page : chain) {
+			if (!page.isFull()) {
+				target = page;
+				break;
+			}
+		}
+		if (target == null) {
+			target = newPage(tid);
+			HashIndexPage last = chain.get(chain.size() - 1);
+			last.setOverflow(target.getId().getPageNumber());
+			changed(tid, last, dirty);
+			chain.add(target);
+		}
+		target.addEntry(key, ridPage, ridSlot);
+		changed(tid, target, dirty);
+	}
+
+	/**
+	 * Adds a page to the pages an insert or delete changed, marking it dirty
+	 * right away so that the BufferPool doesn't evict it while the insert or
+	 * delete still needs it.
+	 */
+	private static void changed(TransactionId tid, HashIndexPage page, List<Page> dirty) {
+		page.markDirty(true, tid);
+		if (!dirty.contains(page)) dirty.add(page);
+	}
+
+	/**
+	 * Adds an entry for a tuple that was just inserted into the table,
+	 * splitting the next bucket if the buckets have become too full.
+	 *
+	 * @param t a tuple of the table, with the record id it was inserted at
+	 * @return the pages of the index that were changed
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		RecordId rid = t.getRecordId();
+		ArrayList<Page> dirty = new ArrayList<>();
+
+		HashIndexPage header = getPage(tid, HEADER_PAGE, Permissions.READ_WRITE);
+		List<HashIndexPage> chain = chain(tid, header.getBucketPage(bucket(header, key)), Permissions.READ_WRITE);
+		addToChain(tid, chain, key, rid.getPageId().getPageNumber(), rid.getTupleNumber(), dirty);
+		header.setNumEntries(header.getNumEntries() + 1);
+		changed(tid, header, dirty);
+
+		int perPage = chain.get(0).getMaxEntries();
+		if (header.getNumEntries() > MAX_LOAD * perPage * header.getNumBuckets()
+				&& header.getNumBuckets() < header.getMaxBuckets()) {
+			split(tid, header, dirty);
+		}
+		return dirty;
+	}
+
+	/**
+	 * Splits the bucket the split pointer is on, moving the entries whose
+	 * hash has the next bit set to a new bucket.
+	 */
+	private void split(TransactionId tid, HashIndexPage header, List<Page> dirty)
+			throws IOException, TransactionAbortedException, DbException {
+		int old = header.getNext();
+		int mask = (1 << (header.getLevel() + 1)) - 1;
+
+		List<HashIndexPage> oldChain = chain(tid, header.getBucketPage(old), Permissions.READ_WRITE);
+		List<Field> keys = new ArrayList<>();
+		List<Integer> ridPages = new ArrayList<>();
+		List<Integer> ridSlots = new ArrayList<>();
+		for (HashIndexPage page : oldChain) {
+			for (int i = 0; i < page.getNumEntries(); i++) {
+				keys.add(page.getKey(i));
+				ridPages.add(page.getRidPage(i));
+				ridSlots.add(page.getRidSlot(i));
+			}
+			page.clearEntries();
+			changed(tid, page, dirty);
+		}
+
+		List<HashIndexPage> newChain = new ArrayList<>();
+		HashIndexPage first = newPage(tid);
+		newChain.add(first);
+		changed(tid, first, dirty);
+		header.addBucket(first.getId().getPageNumber());
+		header.advanceNext();
+
+		// the emptied pages of the old bucket stay in its chain, to be filled again
+		for (int i = 0; i < keys.size(); i++) {
+			List<HashIndexPage> target = (hash(keys.get(i)) & mask) == old ? oldChain : newChain;
+			addToChain(tid, target, keys.get(i), ridPages.get(i), ridSlots.get(i), dirty);
+		}
+	}
+
+	/**
+	 * Removes the entry for a tuple that is being deleted from the table.
+	 *
+	 * @return the pages of the index that were changed
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		RecordId rid = t.getRecordId();
+
+		HashIndexPage header = getPage(tid, HEADER_PAGE, Permissions.READ_WRITE);
+		for (HashIndexPage page : chain(tid, header.getBucketPage(bucket(header, key)), Permissions.READ_WRITE)) {
+			for (int i = 0; i < page.getNumEntries(); i++) {
+				if (page.getRidPage(i) == rid.getPageId().getPageNumber() && page.getRidSlot(i) == rid.getTupleNumber()
+						&& page.getKey(i).equals(key)) {
+					page.deleteEntry(i);
+					header.setNumEntries(header.getNumEntries() - 1);
+					ArrayList<Page> dirty = new ArrayList<>();
+					dirty.add(page);
+					dirty.add(header);
+					return dirty;
+				}
+			}
+		}
+		throw new DbException("tuple isn't in the index");
+	}
+
+	/**
+	 * @return every tuple of the table, bucket by bucket
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashIterator(tid, null);
+	}
+
+	/**
+	 * @return true for equality only
+	 */
+	public boolean supports(Predicate.Op op) {
+		return op == Predicate.Op.EQUALS;
+	}
+
+	/**
+	 * Returns the tuples of the table whose key equals operand. Only the
+	 * pages of the key's bucket, and the heap pages of the matching tuples,
+	 * are read.
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, Predicate.Op op, Field operand) {
+		if (!supports(op)) throw new IllegalArgumentException("can't scan a hash index for " + op);
+		return new HashIterator(tid, operand);
+	}
+
+	private class HashIterator extends AbstractDbFileIterator {
+
+		TransactionId transactionId;
+		Field operand;
+
+		// the buckets left to read after the current one
+		int nextBucket;
+		int lastBucket;
+		HashIndexPage page;
+		int position;
+		boolean open;
+
+		HashIterator(TransactionId tid, Field operand) {
+			this.transactionId = tid;
+			this.operand = operand;
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			open = true;
+			rewind();
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			HashIndexPage header = getPage(transactionId, HEADER_PAGE, Permissions.READ_ONLY);
+			nextBucket = operand == null ? 0 : bucket(header, operand);
+			lastBucket = operand == null ? header.getNumBuckets() - 1 : nextBucket;
+			page = null;
+			position = 0;
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			open = false;
+			page = null;
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (!open) return null;
+			while (true) {
+				if (page == null || position == page.getNumEntries()) {
+					int p;
+					if (page != null && page.getOverflow() >= 0) {
+						p = page.getOverflow();
+					} else if (nextBucket <= lastBucket) {
+						HashIndexPage header = getPage(transactionId, HEADER_PAGE, Permissions.READ_ONLY);
+						p = header.getBucketPage(nextBucket++);
+					} else {
+						return null;
+					}
+					page = getPage(transactionId, p, Permissions.READ_ONLY);
+					position = 0;
+					continue;
+				}
+
+				int i = position++;
+				if (operand != null && !page.getKey(i).equals(operand)) continue;
+
+				HeapPageId pid = new HeapPageId(table.getId(), page.getRidPage(i));
+				HeapPage heapPage = (HeapPage) Database.getBufferPool()
+						.getPage(transactionId, table, pid, Permissions.READ_ONLY);
+				Tuple t = heapPage.getTuple(page.getRidSlot(i));
+				if (t != null) return t;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,294 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * A page of a HashIndexFile. Page 0 of the file is a header page that holds
+ * the state of the linear hash table: its level, the next bucket to split,
+ * the number of entries, and the page number of the first page of each
+ * bucket. Every other page is a bucket page, holding (key, record id) entries
+ * in no particular order and the page number of the next page of the same
+ * bucket, if the bucket has overflowed.
+ * <p>
+ * Each page starts with a category byte and the type of the keys.
+ */
+public class HashIndexPage implements Page {
+
+	public static final int EMPTY = 0;
+	public static final int HEADER = 1;
+	public static final int BUCKET = 2;
+
+	private static final int BUCKET_HEADER_SIZE = 1 + 1 + 4 + 4;
+	private static final int HEADER_PAGE_HEADER_SIZE = 1 + 1 + 4 * 4;
+
+	private HashIndexPageId pid;
+	private Type keyType;
+	private int category;
+
+	// for the header page
+	private int level;
+	private int next;
+	private int numEntries;
+	private int numBuckets;
+	private int[] buckets;
+
+	// for a bucket page; numEntries counts the entries on the page
+	private int overflow;
+	private Field[] keys;
+	private int[] ridPages;
+	private int[] ridSlots;
+
+	private TransactionId lastTransaction;
+	private boolean isDirty;
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	public HashIndexPage(HashIndexPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.isDirty = false;
+
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		try {
+			category = dis.readByte();
+			keyType = Type.values()[dis.readByte()];
+			allocate();
+			if (category == HEADER) {
+				level = dis.readInt();
+				next = dis.readInt();
+				numEntries = dis.readInt();
+				numBuckets = dis.readInt();
+				for (int i = 0; i < numBuckets; i++) {
+					buckets[i] = dis.readInt();
+				}
+			} else if (category == BUCKET) {
+				numEntries = dis.readInt();
+				overflow = dis.readInt();
+				for (int i = 0; i < numEntries; i++) {
+					keys[i] = keyType.parse(dis);
+					ridPages[i] = dis.readInt();
+					ridSlots[i] = dis.readInt();
+				}
+			}
+		} catch (ParseException e) {
+			throw new IOException(e);
+		} finally {
+			dis.close();
+		}
+
+		setBeforeImage();
+	}
+
+	private void allocate() {
+		if (category == HEADER) {
+			buckets = new int[getMaxBuckets()];
+		} else {
+			keys = new Field[getMaxEntries()];
+			ridPages = new int[getMaxEntries()];
+			ridSlots = new int[getMaxEntries()];
+		}
+	}
+
+	/** @return the number of entries that fit on a bucket page */
+	public int getMaxEntries() {
+		return (BufferPool.getPageSize() - BUCKET_HEADER_SIZE) / (keyType.getLen() + 8);
+	}
+
+	/** @return the number of buckets the header page has room for */
+	public int getMaxBuckets() {
+		return (BufferPool.getPageSize() - HEADER_PAGE_HEADER_SIZE) / 4;
+	}
+
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()];
+	}
+
+	/**
+	 * Turns an empty page into a page of the given category with no entries.
+	 */
+	void init(int category, Type keyType) {
+		this.category = category;
+		this.keyType = keyType;
+		this.numEntries = 0;
+		this.overflow = -1;
+		allocate();
+	}
+
+	@Override
+	public HashIndexPageId getId() {
+		return pid;
+	}
+
+	public int getCategory() {
+		return category;
+	}
+
+	/** @return the number of times the number of buckets has doubled */
+	public int getLevel() {
+		return level;
+	}
+
+	/** @return the next bucket to split */
+	public int getNext() {
+		return next;
+	}
+
+	/**
+	 * Moves the split pointer on to the next bucket, starting the next level
+	 * once every bucket of this one has been split.
+	 */
+	void advanceNext() {
+		next++;
+		if (next == 1 << level) {
+			level++;
+			next = 0;
+		}
+	}
+
+	/**
+	 * @return for the header page, the number of entries in the index; for a
+	 *   bucket page, the number on the page
+	 */
+	public int getNumEntries() {
+		return numEntries;
+	}
+
+	void setNumEntries(int numEntries) {
+		this.numEntries = numEntries;
+	}
+
+	public int getNumBuckets() {
+		return numBuckets;
+	}
+
+	/** @return the page number of the first page of bucket b */
+	public int getBucketPage(int b) {
+		return buckets[b];
+	}
+
+	void addBucket(int pageNumber) {
+		buckets[numBuckets++] = pageNumber;
+	}
+
+	/** @return the next page of this bucket, or -1 if this is the last one */
+	public int getOverflow() {
+		return overflow;
+	}
+
+	void setOverflow(int pageNumber) {
+		overflow = pageNumber;
+	}
+
+	public boolean isFull() {
+		return numEntries == getMaxEntries();
+	}
+
+	public Field getKey(int i) {
+		return keys[i];
+	}
+
+	public int getRidPage(int i) {
+		return ridPages[i];
+	}
+
+	public int getRidSlot(int i) {
+		return ridSlots[i];
+	}
+
+	/** Adds an entry to a bucket page that isn't full. */
+	void addEntry(Field key, int ridPage, int ridSlot) {
+		keys[numEntries] = key;
+		ridPages[numEntries] = ridPage;
+		ridSlots[numEntries] = ridSlot;
+		numEntries++;
+	}
+
+	/** Removes entry i, moving the last entry of the page into its place. */
+	void deleteEntry(int i) {
+		numEntries--;
+		keys[i] = keys[numEntries];
+		ridPages[i] = ridPages[numEntries];
+		ridSlots[i] = ridSlots[numEntries];
+		keys[numEntries] = null;
+	}
+
+	/** Removes every entry from a bucket page, keeping its overflow page. */
+	void clearEntries() {
+		for (int i = 0; i < numEntries; i++) {
+			keys[i] = null;
+		}
+		numEntries = 0;
+	}
+
+	@Override
+	public TransactionId isDirty() {
+		if (isDirty) return lastTransaction;
+		return null;
+	}
+
+	@Override
+	public void markDirty(boolean dirty, TransactionId tid) {
+		isDirty = dirty;
+		lastTransaction = tid;
+	}
+
+	@Override
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeByte(category);
+			dos.writeByte(keyType.ordinal());
+			if (category == HEADER) {
+				dos.writeInt(level);
+				dos.writeInt(next);
+				dos.writeInt(numEntries);
+				dos.writeInt(numBuckets);
+				for (int i = 0; i < numBuckets; i++) {
+					dos.writeInt(buckets[i]);
+				}
+			} else if (category == BUCKET) {
+				dos.writeInt(numEntries);
+				dos.writeInt(overflow);
+				for (int i = 0; i < numEntries; i++) {
+					keys[i].serialize(dos);
+					dos.writeInt(ridPages[i]);
+					dos.writeInt(ridSlots[i]);
+				}
+			}
+			dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	@Override
+	public HashIndexPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new HashIndexPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	@Override
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+}
@@ -1,7 +1,18 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -9,17 +20,100 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * A HeapFile can also be built from a CSV, which is converted to a .dat file
+ * the first time the table is read.
+ * When the CSV changes, a background thread converts it again into a new .dat
+ * file and then swaps the table over to it; scans that are already running keep
+ * reading the .dat file they started with until they are closed. Rows that
+ * were only appended to the CSV are converted onto the end of the current .dat
+ * file instead, as long as no scan is reading it.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements DbFile, MultiPageFile {
 	
-	private File file;
+	/** Converts changed CSVs into new snapshots, one table at a time. */
+	private static final ExecutorService reloader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "heap file reloader");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	/**
+	 * One version of the .dat file. A snapshot is never written to once a
+	 * newer one has replaced it, and its file is deleted when the last scan
+	 * reading it closes.
+	 * <p>
+	 * In mapped mode pages are parsed straight out of a read-only mapping of
+	 * the file, with no system call and no copy of the page's bytes; writes
+	 * still go through the channel, and the mapping sees them. A page only
+	 * partly inside the file is copied, so the part past the end reads as
+	 * zeros.
+	 */
+	private static class Snapshot extends FileSnapshot {
+		private MappedByteBuffer mapped;
+		
+		Snapshot(File file) {
+			super(file, true);
+		}
+		
+		int numPages() {
+			return (int) Math.floor(file.length() / BufferPool.getPageSize());
+		}
+		
+		/**
+		 * @return a mapping of the file that covers at least length bytes, or
+		 *   as much of it as the file holds; null if the file is too big to
+		 *   map in one piece. The file is only mapped again once its size
+		 *   changed, so reads past its end don't remap it.
+		 */
+		synchronized MappedByteBuffer getMapping(long length) throws IOException {
+			if (mapped != null && mapped.capacity() >= length) return mapped;
+			long size = getChannel().size();
+			if (mapped != null && mapped.capacity() == size) return mapped;
+			if (size > Integer.MAX_VALUE) return null;
+			mapped = getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return mapped;
+		}
+		
+		@Override
+		synchronized void close() {
+			super.close();
+			mapped = null;
+		}
+		
+		/** Deletes the file once no scan reads this snapshot any more. */
+		@Override
+		synchronized void discard() {
+			close();
+			file.delete();
+		}
+	}
+	
+	private volatile Snapshot current;
+	private int id;
 	private File csv;
 	private TupleDesc tupleDesc;
 	private boolean isCsvBacked;
-	private long lastKnownCsvMod;
+	private FileWatcher.WatchedFile watched;
+	// the version of the CSV the last reload was started for
+	private volatile long knownVersion;
+	private CsvPageIndex csvIndex;
+	// whether the CSV has been converted into the first snapshot yet
+	private boolean converted;
+	private int snapshotVersion;
+	private Future<?> pendingReload;
+	private volatile boolean mappedReads;
+	// whether the table was dropped, so the file is closed after each use
+	private boolean closed;
+	// held shared by page writes, and exclusively while an appended CSV is
+	// converted, so no write lands between the conversion and the swap
+	private final ReadWriteLock writeLock = new ReentrantReadWriteLock();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -37,10 +131,17 @@ public class HeapFile implements DbFile {
     	if (f.getName().contains(".csv")) {
     		csv = f;
     		isCsvBacked = true;
-    		reloadFileFromCsv();
+    		csvIndex = new CsvPageIndex(csv, getNumTuplesPerPage());
+    		watched = FileWatcher.getInstance().watch(csv);
+    		knownVersion = watched.check();
+    		current = new Snapshot(new File(csv.getName().replaceAll(".csv", ".dat")));
+    		converted = false;
+    		removeStaleSnapshots();
     	} else {
-    		file = f;
+    		current = new Snapshot(f);
+    		converted = true;
     	}
+    	id = current.file.getAbsoluteFile().hashCode();
     }
 
     /**
@@ -49,11 +150,14 @@ public class HeapFile implements DbFile {
      * @return the File backing this HeapFile on disk.
      */
     public File getFile() {
-        return file;
+        return current.file;
     }
     
+    /**
+     * @return whether the CSV has changed since a reload was last started
+     */
     public boolean isModified() {
-    	return isCsvBacked && csv.lastModified() > lastKnownCsvMod;
+    	return isCsvBacked && watched.getVersion() != knownVersion;
     }
 
     /**
@@ -66,7 +170,7 @@ public class HeapFile implements DbFile {
      * @return an ID uniquely identifying this HeapFile.
      */
     public int getId() {
-        return file.getAbsoluteFile().hashCode();
+        return id;
     }
 
     /**
@@ -78,44 +182,149 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /**
+     * Makes pages be read from a memory mapping of the file instead of with
+     * a read on its channel. Files too big to map in one piece are still read
+     * through the channel.
+     */
+    public void useMappedReads(boolean mapped) {
+    	this.mappedReads = mapped;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
-    	if (isCsvBacked && csv.lastModified() > lastKnownCsvMod) {
-    		reloadFileFromCsv();
+    	if (isModified()) {
+    		scheduleReload();
     	}
-    	
+    	// a scan's view already holds the snapshot the page is read from
+    	if (pid instanceof SnapshotPageId) return readPage(((SnapshotPageId) pid).snapshot, pid);
+    	// keep a reload from closing the snapshot while the page is read
+    	Snapshot snapshot = acquireSnapshot();
+    	try {
+    		return readPage(snapshot, pid);
+    	} finally {
+    		releaseSnapshot(snapshot);
+    	}
+    }
+    
+    private Page readPage(Snapshot snapshot, PageId pid) {
 //    	System.out.println("reading page");
     	
-    	byte[] data = new byte[BufferPool.getPageSize()];
+    	int pageSize = BufferPool.getPageSize();
+    	long offset = (long) pid.getPageNumber() * pageSize;
+    	HeapPageId pageId = new HeapPageId(getId(), pid.getPageNumber());
     	
     	try {
-			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-			randomAccessFile.seek(pid.getPageNumber() * BufferPool.getPageSize());
-			randomAccessFile.read(data);
-			randomAccessFile.close();
+    		MappedByteBuffer mapped = mappedReads ? snapshot.getMapping(offset + pageSize) : null;
+    		if (mapped != null && offset + pageSize <= mapped.limit()) {
+    			ByteBuffer view = mapped.duplicate();
+    			view.position((int) offset);
+    			view.limit((int) offset + pageSize);
+    			return new HeapPage(pageId, view, tupleDesc);
+    		}
+    		
+    		byte[] data = new byte[pageSize];
+    		if (mapped != null) {
+    			ByteBuffer view = mapped.duplicate();
+    			view.position((int) Math.min(offset, view.limit()));
+    			view.get(data, 0, Math.min(data.length, view.remaining()));
+    		} else {
+    			// past the end of the file the page reads as empty
+    			snapshot.read(ByteBuffer.wrap(data), offset);
+    		}
 			
-			return new HeapPage(new HeapPageId(getId(), pid.getPageNumber()), data);
+			return new HeapPage(pageId, data, tupleDesc);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalArgumentException("can't read page " + pid.getPageNumber() + " of "
+					+ snapshot.file + ": " + e.getMessage(), e);
 		}
-	    
-	    return null;
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-    	RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
-		randomAccessFile.seek(page.getId().getPageNumber() * BufferPool.getPageSize());
-		randomAccessFile.write(page.getPageData());
-		randomAccessFile.close();
+    	writeLock.readLock().lock();
+    	Snapshot snapshot = acquireSnapshot();
+    	try {
+    		snapshot.write(ByteBuffer.wrap(page.getPageData()),
+    				(long) page.getId().getPageNumber() * BufferPool.getPageSize());
+    	} finally {
+    		releaseSnapshot(snapshot);
+    		writeLock.readLock().unlock();
+    	}
+    }
+
+    /**
+     * Reads a run of pages with a single scatter read, or straight out of the
+     * mapping in mapped mode.
+     */
+    public List<Page> readPages(PageId first, int count) throws IOException {
+    	if (isModified()) {
+    		scheduleReload();
+    	}
+    	if (first instanceof SnapshotPageId) return readPages(((SnapshotPageId) first).snapshot, first, count);
+    	Snapshot snapshot = acquireSnapshot();
+    	try {
+    		return readPages(snapshot, first, count);
+    	} finally {
+    		releaseSnapshot(snapshot);
+    	}
+    }
+    
+    private List<Page> readPages(Snapshot snapshot, PageId first, int count) throws IOException {
+    	int pageSize = BufferPool.getPageSize();
+    	count = Math.min(count, snapshot.numPages() - first.getPageNumber());
+    	List<Page> pages = new ArrayList<>();
+    	if (count <= 0) return pages;
+    	
+    	long offset = (long) first.getPageNumber() * pageSize;
+    	MappedByteBuffer mapped = mappedReads ? snapshot.getMapping(offset + (long) count * pageSize) : null;
+    	if (mapped != null && offset + (long) count * pageSize <= mapped.limit()) {
+    		for (int i = 0; i < count; i++) {
+    			ByteBuffer view = mapped.duplicate();
+    			view.position((int) offset + i * pageSize);
+    			view.limit((int) offset + (i + 1) * pageSize);
+    			pages.add(new HeapPage(new HeapPageId(getId(), first.getPageNumber() + i), view, tupleDesc));
+    		}
+    		return pages;
+    	}
+    	
+    	byte[][] data = new byte[count][pageSize];
+    	ByteBuffer[] buffers = new ByteBuffer[count];
+    	for (int i = 0; i < count; i++) {
+    		buffers[i] = ByteBuffer.wrap(data[i]);
+    	}
+    	snapshot.readFully(buffers, offset);
+    	
+    	for (int i = 0; i < count; i++) {
+    		pages.add(new HeapPage(new HeapPageId(getId(), first.getPageNumber() + i), data[i], tupleDesc));
+    	}
+    	return pages;
+    }
+
+    /**
+     * Writes a run of pages with a single gather write.
+     */
+    public void writePages(List<Page> pages) throws IOException {
+    	if (pages.isEmpty()) return;
+    	ByteBuffer[] buffers = new ByteBuffer[pages.size()];
+    	for (int i = 0; i < buffers.length; i++) {
+    		buffers[i] = ByteBuffer.wrap(pages.get(i).getPageData());
+    	}
+    	writeLock.readLock().lock();
+    	Snapshot snapshot = acquireSnapshot();
+    	try {
+    		snapshot.writeFully(buffers, (long) pages.get(0).getId().getPageNumber() * BufferPool.getPageSize());
+    	} finally {
+    		releaseSnapshot(snapshot);
+    		writeLock.readLock().unlock();
+    	}
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-        return (int) Math.floor(file.length() / BufferPool.getPageSize());
+        return current().numPages();
     }
 
     // see DbFile.java for javadocs
@@ -123,16 +332,16 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
     	int currentPageNumber = 0;
     	HeapPage currentPage = (HeapPage) Database.getBufferPool()
-				.getPage(tid, new HeapPageId(getId(), currentPageNumber), Permissions.READ_ONLY);
+				.getPage(tid, this, new HeapPageId(getId(), currentPageNumber), Permissions.READ_ONLY);
     	while (currentPage.getNumEmptySlots() == 0 && currentPageNumber < numPages()) {
     		Database.getBufferPool().releasePage(tid, new HeapPageId(getId(), currentPageNumber));
     		currentPageNumber++;
     		currentPage = (HeapPage) Database.getBufferPool()
-    				.getPage(tid, new HeapPageId(getId(), currentPageNumber), Permissions.READ_ONLY);
+    				.getPage(tid, this, new HeapPageId(getId(), currentPageNumber), Permissions.READ_ONLY);
     	}
     	
     	currentPage = (HeapPage) Database.getBufferPool()
-				.getPage(tid, new HeapPageId(getId(), currentPageNumber), Permissions.READ_WRITE);
+				.getPage(tid, this, new HeapPageId(getId(), currentPageNumber), Permissions.READ_WRITE);
     	currentPage.insertTuple(t);
     	
     	if (currentPageNumber >= numPages()) {
@@ -148,7 +357,7 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
     	HeapPage page =
-    			(HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
+    			(HeapPage) Database.getBufferPool().getPage(tid, this, t.getRecordId().getPageId(), Permissions.READ_WRITE);
     	
     	page.deleteTuple(t);
     	
@@ -159,17 +368,182 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
+    	// one stat per scan, in case the watcher hasn't caught up yet
+    	if (isCsvBacked) watched.check();
+    	if (isModified()) {
+    		scheduleReload();
+    	}
     	return new DbFileIteratorImpl(tid);
     }
     
+    /**
+     * Waits for any reload of the CSV that has been started to finish, so
+     * that new scans see the CSV as it was when the reload started.
+     */
+    public void awaitReload() throws InterruptedException {
+    	Future<?> pending;
+    	synchronized (this) {
+    		pending = pendingReload;
+    	}
+    	if (pending == null) return;
+    	try {
+    		pending.get();
+    	} catch (java.util.concurrent.ExecutionException e) {
+    		throw new RuntimeException(e.getCause());
+    	}
+    }
+    
+    /**
+     * Starts converting the CSV in the background. Scans keep reading the
+     * current snapshot until the new one is swapped in.
+     */
+    private synchronized void scheduleReload() {
+    	if (!isModified()) return;
+    	knownVersion = watched.getVersion();
+    	pendingReload = reloader.submit(new Runnable() {
+			@Override
+			public void run() {
+				reloadFileFromCsv();
+			}
+		});
+    }
+    
+    /**
+     * Builds a new snapshot from the CSV backing this file and swaps it in. If
+     * rows were only appended to the CSV, just the last page of the current
+     * .dat file and the new pages are re-encoded, and only the old last page
+     * is dropped from the buffer pool: they are written straight onto the
+     * current .dat file, unless a scan is reading it, in which case they go
+     * onto a copy of it that becomes the new snapshot. Pages aren't written
+     * meanwhile, so none are lost to the old snapshot.
+     */
     private void reloadFileFromCsv() {
-    	file = convert(csv);
-		lastKnownCsvMod = csv.lastModified();
+    	try {
+    		current();
+    		CsvPageIndex.Change change = csvIndex.update();
+    		
+    		if (change == CsvPageIndex.Change.APPEND) {
+    			writeLock.writeLock().lock();
+    			try {
+    				Snapshot old = current();
+    				int lastPage = Math.max(old.numPages() - 1, 0);
+    				if (!appendInPlace(old, lastPage)) {
+    					File target = nextSnapshotFile();
+    					Files.copy(old.file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    					convertTail(csv, csvIndex.getPageStart(lastPage), target, lastPage);
+    					BitSet changed = new BitSet();
+    					changed.set(lastPage);
+    					swap(new Snapshot(target), changed);
+    				}
+    			} finally {
+    				writeLock.writeLock().unlock();
+    			}
+    		} else if (change == CsvPageIndex.Change.REWRITE) {
+    			// pages of the old snapshot whose rows didn't change stay cached
+    			swap(new Snapshot(convert(csv, nextSnapshotFile())), csvIndex.getChangedPages());
+    		}
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    	}
+    }
+    
+    /**
+     * Re-encodes the appended rows straight onto the end of a snapshot's file,
+     * if it is still the current one and no scan is reading it. Scans can't
+     * start on it meanwhile, since they would wait for this file's lock.
+     * 
+     * @return whether the rows were appended
+     */
+    private synchronized boolean appendInPlace(Snapshot snapshot, int lastPage) throws IOException {
+    	if (snapshot != current || snapshot.readers() > 0) return false;
+    	convertTail(csv, csvIndex.getPageStart(lastPage), snapshot.file, lastPage);
+    	Database.getBufferPool().discardPage(new HeapPageId(getId(), lastPage));
+    	return true;
+    }
+    
+    /**
+     * Makes next the current snapshot and drops the given pages of the old one
+     * from the buffer pool.
+     */
+    private synchronized void swap(Snapshot next, BitSet changed) {
+    	Snapshot old = current;
+    	current = next;
+    	for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+    		Database.getBufferPool().discardPage(new HeapPageId(getId(), i));
+    	}
+    	old.retire();
+    	if (closed) next.closeWhenUnused();
+    }
+    
+    /**
+     * @return the current snapshot, converting the CSV into it the first
+     *   time the table is used
+     */
+    private synchronized Snapshot current() {
+    	if (!converted) {
+    		convert(csv, current.file);
+    		try {
+    			csvIndex.update();
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		}
+    		converted = true;
+    	}
+    	return current;
+    }
+    
+    private synchronized Snapshot acquireSnapshot() {
+    	Snapshot snapshot = current();
+    	snapshot.acquire();
+    	return snapshot;
+    }
+    
+    private synchronized void releaseSnapshot(Snapshot snapshot) {
+    	snapshot.release();
+    }
+
+    /**
+     * Stops watching the CSV, if the file is backed by one, and closes the
+     * .dat file once no scan is reading it.
+     */
+    @Override
+    public synchronized void close() {
+    	if (closed) return;
+    	closed = true;
+    	if (isCsvBacked) FileWatcher.getInstance().unwatch(csv);
+    	current.closeWhenUnused();
+    }
+    
+    /**
+     * Deletes the snapshots a previous run left next to the first .dat file,
+     * and numbers new ones after any that can't be deleted, so that none is
+     * overwritten.
+     */
+    private void removeStaleSnapshots() {
+    	File dir = current.file.getAbsoluteFile().getParentFile();
+    	String prefix = csv.getName().replaceAll(".csv", ".");
+    	File[] files = dir == null ? null : dir.listFiles();
+    	if (files == null) return;
+    	for (File f : files) {
+    		String name = f.getName();
+    		if (!name.startsWith(prefix) || !name.endsWith(".dat")) continue;
+    		String version = name.substring(prefix.length(), name.length() - ".dat".length());
+    		if (!version.matches("[0-9]+")) continue;
+    		if (!f.delete()) snapshotVersion = Math.max(snapshotVersion, Integer.parseInt(version));
+    	}
+    }
+
+    /**
+     * @return a file name for the next snapshot, next to the first .dat file
+     */
+    private synchronized File nextSnapshotFile() {
+    	snapshotVersion++;
+    	String name = csv.getName().replaceAll(".csv", "." + snapshotVersion + ".dat");
+    	return new File(current.file.getAbsoluteFile().getParentFile(), name);
     }
     
-    private File convert(File sourceTxtFile) {
+    private File convert(File sourceTxtFile, File targetDatFile) {
 		try {
-            File targetDatFile=new File(sourceTxtFile.getName().replaceAll(".csv", ".dat"));
 //            System.out.println("num fields: " + tupleDesc.numFields());
             Type[] ts = new Type[tupleDesc.numFields()];
             char fieldSeparator=',';
@@ -187,6 +561,112 @@ public class HeapFile implements DbFile {
 		
 	}
     
+    private void convertTail(File sourceTxtFile, long offset, File target, int firstPage) throws IOException {
+    	Type[] ts = new Type[tupleDesc.numFields()];
+    	for (int i=0;i<tupleDesc.numFields();i++)
+    		ts[i]=tupleDesc.getFieldType(i);
+    	
+    	HeapFileEncoder.convertTail(sourceTxtFile, offset, target, firstPage,
+    			BufferPool.getPageSize(), tupleDesc.numFields(), ts, ',');
+    }
+    
+    /**
+     * @return the number of tuples on a HeapPage of this file, which is also
+     *   the number of CSV rows that end up on each page
+     */
+    private int getNumTuplesPerPage() {
+    	return (BufferPool.getPageSize() * 8) / (tupleDesc.getSize() * 8 + 1);
+    }
+    
+    /**
+     * The file as one snapshot of it. A scan hands this to the BufferPool, so
+     * the pages the pool reads for it, and those ReadAhead reads after them
+     * on its own threads, come from the snapshot the scan holds. Everything
+     * but reading goes to the file itself, and reads go through the file's
+     * readPage and readPages too, so overriding them still sees every read.
+     */
+    private class SnapshotFile implements DbFile, MultiPageFile {
+    	
+    	private final Snapshot snapshot;
+    	
+    	SnapshotFile(Snapshot snapshot) {
+    		this.snapshot = snapshot;
+    	}
+    	
+		@Override
+		public Page readPage(PageId pid) {
+			return HeapFile.this.readPage(new SnapshotPageId(pid, snapshot));
+		}
+		
+		@Override
+		public List<Page> readPages(PageId first, int count) throws IOException {
+			return HeapFile.this.readPages(new SnapshotPageId(first, snapshot), count);
+		}
+		
+		@Override
+		public int numPages() {
+			return snapshot.numPages();
+		}
+		
+		@Override
+		public DbFile getTableFile() {
+			return HeapFile.this;
+		}
+		
+		@Override
+		public void writePage(Page page) throws IOException {
+			HeapFile.this.writePage(page);
+		}
+		
+		@Override
+		public void writePages(List<Page> pages) throws IOException {
+			HeapFile.this.writePages(pages);
+		}
+		
+		@Override
+		public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+				throws DbException, IOException, TransactionAbortedException {
+			return HeapFile.this.insertTuple(tid, t);
+		}
+		
+		@Override
+		public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+				throws DbException, TransactionAbortedException {
+			return HeapFile.this.deleteTuple(tid, t);
+		}
+		
+		@Override
+		public DbFileIterator iterator(TransactionId tid) {
+			return HeapFile.this.iterator(tid);
+		}
+		
+		@Override
+		public int getId() {
+			return HeapFile.this.getId();
+		}
+		
+		@Override
+		public TupleDesc getTupleDesc() {
+			return tupleDesc;
+		}
+		
+		@Override
+		public boolean isModified() {
+			return HeapFile.this.isModified();
+		}
+    }
+    
+    /** The id of a page to read from a particular snapshot. */
+    private static class SnapshotPageId extends HeapPageId {
+    	
+    	final Snapshot snapshot;
+    	
+    	SnapshotPageId(PageId pid, Snapshot snapshot) {
+    		super(pid.getTableId(), pid.getPageNumber());
+    		this.snapshot = snapshot;
+    	}
+    }
+    
     private class DbFileIteratorImpl extends AbstractDbFileIterator {
     	
     	TransactionId transactionId;
@@ -194,6 +674,8 @@ public class HeapFile implements DbFile {
     	Iterator<Tuple> currentTupleIterator;
     	
     	boolean open;
+    	Snapshot snapshot;
+    	SnapshotFile view;
 
     	public DbFileIteratorImpl(TransactionId tid) {
     		this.transactionId = tid;
@@ -204,12 +686,22 @@ public class HeapFile implements DbFile {
 
 		@Override
 		public void open() throws DbException, TransactionAbortedException {
+			if (!open) {
+				snapshot = acquireSnapshot();
+				view = new SnapshotFile(snapshot);
+			}
 			open = true;
+			if (!snapshot.file.isFile()) {
+				throw new DbException(snapshot.file + " doesn't exist");
+			}
 		}
 		
 		@Override
 		public void close() {
 			super.close();
+			if (open) releaseSnapshot(snapshot);
+			snapshot = null;
+			view = null;
 			open = false;
 		}
 	
@@ -239,9 +731,25 @@ public class HeapFile implements DbFile {
 		}
 		
 		private void moveToNextPopulatedPage() throws TransactionAbortedException, DbException {
-			while(!currentTupleIterator.hasNext() && nextPageNumber <= numPages() - 1) {
-				HeapPage page = (HeapPage) Database.getBufferPool()
-						.getPage(transactionId, new HeapPageId(getId(), nextPageNumber), Permissions.READ_ONLY);
+			Snapshot reading = snapshot != null ? snapshot : current;
+			while(!currentTupleIterator.hasNext() && nextPageNumber <= reading.numPages() - 1) {
+				HeapPageId pid = new HeapPageId(getId(), nextPageNumber);
+				HeapPage page = null;
+				if (reading == current) {
+					// the pool, and ReadAhead after it, read through the scan's snapshot
+					page = (HeapPage) Database.getBufferPool().getPage(transactionId,
+							view != null ? view : HeapFile.this, pid, Permissions.READ_ONLY);
+					if (reading != current && page.isDirty() == null) {
+						// swapped while the pool read the page, which may be the new
+						// snapshot's; and one read from this snapshot mustn't stay cached
+						Database.getBufferPool().discardPage(pid);
+					}
+				}
+				if (reading != current) {
+					// the table has moved on to a newer snapshot, which this scan mustn't
+					// see; the old one is never written to, so read it directly
+					page = (HeapPage) readPage(reading, pid);
+				}
 
 				nextPageNumber++;
 				currentTupleIterator = page.iterator();
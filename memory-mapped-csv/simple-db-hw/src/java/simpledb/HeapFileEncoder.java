@@ -90,6 +90,58 @@ public class HeapFileEncoder {
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      BufferedReader br = new BufferedReader(new FileReader(inFile));
+      FileOutputStream os = new FileOutputStream(outFile);
+      convert(br, os, npagebytes, numFields, typeAr, fieldSeparator);
+  }
+
+   /** Re-encode the tail of a text file that has been appended to since it
+    * was last converted. <br>
+    * The input file is converted from byte offset <tt>inOffset</tt> onwards
+    * (which must be the start of the first row on page <tt>firstPage</tt>),
+    * writing the new pages over the output file from page <tt>firstPage</tt>
+    * on, and the output file is cut off after the last of them. Pages before
+    * <tt>firstPage</tt> are left untouched. The file is never shorter than
+    * those pages while this runs, so it can be converted in place while it is
+    * memory mapped.
+    *
+    * @param inFile The input file to read data from
+    * @param inOffset The byte offset of the first row to convert
+    * @param outFile The output file to append data to
+    * @param firstPage The number of the first page to (re)write
+    * @param npagebytes The number of bytes per page in the output file
+    * @param numFields the number of fields in each input line/output tuple
+    * @throws IOException if the input/output file can't be opened or a
+    *   malformed input line is encountered
+    */
+  public static void convertTail(File inFile, long inOffset, File outFile, int firstPage,
+                 int npagebytes, int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      FileInputStream is = new FileInputStream(inFile);
+      long skipped = 0;
+      while (skipped < inOffset) {
+          long n = is.skip(inOffset - skipped);
+          if (n <= 0) break;
+          skipped += n;
+      }
+      BufferedReader br = new BufferedReader(new InputStreamReader(is));
+      RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+      raf.seek((long) firstPage * npagebytes);
+      // the stream writes at the file's position, and closes it when done
+      int npages = convert(br, new FileOutputStream(raf.getFD()), npagebytes, numFields, typeAr, fieldSeparator);
+
+      raf = new RandomAccessFile(outFile, "rw");
+      try {
+          raf.setLength((long) (firstPage + npages) * npagebytes);
+      } finally {
+          raf.close();
+      }
+  }
+
+  /** @return the number of pages written */
+  private static int convert(BufferedReader br, FileOutputStream os, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
 
       int nrecbytes = 0;
 //      System.out.println("num fields in converter: " + numFields);
@@ -106,9 +158,6 @@ public class HeapFileEncoder {
         nheaderbytes++;  //ceiling
     int nheaderbits = nheaderbytes * 8;
 
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
 
@@ -224,5 +273,6 @@ public class HeapFileEncoder {
     }
     br.close();
     os.close();
+    return npages;
   }
 }
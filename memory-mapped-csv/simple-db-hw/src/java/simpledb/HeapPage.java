@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -41,15 +42,36 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()));
+    }
+
+    /**
+     * Create a HeapPage of a table with the given TupleDesc, without looking
+     * the table up in the Catalog; see HeapPage(HeapPageId, byte[]).
+     */
+    public HeapPage(HeapPageId id, byte[] data, TupleDesc td) throws IOException {
+        this(id, new ByteArrayInputStream(data), td);
+    }
+
+    /**
+     * Create a HeapPage straight from the remaining bytes of a buffer, such
+     * as a slice of a mapped file, without copying them into an array first.
+     * The buffer is only read while the page is built.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data, TupleDesc td) throws IOException {
+        this(id, new BufferInputStream(data), td);
+    }
+
+    private HeapPage(HeapPageId id, InputStream in, TupleDesc td) throws IOException {
     	this.isDirty = false;
     	this.lastTransactionId = null;
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         this.numSlots = getNumTuples();
         
 //        System.out.println(numSlots);
         
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        DataInputStream dis = new DataInputStream(in);
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
@@ -69,6 +91,29 @@ public class HeapPage implements Page {
         setBeforeImage();
     }
 
+    /** Reads the remaining bytes of a buffer, in place. */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -93,7 +138,7 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid,oldDataRef,td);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -309,6 +354,14 @@ public class HeapPage implements Page {
     	return numEmptySlots;
     }
 
+    /**
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= tuples.length || !isSlotUsed(i)) return null;
+        return tuples[i];
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
@@ -31,6 +31,11 @@ public class HeapPageId implements PageId {
         return pageNumber;
     }
 
+    /** @return the id of another page of the same table */
+    public PageId withPageNumber(int pageNumber) {
+        return new HeapPageId(tableId, pageNumber);
+    }
+
     /**
      * @return a hash code for this page, represented by the concatenation of
      *   the table number and the page number (needed if a PageId is used as a
@@ -0,0 +1,36 @@
+package simpledb;
+
+/**
+ * A DbFile that indexes one column of a HeapFile, mapping values of the
+ * column to the record ids of the tuples that have them. An index's pages go
+ * through the BufferPool like any other file's; once it is added to the
+ * catalog with Catalog.addIndex, BufferPool keeps it up to date as tuples are
+ * inserted into and deleted from the table.
+ */
+public interface IndexFile extends DbFile {
+
+    /**
+     * @return the table the index is on
+     */
+    public HeapFile getTable();
+
+    /**
+     * @return the index of the field of the table the index is on
+     */
+    public int getKeyField();
+
+    /**
+     * @return whether indexIterator can answer predicates with op
+     */
+    public boolean supports(Predicate.Op op);
+
+    /**
+     * Returns the tuples of the table whose key satisfies "key op operand",
+     * reading only those tuples.
+     *
+     * @param tid the transaction the scan runs as part of
+     * @param op an operator supports accepts
+     */
+    public DbFileIterator indexIterator(TransactionId tid, Predicate.Op op, Field operand);
+
+}
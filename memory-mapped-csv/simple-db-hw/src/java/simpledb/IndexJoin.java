@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexJoin is a nested loops join whose inner side is read through an index
+ * on the inner join field: for each outer tuple it probes the index for the
+ * inner tuples that can match, instead of rewinding and scanning the whole
+ * inner child again.
+ */
+public class IndexJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    private IndexScan inner;
+    private Predicate.Op probeOp;
+
+    /**
+     * Constructor.
+     * 
+     * @param p
+     *            The predicate to use to join the children; its second field
+     *            must be the field the inner index is on
+     * @param outer
+     *            Iterator for the left(outer) relation to join
+     * @param inner
+     *            a scan of an index on the right(inner) relation, whose index
+     *            supports probeOperator(p.getOperator())
+     */
+    public IndexJoin(JoinPredicate p, DbIterator outer, IndexScan inner) {
+        super(p, outer, inner);
+        this.inner = inner;
+        this.probeOp = probeOperator(p.getOperator());
+        if (inner.getIndex().getKeyField() != p.getField2()
+                || !inner.getIndex().supports(probeOp))
+            throw new IllegalArgumentException("the index can't answer " + p.getOperator());
+    }
+
+    /**
+     * @return the operator to probe the inner index with, so that the inner
+     *         tuples it returns satisfy "outer op inner": op with its
+     *         operands swapped
+     */
+    public static Predicate.Op probeOperator(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    private void probe() throws DbException, TransactionAbortedException {
+        if (current0 != null)
+            inner.probe(probeOp, current0.getField(getJoinPredicate().getField1()));
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        current0 = null;
+        super.open();
+        probe();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        current0 = null;
+        super.rewind();
+        probe();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple and one of the inner
+     * tuples the index returns for it.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        DbIterator outer = getChildren()[0];
+        while (current0 != null) {
+            while (inner.hasNext()) {
+                Tuple current1 = inner.next();
+                if (getJoinPredicate().filter(current0, current1))
+                    return joinTuples(current0, current1);
+            }
+            current0 = outer.hasNext() ? outer.next() : null;
+            probe();
+        }
+        return null;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        super.setChildren(children);
+        if (children[1] instanceof IndexScan)
+            inner = (IndexScan) children[1];
+    }
+
+}
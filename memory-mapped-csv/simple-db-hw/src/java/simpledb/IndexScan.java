@@ -0,0 +1,140 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexScan returns the tuples of a table that satisfy a predicate on an
+ * indexed field, reading only those tuples through one of the table's
+ * indexes rather than scanning the whole table. A B+ tree index returns them
+ * in order of the field.
+ * <p>
+ * The inner side of an IndexJoin is an IndexScan without a predicate, which
+ * the join probes with a new predicate for each outer tuple.
+ */
+public class IndexScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private TransactionId transactionId;
+    private IndexFile index;
+    private String tableAlias;
+    private Predicate predicate;
+    private TupleDesc tupleDesc;
+
+    private DbFileIterator iterator;
+    private boolean open;
+
+    /**
+     * Creates a scan of the tuples of an index's table that satisfy a
+     * predicate on the indexed field.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to scan, which must be in the catalog
+     * @param p
+     *            a predicate on the indexed field, whose operator the index
+     *            supports, or null for every tuple of the table
+     * @param tableAlias
+     *            the alias of the table, which prefixes the names of the
+     *            fields of the returned tupleDesc, as in SeqScan
+     */
+    public IndexScan(TransactionId tid, IndexFile index, Predicate p, String tableAlias) {
+        if (p != null && p.getField() != index.getKeyField())
+            throw new IllegalArgumentException("predicate isn't on the indexed field");
+        this.transactionId = tid;
+        this.index = index;
+        this.predicate = p;
+        this.tableAlias = tableAlias;
+        this.tupleDesc = index.getTupleDesc();
+        this.iterator = newIterator();
+    }
+
+    private DbFileIterator newIterator() {
+        if (predicate == null)
+            return index.iterator(transactionId);
+        return index.indexIterator(transactionId, predicate.getOp(), predicate.getOperand());
+    }
+
+    /**
+     * @return the name of the table the scan reads, as in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTable().getId());
+    }
+
+    /**
+     * @return the alias of the table the scan reads
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public IndexFile getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate every tuple the scan returns satisfies, or null
+     *         if it returns the whole table
+     */
+    public Predicate getPredicate() {
+        return predicate;
+    }
+
+    /**
+     * Restarts the scan for the tuples whose indexed field satisfies
+     * "field op operand", as if it had been created with that predicate.
+     *
+     * @param op
+     *            an operator the index supports
+     */
+    public void probe(Predicate.Op op, Field operand) throws DbException,
+            TransactionAbortedException {
+        iterator.close();
+        predicate = new Predicate(index.getKeyField(), op, operand);
+        iterator = newIterator();
+        if (open)
+            iterator.open();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        iterator.open();
+        open = true;
+    }
+
+    /**
+     * @return the TupleDesc of the table, with field names prefixed with the
+     *         table alias
+     */
+    public TupleDesc getTupleDesc() {
+        Type[] types = new Type[tupleDesc.numFields()];
+        String[] fields = new String[tupleDesc.numFields()];
+
+        for (int i = 0; i < tupleDesc.numFields(); i++) {
+            types[i] = tupleDesc.getFieldType(i);
+            fields[i] = tableAlias + "." + tupleDesc.getFieldName(i);
+        }
+
+        return new TupleDesc(types, fields);
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        return iterator.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        return iterator.next();
+    }
+
+    public void close() {
+        iterator.close();
+        open = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        iterator.rewind();
+    }
+}
@@ -11,7 +11,8 @@ public class Join extends Operator {
     
     private JoinPredicate predicate;
     private DbIterator[] children;
-    private Tuple current0;
+    // the outer tuple the join is on
+    protected Tuple current0;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -120,7 +121,7 @@ public class Join extends Operator {
     	return predicate.filter(t1, t2);
     }
     
-    private Tuple joinTuples(Tuple first, Tuple second) {
+    protected Tuple joinTuples(Tuple first, Tuple second) {
     	Tuple tuple = new Tuple(getTupleDesc());
     	int index = 0;
     	
@@ -68,12 +68,33 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // probe an index on the inner table's join field rather than scanning it for each outer tuple
+        IndexScan inner = probeableIndexScan(p, plan2);
+        if (inner != null)
+            j = new IndexJoin(p,plan1,inner);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
     }
 
+    /**
+     * @return a scan of an index on the join field of plan2 that an IndexJoin
+     *         can probe in place of plan2, or null if plan2 isn't a plain
+     *         scan of a table with such an index
+     */
+    private static IndexScan probeableIndexScan(JoinPredicate p, DbIterator plan2) {
+        if (!(plan2 instanceof SeqScan))
+            return null;
+        SeqScan ss = (SeqScan) plan2;
+        IndexFile index = Database.getCatalog().getIndex(ss.getTableId(),
+                p.getField2(), IndexJoin.probeOperator(p.getOperator()));
+        if (index == null)
+            return null;
+        return new IndexScan(ss.getTransactionId(), index, null, ss.getAlias());
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -239,6 +260,9 @@ public class JoinOptimizer {
             throws ParsingException {
         //Not necessary for labs 1--3
 
+    	// the plan cache has no order for the empty set of joins
+    	if (joins.isEmpty()) return joins;
+
     	PlanCache planCache = new PlanCache();
 
     	for (int i = 1; i <= joins.size(); i++) {
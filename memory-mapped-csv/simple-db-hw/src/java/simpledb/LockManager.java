@@ -12,6 +12,10 @@ public class LockManager {
 	
 	Map<PageId, Map<TransactionId, Integer>> readLocks = new ConcurrentHashMap<>();
 	Map<PageId, Map<TransactionId, Integer>> writeLocks = new ConcurrentHashMap<>();
+	// shared locks on whole tables, by table id, for scans that read a file
+	// without going through its pages; they conflict with a write lock on
+	// any page of the table
+	Map<Integer, Map<TransactionId, Integer>> tableLocks = new ConcurrentHashMap<>();
 
 	private static long TIMEOUT = 1000;
 	
@@ -32,7 +36,8 @@ public class LockManager {
 		}
 		
 		long startTimeMillis = System.currentTimeMillis();
-		while (hasLock(writeLocks, pid) || (hasLock(readLocks, pid) && write)) {
+		while (hasLock(writeLocks, pid) || (hasLock(readLocks, pid) && write)
+				|| (write && isTableLockedByOthers(pid.getTableId(), tid))) {
 			if (!sleep(10) || System.currentTimeMillis() - startTimeMillis > TIMEOUT) {
 				try {
 					Database.getBufferPool().transactionComplete(tid, false);
@@ -50,6 +55,51 @@ public class LockManager {
 		return true;
 	}
 	
+	/**
+	 * Takes a shared lock on a whole table, waiting while other transactions
+	 * hold write locks on any of its pages. One lock covers every page of the
+	 * table, however many it has.
+	 *
+	 * @return True if the lock was acquired, false if not
+	 */
+	public synchronized boolean acquireTableLock(int tableId, TransactionId tid) throws TransactionAbortedException {
+		if (hasLockByTransaction(tableLocks, tableId, tid)) {
+			return true;
+		}
+		
+		long startTimeMillis = System.currentTimeMillis();
+		while (isWrittenByOthers(tableId, tid)) {
+			if (!sleep(10) || System.currentTimeMillis() - startTimeMillis > TIMEOUT) {
+				try {
+					Database.getBufferPool().transactionComplete(tid, false);
+				} catch (IOException e) { }
+				throw new TransactionAbortedException();
+			}
+		}
+		
+		addTransaction(tableLocks, tableId, tid);
+		return true;
+	}
+	
+	private boolean isTableLockedByOthers(int tableId, TransactionId tid) {
+		Map<TransactionId, Integer> holders = tableLocks.get(tableId);
+		if (holders == null) return false;
+		for (TransactionId holder : holders.keySet()) {
+			if (!holder.equals(tid)) return true;
+		}
+		return false;
+	}
+	
+	private boolean isWrittenByOthers(int tableId, TransactionId tid) {
+		for (Map.Entry<PageId, Map<TransactionId, Integer>> entry : writeLocks.entrySet()) {
+			if (entry.getKey().getTableId() != tableId) continue;
+			for (TransactionId holder : entry.getValue().keySet()) {
+				if (!holder.equals(tid)) return true;
+			}
+		}
+		return false;
+	}
+	
 	private boolean sleep(long timeInMillis) {
 		try {
 			Thread.sleep(timeInMillis);
@@ -67,7 +117,7 @@ public class LockManager {
 				!hasLock(writeLocks, pid);
 	}
 	
-	private void addTransaction(Map<PageId, Map<TransactionId, Integer>> locks, PageId pid, TransactionId tid) {
+	private <K> void addTransaction(Map<K, Map<TransactionId, Integer>> locks, K pid, TransactionId tid) {
 		if (!locks.containsKey(pid)) {
 			locks.put(pid, new ConcurrentHashMap<>());
 		}
@@ -75,7 +125,7 @@ public class LockManager {
 		locks.get(pid).put(tid, 0);
 	}
 	
-	private boolean hasLockByTransaction(Map<PageId, Map<TransactionId, Integer>> locks, PageId pid, TransactionId tid) {
+	private <K> boolean hasLockByTransaction(Map<K, Map<TransactionId, Integer>> locks, K pid, TransactionId tid) {
 		return locks.containsKey(pid) && locks.get(pid).containsKey(tid);
 	}
 	
@@ -85,7 +135,8 @@ public class LockManager {
 
 	public synchronized boolean hasLock(TransactionId tid, PageId pid) {
 		return (readLocks.containsKey(pid) && readLocks.get(pid).containsKey(tid))
-				|| (writeLocks.containsKey(pid) && writeLocks.get(pid).containsKey(tid));
+				|| (writeLocks.containsKey(pid) && writeLocks.get(pid).containsKey(tid))
+				|| hasLockByTransaction(tableLocks, pid.getTableId(), tid);
 	}
 	
 	public synchronized void release(PageId pid, TransactionId tid) {
@@ -105,6 +156,13 @@ public class LockManager {
 		}
 	}
 	
+	/** Releases the table locks a transaction holds. */
+	public synchronized void releaseTables(TransactionId tid) {
+		for (Map<TransactionId, Integer> holders : tableLocks.values()) {
+			holders.remove(tid);
+		}
+	}
+	
 	public synchronized List<PageId> getPageIds(TransactionId tid, boolean write) {
 		List<PageId> pageIds = new ArrayList<>();
 		if (write) {
@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.NoSuchElementException;
 
 /**
@@ -216,6 +217,66 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Works out which fields of each table alias the query reads: those in
+     *   the select list, filters, joins, GROUP BY and ORDER BY.  Scans only
+     *   have to decode these.
+     *  @param pushedFilters filters the scans evaluate themselves, whose
+     *    fields are only needed if something else uses them
+     *  @return a map from each alias to the indexes of its fields that are used
+     */
+    private Map<String,BitSet> requiredColumns(Vector<LogicalFilterNode> pushedFilters) {
+        HashMap<String,BitSet> columns = new HashMap<String,BitSet>();
+        for (LogicalScanNode table : tables)
+            columns.put(table.alias, new BitSet());
+
+        for (LogicalSelectListNode si : selectList)
+            requireColumn(columns, si.fname);
+        for (LogicalFilterNode lf : filters)
+            if (!pushedFilters.contains(lf))
+                requireColumn(columns, lf.tableAlias, lf.fieldPureName);
+        for (LogicalJoinNode lj : joins) {
+            requireColumn(columns, lj.t1Alias, lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                requireColumn(columns, lj.t2Alias, lj.f2PureName);
+        }
+        if (aggField != null)
+            requireColumn(columns, aggField);
+        if (groupByField != null)
+            requireColumn(columns, groupByField);
+        if (oByField != null)
+            requireColumn(columns, oByField);
+        return columns;
+    }
+
+    /** Marks a field named tableAlias.name as used; null.* marks every field. */
+    private void requireColumn(Map<String,BitSet> columns, String name) {
+        String[] fields = name.split("[.]", 2);
+        if (fields.length < 2)
+            return;
+        if (fields[0].equals("null") && fields[1].equals("*")) {
+            for (String alias : columns.keySet())
+                requireColumn(columns, alias, "*");
+        } else {
+            requireColumn(columns, fields[0], fields[1]);
+        }
+    }
+
+    private void requireColumn(Map<String,BitSet> columns, String alias, String pureName) {
+        BitSet used = columns.get(alias);
+        if (used == null)
+            return;
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableMap.get(alias));
+        if (pureName.equals("*")) {
+            used.set(0, td.numFields());
+            return;
+        }
+        try {
+            used.set(td.fieldNameToIndex(pureName));
+        } catch (NoSuchElementException e) {
+            // reported when the operator using the field is built
+        }
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -271,6 +332,34 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Looks for an index that can answer a filter on a table more cheaply
+     *   than scanning the whole table.
+     *  @param sel the estimated selectivity of p
+     *  @return a scan of the index for the tuples that satisfy p, or null if
+     *    the table has no index on p's field or the index wouldn't be cheaper
+     */
+    private IndexScan indexScan(TransactionId t, String alias, Predicate p, TableStats s, double sel) {
+        IndexFile index = Database.getCatalog().getIndex(getTableId(alias), p.getField(), p.getOp());
+        if (index == null || s.estimateIndexScanCost(sel) >= s.estimateScanCost())
+            return null;
+        return new IndexScan(t, index, p, alias);
+    }
+
+    /** Has every scan in a plan read its table through the buffer pool,
+     *   where rewinding it re-reads pages the pool already holds.
+     */
+    private static void useSerialScans(DbIterator plan) {
+        if (plan instanceof SeqScan) {
+            ((SeqScan) plan).useSerialScan();
+        } else if (plan instanceof Operator) {
+            DbIterator[] children = ((Operator) plan).getChildren();
+            if (children == null) return;
+            for (DbIterator child : children) {
+                if (child != null) useSerialScans(child);
+            }
+        }
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -289,6 +378,7 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,SeqScan> scans = new HashMap<String,SeqScan>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -300,12 +390,20 @@ public class LogicalPlan {
             }
             
             subplanMap.put(table.alias,ss);
+            scans.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
-            statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            TableStats stats = baseTableStats.get(baseTableName);
+            if (stats == null) {
+                // tables a TableProvider opened for this query have no statistics yet
+                stats = new TableStats(table.t, TableStats.IOCOSTPERPAGE);
+                baseTableStats.put(baseTableName, stats);
+            }
+            statsMap.put(baseTableName, stats);
             filterSelectivities.put(table.alias, 1.0);
 
         }
 
+        Vector<LogicalFilterNode> pushedFilters = new Vector<LogicalFilterNode>();
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -334,15 +432,40 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
-
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
             double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
+            // selective predicates on indexed fields are answered by the index in
+            // place of the scan; simple predicates on CSV tables are evaluated as
+            // rows are read
+            SeqScan ss = scans.get(lf.tableAlias);
+            IndexScan is = subplan == ss ? indexScan(t, lf.tableAlias, p, s, sel) : null;
+            if (is != null) {
+                subplanMap.put(lf.tableAlias, is);
+                scans.remove(lf.tableAlias);
+            } else if (ss != null && ss.useFilter(p))
+                pushedFilters.addElement(lf);
+            else
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        Map<String,BitSet> columns = requiredColumns(pushedFilters);
+        for (String alias : columns.keySet()) {
+            SeqScan ss = scans.get(alias);
+            if (ss != null && columns.get(alias).cardinality() < ss.getTupleDesc().numFields())
+                ss.useColumns(columns.get(alias));
+        }
+
+        // the remaining scans read their tables in parallel where the files can,
+        // except under the inner side of a nested loop join (see below); file
+        // order only matters under an ORDER BY, where it decides how ties come
+        // out
+        for (SeqScan ss : scans.values())
+            ss.useParallelScan(hasOrderBy);
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
@@ -384,6 +507,10 @@ public class LogicalPlan {
             DbIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
             subplanMap.put(t1name, j);
+            // a nested loop join rewinds its inner side for every outer tuple,
+            // which a parallel scan would answer by reading the file again
+            if (j instanceof Join)
+                useSerialScans(plan2);
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -1,70 +1,310 @@
 package simpledb;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.BufferUnderflowException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MappedFile is a DbFile over a CSV that is memory-mapped read-only. Pages are
+ * cut on row boundaries using a CsvPageIndex, and each MappedPage holds a copy
+ * of its byte range, taken straight from the mapping.
+ * <p>
+ * The CSV is mapped in segments (see SegmentedMapping), so it may be larger
+ * than 2 GB, and only the segments being read take up address space: pages
+ * don't refer to the segments they were copied from, so a dropped segment can
+ * be unmapped while its pages are still in the buffer pool.
+ */
+public class MappedFile implements DbFile, ParallelScannable, FilterableFile {
 
-public class MappedFile implements DbFile {
-	
 	private File file;
 	private TupleDesc tupleDesc;
-	private MappedByteBuffer buffer;
-	private RandomAccessFile raf;
-	private FileChannel fc;
-	
+	private SegmentedMapping mapping;
+	private long segmentSize;
+	private int maxSegments;
+	private CsvPageIndex index;
+	private CsvZoneMap zoneMap;
+	private FileWatcher.WatchedFile watched;
+	private volatile long knownVersion;
+	private Set<PageId> pages;
+	// rows inserted by each running transaction, written to the CSV when it commits
+	private Map<TransactionId, StringBuilder> pendingAppends;
+	// the page new rows go on, or -1 to start from the last page of the CSV
+	private int tailPage;
+	private boolean closed;
+
 	public MappedFile(File csv, TupleDesc td) {
+		this(csv, td, SegmentedMapping.DEFAULT_SEGMENT_SIZE, SegmentedMapping.DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * @param segmentSize the number of bytes of the CSV mapped at a time
+	 * @param maxSegments the number of segments kept mapped at once
+	 */
+	public MappedFile(File csv, TupleDesc td, long segmentSize, int maxSegments) {
 		this.file = csv;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
 		this.tupleDesc = td;
-//		this.buffer = getMappedByteBuffer();
+		this.index = new CsvPageIndex(csv, getNumTuplesPerPage());
+		this.zoneMap = new CsvZoneMap(csv, td);
+		this.watched = FileWatcher.getInstance().watch(csv);
+		this.knownVersion = watched.check();
+		this.pages = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+		this.pendingAppends = new HashMap<>();
+		this.tailPage = -1;
+	}
+
+	/**
+	 * Maps the whole CSV read-only; segments are only mapped once read.
+	 */
+	private SegmentedMapping getSegmentedMapping() {
+		return new SegmentedMapping(file, segmentSize, maxSegments);
+	}
+
+	/**
+	 * Brings the page index up to date with the CSV and remaps it.
+	 *
+	 * @return how the CSV changed since the last refresh
+	 */
+	private synchronized CsvPageIndex.Change refresh() throws IOException {
+		CsvPageIndex.Change change = index.update();
+		if (change != CsvPageIndex.Change.NONE || mapping == null) {
+			if (mapping != null) mapping.close();
+			mapping = getSegmentedMapping();
+		}
+		return change;
+	}
+
+	/**
+	 * Extends the page index and the mapping over rows this file just
+	 * appended; the segments already mapped stay mapped.
+	 */
+	private synchronized void refreshAfterAppend() throws IOException {
+		index.refresh();
+		if (mapping != null) {
+			mapping.extend();
+		} else {
+			mapping = getSegmentedMapping();
+		}
+	}
+
+	private synchronized SegmentedMapping getMapping() throws IOException {
+		if (mapping == null || !index.isLoaded()) refreshAfterAppend();
+		return mapping;
 	}
-	
-	private MappedByteBuffer getMappedByteBuffer() {
+
+	/**
+	 * Remaps the CSV if the watcher saw it change, dropping the pages cut from
+	 * the old mapping that no longer hold the same rows.
+	 */
+	private void catchUp() {
+		if (!isModified()) return;
+		knownVersion = watched.getVersion();
 		try {
-			raf = new RandomAccessFile(file, "rw");
-			fc = raf.getChannel();
-			return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			CsvPageIndex.Change change = refresh();
+			// only drop pages whose bytes changed; on an append that is just
+			// the old last page, and the new pages were never cached
+			BitSet changed = index.getChangedPages();
+			for (int p = changed.nextSetBit(0); p >= 0; p = changed.nextSetBit(p + 1)) {
+				PageId pid = new MappedPageId(getId(), p);
+				Database.getBufferPool().discardPage(pid);
+				pages.remove(pid);
+			}
+			zoneMap.forget(changed);
+			if (change == CsvPageIndex.Change.REWRITE) {
+				synchronized (this) {
+					tailPage = -1;
+				}
+			}
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		return null;
 	}
 
 	@Override
 	public Page readPage(PageId id) {
-		// TODO Auto-generated method stub
-		return null;
+		// a page read after the CSV is rewritten is cut from the new mapping
+		catchUp();
+		try {
+			SegmentedMapping mapped = getMapping();
+			long start = index.getPageStart(id.getPageNumber());
+			long end = Math.min(index.getPageEnd(id.getPageNumber()), mapped.length());
+
+			MappedPageId pageId = new MappedPageId(getId(), id.getPageNumber());
+			pages.add(pageId);
+			ByteBuffer data = mapped.read(Math.min(start, end), end);
+			return new MappedPage(pageId, data, tupleDesc);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Summarizes a page a filtered scan read, if it is complete and isn't
+	 * summarized yet; plain scans, which can't use a summary, never do.
+	 */
+	private void summarize(MappedPage page) {
+		int pageNumber = page.getId().getPageNumber();
+		long checksum;
+		synchronized (index) {
+			// the last page can still gain rows, so it isn't worth summarizing
+			if (!index.isComplete(pageNumber)) return;
+			checksum = index.getPageChecksum(pageNumber);
+		}
+		if (!zoneMap.contains(pageNumber, checksum)) page.summarize(zoneMap, checksum);
 	}
 
+	/**
+	 * Rows are appended to the CSV rather than written back page by page, so
+	 * writing a dirty page writes out every row its transaction inserted.
+	 */
 	@Override
 	public void writePage(Page p) throws IOException {
-		// TODO Auto-generated method stub
-
+		TransactionId tid = p.isDirty();
+		if (tid != null) flushAppends(tid);
 	}
 
+	/**
+	 * Adds a tuple to the last page of the file, or to a new page after it if
+	 * the last page is full. The row is kept in memory, and on its page in
+	 * the pool, until the transaction commits, when all of its rows are
+	 * appended to the CSV in one write.
+	 */
 	@Override
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		// TODO Auto-generated method stub
-		return null;
+		MappedPage currentPage = (MappedPage) Database.getBufferPool()
+				.getPage(tid, this, new MappedPageId(getId(), getTailPage()), Permissions.READ_WRITE);
+		if (currentPage.numTuples() >= getNumTuplesPerPage()) {
+			int nextPage = currentPage.getId().getPageNumber() + 1;
+			currentPage = (MappedPage) Database.getBufferPool()
+					.getPage(tid, this, new MappedPageId(getId(), nextPage), Permissions.READ_WRITE);
+			synchronized (this) {
+				tailPage = nextPage;
+			}
+		}
+		String row = tupleToString(t) + "\n";
+		currentPage.appendRow(row.getBytes(StandardCharsets.ISO_8859_1));
+
+		synchronized (this) {
+			StringBuilder rows = pendingAppends.get(tid);
+			if (rows == null) {
+				rows = new StringBuilder();
+				pendingAppends.put(tid, rows);
+			}
+			rows.append(row);
+		}
+
+		ArrayList<Page> pages = new ArrayList<>();
+		pages.add(currentPage);
+		return pages;
+	}
+
+	/**
+	 * Appends the rows a transaction inserted to the CSV with a single write,
+	 * and extends the mapping over them.
+	 */
+	private synchronized void flushAppends(TransactionId tid) throws IOException {
+		StringBuilder rows = pendingAppends.remove(tid);
+		if (rows == null || rows.length() == 0) return;
+
+		boolean changedElsewhere = watched.check() != knownVersion;
+		if (!endsWithNewline()) rows.insert(0, '\n');
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(rows.toString().getBytes(StandardCharsets.ISO_8859_1));
+		} finally {
+			out.close();
+		}
+
+		refreshAfterAppend();
+		// our own append shouldn't look like somebody else changed the CSV
+		long version = watched.check();
+		if (!changedElsewhere) knownVersion = version;
+	}
+
+	/**
+	 * Forgets the rows inserted by a transaction that aborted.
+	 */
+	@Override
+	public synchronized void abort(TransactionId tid) {
+		if (pendingAppends.remove(tid) != null) tailPage = -1;
+	}
+
+	private synchronized int getTailPage() {
+		if (tailPage < 0) tailPage = Math.max(numPages() - 1, 0);
+		return tailPage;
 	}
 
 	@Override
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		// TODO Auto-generated method stub
-		return null;
+		throw new DbException("can't delete from a memory-mapped CSV");
 	}
 
 	@Override
 	public DbFileIterator iterator(TransactionId tid) {
-		return new DbFileIteratorImpl(tid);
+		return iterator(tid, null);
+	}
+
+	/**
+	 * Scans the file decoding only the given columns of each row.
+	 */
+	@Override
+	public DbFileIterator iterator(TransactionId tid, BitSet columns) {
+		return iterator(tid, columns, null);
+	}
+
+	@Override
+	public boolean canFilter(Predicate p) {
+		return CsvTokenizer.canEvaluate(tupleDesc, p);
+	}
+
+	/**
+	 * Scans the file, skipping rows that fail a filter before decoding them.
+	 */
+	@Override
+	public DbFileIterator iterator(TransactionId tid, BitSet columns, List<Predicate> filters) {
+		// one stat per scan, in case the watcher hasn't caught up yet
+		watched.check();
+		catchUp();
+
+		return new DbFileIteratorImpl(tid, columns, filters);
+	}
+
+	/**
+	 * Stops watching the CSV and drops the mapping. Pages already read from
+	 * it keep their copies of the rows.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) return;
+		closed = true;
+		FileWatcher.getInstance().unwatch(file);
+		if (mapping != null) mapping.close();
+		mapping = null;
+		zoneMap.save();
+	}
+
+	/**
+	 * Scans the CSV in parallel chunks, bypassing the buffer pool but taking
+	 * a shared lock on the table first.
+	 */
+	@Override
+	public DbFileIterator parallelIterator(TransactionId tid, boolean ordered) {
+		return new ParallelCsvScan(file, tupleDesc).lockTable(tid, getId()).iterator(ordered);
 	}
 
 	@Override
@@ -79,107 +319,138 @@ public class MappedFile implements DbFile {
 
 	@Override
 	public int numPages() {
-		return 0;
+		int indexed;
+		try {
+			synchronized (this) {
+				// until the CSV is first read its rows are counted, not indexed
+				if (mapping == null) return Math.max(index.countPages(), tailPage + 1);
+			}
+			getMapping();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		indexed = index.numPages();
+		synchronized (this) {
+			return Math.max(indexed, tailPage + 1);
+		}
 	}
 
 	@Override
 	public boolean isModified() {
-		return false;
+		return watched.getVersion() != knownVersion;
 	}
-	
-private class DbFileIteratorImpl extends AbstractDbFileIterator {
-		
+
+	private boolean endsWithNewline() throws IOException {
+		if (file.length() == 0) return true;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(file.length() - 1);
+			return raf.read() == '\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+	private String tupleToString(Tuple t) {
+		StringBuilder sb = new StringBuilder();
+
+		for(int i = 0; i < tupleDesc.numFields(); i++) {
+			if (tupleDesc.getFieldType(i).equals(Type.INT_TYPE)) {
+				sb.append(((IntField) t.getField(i)).getValue());
+			} else if (tupleDesc.getFieldType(i).equals(Type.STRING_TYPE)) {
+				sb.append(((StringField) t.getField(i)).getValue());
+			}
+
+			if (i < tupleDesc.numFields() - 1) sb.append(",");
+		}
+
+		return sb.toString();
+	}
+
+	/** Retrieve the number of tuples on this page.
+    @return the number of tuples on this page
+	*/
+	private int getNumTuplesPerPage() {
+	    return (int) Math.floor((BufferPool.getPageSize()*8) / (tupleDesc.getSize() * 8 + 1));
+	}
+
+	private class DbFileIteratorImpl extends AbstractDbFileIterator {
+
 		TransactionId transactionId;
-    	int pos;
-    	boolean open;
+		int nextPageNumber;
+		Iterator<Tuple> currentTupleIterator;
+		BitSet columns;
+		List<Predicate> filters;
 
-    	public DbFileIteratorImpl(TransactionId tid) {
-    		this.transactionId = tid;
-    		open = false;
-    		pos = 0;
-    	}
+		boolean open;
+
+		public DbFileIteratorImpl(TransactionId tid, BitSet columns, List<Predicate> filters) {
+			this.transactionId = tid;
+			this.columns = columns;
+			this.filters = filters;
+			this.nextPageNumber = 0;
+			currentTupleIterator = (new ArrayList<Tuple>()).iterator();
+			open = false;
+		}
 
 		@Override
 		public void open() throws DbException, TransactionAbortedException {
+			try {
+				// pages are cut from the mapping, so map the CSV rather than count its rows
+				getMapping();
+			} catch (IOException e) {
+				throw new DbException("can't map " + file + ": " + e.getMessage());
+			}
 			open = true;
-			buffer = getMappedByteBuffer();
 		}
-		
+
 		@Override
 		public void close() {
 			super.close();
 			open = false;
-			try {
-				fc.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			zoneMap.save();
 		}
-	
+
 		@Override
 		public void rewind() throws DbException, TransactionAbortedException {
-			pos = 0;
-			buffer.position(pos);
+			nextPageNumber = 0;
+			currentTupleIterator = (new ArrayList<Tuple>()).iterator();
+			moveToNextPopulatedPage();
 		}
-	
+
 		@Override
 		protected Tuple readNext() throws DbException, TransactionAbortedException {
 			if (!open) return null;
-			
-			char next = ' ';
-			try {
-				next = (char) buffer.get();
-				pos += 2;
-			} catch(BufferUnderflowException e) {
-				return null;
+
+			if (currentTupleIterator.hasNext()) {
+				return currentTupleIterator.next();
 			}
-			
-			StringBuilder sb = new StringBuilder();
-			Tuple tuple = new Tuple(tupleDesc);
-			int fieldNumber = 0;
-			while(next != '\r') {
-				if (next == ',') {
-					if (tupleDesc.getFieldType(fieldNumber).equals(Type.INT_TYPE)) {
-						tuple.setField(fieldNumber, new IntField(Integer.valueOf(sb.toString())));
-					} else if (tupleDesc.getFieldType(fieldNumber).equals(Type.STRING_TYPE)) {
-						tuple.setField(fieldNumber, new StringField(sb.toString(), 2048));
-					}
-					fieldNumber++;
-					sb = new StringBuilder();
-				} else {
-					if (next != '\n' && next != '\r') {
-						sb.append(next);
-					}
-				}
 
-				try {
-					next = (char) buffer.get();
-					pos += 2;
-				} catch(BufferUnderflowException e) {
-					if (sb.toString().equals("")) return null;
-					
-					if (tupleDesc.getFieldType(fieldNumber).equals(Type.INT_TYPE)) {
-						tuple.setField(fieldNumber, new IntField(Integer.valueOf(sb.toString())));
-					} else if (tupleDesc.getFieldType(fieldNumber).equals(Type.STRING_TYPE)) {
-						tuple.setField(fieldNumber, new StringField(sb.toString(), 2048));
-					}
-					
-					return tuple;
-				}
+			moveToNextPopulatedPage();
+			if (currentTupleIterator.hasNext()) {
+				return currentTupleIterator.next();
 			}
-			
-			if (sb.toString().equals("")) return null;
-			
-			if (tupleDesc.getFieldType(fieldNumber).equals(Type.INT_TYPE)) {
-				tuple.setField(fieldNumber, new IntField(Integer.valueOf(sb.toString())));
-			} else if (tupleDesc.getFieldType(fieldNumber).equals(Type.STRING_TYPE)) {
-				tuple.setField(fieldNumber, new StringField(sb.toString(), 2048));
+
+			return null;
+		}
+
+		private void moveToNextPopulatedPage() throws TransactionAbortedException, DbException {
+			while(!currentTupleIterator.hasNext() && nextPageNumber < numPages()) {
+				// pages whose zone shows no row can match aren't read at all
+				if (filters != null && zoneMap.canSkip(nextPageNumber, filters, index)) {
+					nextPageNumber++;
+					continue;
+				}
+				MappedPage page = (MappedPage) Database.getBufferPool()
+						.getPage(transactionId, MappedFile.this, new MappedPageId(getId(), nextPageNumber), Permissions.READ_ONLY);
+				if (filters != null) summarize(page);
+
+				nextPageNumber++;
+				currentTupleIterator = page.iterator(columns, filters);
 			}
-			
-			return tuple;
 		}
-		
+
 	}
 
 }
@@ -1,41 +1,180 @@
 package simpledb;
 
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A page of a MappedFile. The page holds the bytes of the rows it covers,
+ * copied out of the memory-mapped CSV, and fields are decoded straight out of
+ * those bytes by a CsvTokenizer as the page is iterated. Rows a transaction
+ * inserts are added to the bytes of the page in the pool until it commits.
+ */
 public class MappedPage implements Page {
 
+	private MappedPageId pid;
+	private volatile ByteBuffer data;
+	private ByteBuffer oldData;
+	private TupleDesc tupleDesc;
+	private TransactionId lastTransaction;
+	private boolean isDirty;
+	private int numTuples;
+
+	/**
+	 * @param pid the id of this page
+	 * @param data the bytes of the rows on this page, starting at a row
+	 *             boundary and ending after the last row's newline (or at the
+	 *             end of the file)
+	 * @param td the schema of the rows on this page
+	 */
+	public MappedPage(MappedPageId pid, ByteBuffer data, TupleDesc td) {
+		this.pid = pid;
+		this.data = data.asReadOnlyBuffer();
+		this.oldData = this.data;
+		this.tupleDesc = td;
+		this.isDirty = false;
+		this.numTuples = -1;
+	}
+
 	@Override
 	public PageId getId() {
-		// TODO Auto-generated method stub
-		return null;
+		return pid;
 	}
 
 	@Override
 	public TransactionId isDirty() {
-		// TODO Auto-generated method stub
+		if (isDirty) return lastTransaction;
 		return null;
 	}
 
 	@Override
 	public void markDirty(boolean dirty, TransactionId tid) {
-		// TODO Auto-generated method stub
-
+		isDirty = dirty;
+		lastTransaction = tid;
 	}
 
 	@Override
 	public byte[] getPageData() {
-		// TODO Auto-generated method stub
-		return null;
+		byte[] bytes = new byte[data.limit()];
+		data.duplicate().get(bytes);
+		return bytes;
 	}
 
+	/**
+	 * @return the page without the rows inserted since setBeforeImage()
+	 */
 	@Override
-	public Page getBeforeImage() {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized Page getBeforeImage() {
+		return new MappedPage(pid, oldData, tupleDesc);
 	}
 
 	@Override
-	public void setBeforeImage() {
-		// TODO Auto-generated method stub
+	public synchronized void setBeforeImage() {
+		oldData = data;
+	}
+
+	/**
+	 * Adds a row a transaction inserted to the end of the page, after a
+	 * newline if the page's last row has none. Iterators already handed out
+	 * keep reading the rows as they were.
+	 *
+	 * @param row the bytes of the row, ending in a newline
+	 */
+	synchronized void appendRow(byte[] row) {
+		int length = data.limit();
+		boolean newline = length > 0 && data.get(length - 1) != '\n';
+		byte[] bytes = new byte[length + (newline ? 1 : 0) + row.length];
+		data.duplicate().get(bytes, 0, length);
+		if (newline) bytes[length++] = '\n';
+		System.arraycopy(row, 0, bytes, length, row.length);
+		data = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		numTuples = -1;
+	}
+
+	/**
+	 * Adds a summary of this page's rows to a zone map.
+	 *
+	 * @param checksum the checksum CsvPageIndex has for the page
+	 */
+	void summarize(CsvZoneMap zoneMap, long checksum) {
+		zoneMap.addPage(pid.getPageNumber(), data.duplicate(), checksum);
+	}
+
+	/** @return the number of rows on this page */
+	public int numTuples() {
+		if (numTuples < 0) {
+			CsvTokenizer tokenizer = new CsvTokenizer(tupleDesc);
+			tokenizer.reset(data);
+			int count = 0;
+			while (tokenizer.nextRow()) count++;
+			numTuples = count;
+		}
+		return numTuples;
+	}
+
+	public Iterator<Tuple> iterator() {
+		return iterator(null);
+	}
+
+	/**
+	 * @param columns the fields to decode, or null for all of them; the other
+	 *                fields of the tuples are left null
+	 */
+	public Iterator<Tuple> iterator(BitSet columns) {
+		return iterator(columns, null);
+	}
+
+	/**
+	 * @param columns the fields to decode, or null for all of them
+	 * @param filters predicates rows have to satisfy, evaluated on their
+	 *                bytes before they are decoded, or null
+	 */
+	public Iterator<Tuple> iterator(final BitSet columns, final List<Predicate> filters) {
+		final CsvTokenizer tokenizer = new CsvTokenizer(tupleDesc);
+		tokenizer.reset(data);
+
+		return new Iterator<Tuple>() {
+			int tupleNumber = 0;
+			boolean hasRow = false;
+
+			@Override
+			public boolean hasNext() {
+				while (!hasRow && tokenizer.nextRow()) {
+					try {
+						if (filters == null || tokenizer.satisfiesAll(filters)) {
+							hasRow = true;
+						} else {
+							tupleNumber++;
+						}
+					} catch (NumberFormatException e) {
+						throw new NumberFormatException(e.getMessage() + " on page " + pid.getPageNumber());
+					}
+				}
+				return hasRow;
+			}
+
+			@Override
+			public Tuple next() {
+				if (!hasNext()) throw new NoSuchElementException();
+
+				hasRow = false;
+				Tuple tuple;
+				try {
+					tuple = tokenizer.readTuple(null, columns);
+				} catch (NumberFormatException e) {
+					throw new NumberFormatException(e.getMessage() + " on page " + pid.getPageNumber());
+				}
+				tuple.setRecordId(new RecordId(pid, tupleNumber++));
+				return tuple;
+			}
 
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
 }
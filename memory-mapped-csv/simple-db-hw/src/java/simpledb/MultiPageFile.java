@@ -0,0 +1,31 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A DbFile that can read or write a run of consecutive pages with a single
+ * scatter/gather call rather than one call per page. The BufferPool and
+ * ReadAhead hand such a file runs of pages whenever they have more than one,
+ * so a subclass that overrides readPage or writePage should override the
+ * method here next to it too.
+ */
+public interface MultiPageFile {
+
+    /**
+     * Reads consecutive pages of this file.
+     *
+     * @param first the id of the first page to read
+     * @param count the number of pages to read; fewer are returned if the
+     *              file ends first
+     */
+    public List<Page> readPages(PageId first, int count) throws IOException;
+
+    /**
+     * Writes consecutive pages of this file.
+     *
+     * @param pages pages of this file, in page number order, with no gaps
+     */
+    public void writePages(List<Page> pages) throws IOException;
+
+}
@@ -45,6 +45,9 @@ public class OperatorCardinality {
                     childC = tableStats.get(
                             ((SeqScan) children[0]).getTableName())
                             .estimateTableCardinality(1.0);
+                } else if (children[0] instanceof IndexScan) {
+                    childC = indexScanCardinality((IndexScan) children[0],
+                            tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -82,6 +85,10 @@ public class OperatorCardinality {
                         ((SeqScan) child).getTableName())
                         .estimateTableCardinality(1.0) * selectivity) + 1);
                 return false;
+            } else if (child instanceof IndexScan) {
+                f.setEstimatedCardinality((int) (indexScanCardinality(
+                        (IndexScan) child, tableStats) * selectivity) + 1);
+                return false;
             }
         }
         f.setEstimatedCardinality(1);
@@ -123,6 +130,8 @@ public class OperatorCardinality {
         } else if (child1 instanceof SeqScan) {
             child1Card = (int) (tableStats.get(((SeqScan) child1)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child1 instanceof IndexScan) {
+            child1Card = indexScanCardinality((IndexScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -135,6 +144,8 @@ public class OperatorCardinality {
         } else if (child2 instanceof SeqScan) {
             child2Card = (int) (tableStats.get(((SeqScan) child2)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child2 instanceof IndexScan) {
+            child2Card = indexScanCardinality((IndexScan) child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -180,6 +191,8 @@ public class OperatorCardinality {
         } else if (child1 instanceof SeqScan) {
             child1Card = (int) (tableStats.get(((SeqScan) child1)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child1 instanceof IndexScan) {
+            child1Card = indexScanCardinality((IndexScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -192,6 +205,8 @@ public class OperatorCardinality {
         } else if (child2 instanceof SeqScan) {
             child2Card = (int) (tableStats.get(((SeqScan) child2)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child2 instanceof IndexScan) {
+            child2Card = indexScanCardinality((IndexScan) child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -222,6 +237,8 @@ public class OperatorCardinality {
         if (child instanceof SeqScan) {
             childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
                     .estimateTableCardinality(1.0));
+        } else if (child instanceof IndexScan) {
+            childCard = indexScanCardinality((IndexScan) child, tableStats);
         }
 
         String[] tmp = a.groupFieldName().split("[.]");
@@ -244,4 +261,14 @@ public class OperatorCardinality {
         a.setEstimatedCardinality(childCard);
         return hasJoinPK;
     }
+
+    private static int indexScanCardinality(IndexScan s,
+            Map<String, TableStats> tableStats) {
+        TableStats stats = tableStats.get(s.getTableName());
+        Predicate p = s.getPredicate();
+        if (p == null)
+            return stats.estimateTableCardinality(1.0);
+        return stats.estimateTableCardinality(stats.estimateSelectivity(
+                p.getField(), p.getOp(), p.getOperand()));
+    }
 }
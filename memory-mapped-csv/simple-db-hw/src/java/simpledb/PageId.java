@@ -32,5 +32,11 @@ public interface PageId {
     public boolean equals(Object o);
 
     public int getPageNumber();
+
+    /**
+     * @return the id of the page with the given number in the same table,
+     *   of the same kind as this one
+     */
+    public PageId withPageNumber(int pageNumber);
 }
 
@@ -0,0 +1,413 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scans a CSV in parallel. The file is split into fixed size byte ranges
+ * ("chunks") that are parsed on a ForkJoinPool; each chunk produces the rows
+ * that start inside it, reading past its end to finish its last row.
+ * <p>
+ * Whether a chunk starts inside a double-quoted field depends on every byte
+ * before it, so chunks are parsed speculatively assuming they don't, guessing
+ * the quote state from the byte before the chunk. Each chunk also works out
+ * the quote state it ends in for every state it could start in; once that is
+ * known for all earlier chunks, a chunk whose guess turns out wrong is parsed
+ * again from the right state. That only happens when a chunk boundary falls
+ * inside a quoted field, or just after a quote.
+ * <p>
+ * Chunks are handed out either in file order, or in the order they finish
+ * parsing for consumers that don't care about order. At most a few chunks per
+ * worker are parsed ahead of the consumer, which bounds memory use.
+ * <p>
+ * The scan reads the file itself, bypassing the BufferPool: it doesn't see
+ * pages that are only in the pool, such as rows a running transaction has
+ * added but not committed, so SeqScan reads through the pool instead while
+ * its transaction has such pages. It takes no locks unless asked to with
+ * {@link #lockTable}, which makes it wait for transactions writing to the
+ * table the way a scan through the pool would.
+ */
+public class ParallelCsvScan {
+
+	public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+	private static final int MIN_CHUNK_SIZE = 64 << 10;
+	private static final int READ_AHEAD_SIZE = 64 << 10;
+	private static final int CHUNKS_PER_WORKER = 4;
+
+	private File file;
+	private TupleDesc tupleDesc;
+	private ForkJoinPool pool;
+	private int chunkSize;
+	// the table locked before the file is read, if any
+	private TransactionId tid;
+	private int tableId;
+
+	public ParallelCsvScan(File file, TupleDesc td) {
+		this(file, td, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param file the CSV to scan
+	 * @param td the schema of its rows
+	 * @param pool the pool the chunks are parsed on
+	 * @param chunkSize the target number of bytes per chunk; small files are
+	 *                  split into smaller chunks so that every worker gets some
+	 */
+	public ParallelCsvScan(File file, TupleDesc td, ForkJoinPool pool, int chunkSize) {
+		this.file = file;
+		this.tupleDesc = td;
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Makes the scan take a shared lock on a whole table before it reads the
+	 * file (see BufferPool.lockTable), one lock however large the file is.
+	 * The lock is held until the transaction completes.
+	 *
+	 * @param tableId the id of the table the file backs
+	 * @return this scan
+	 */
+	public ParallelCsvScan lockTable(TransactionId tid, int tableId) {
+		this.tid = tid;
+		this.tableId = tableId;
+		return this;
+	}
+
+	/**
+	 * @param ordered whether tuples have to be returned in file order
+	 * @return an iterator over every row of the CSV
+	 */
+	public DbFileIterator iterator(boolean ordered) {
+		return new ScanIterator(ordered);
+	}
+
+	/** The rows parsed out of one chunk. */
+	private static class Chunk {
+		int number;
+		int startState;
+		List<Tuple> tuples;
+		// why the chunk couldn't be parsed, which may just mean the wrong quote state
+		RuntimeException error;
+	}
+
+	private class ScanIterator extends AbstractDbFileIterator {
+
+		private boolean ordered;
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private long length;
+		private long size;
+		private int numChunks;
+
+		// for each chunk, the quote state it ends in for each it could start in
+		private List<CompletableFuture<int[]>> endStates;
+		private Map<Integer, ChunkTask> running;
+		private LinkedBlockingQueue<ChunkTask> finished;
+		private int nextToSubmit;
+		private int nextToEmit;
+		private int emitted;
+
+		// the quote state before chunk numKnown, where earlier chunks ended
+		private int numKnown;
+		private int knownState;
+
+		private Iterator<Tuple> current;
+
+		ScanIterator(boolean ordered) {
+			this.ordered = ordered;
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			if (tid != null) Database.getBufferPool().lockTable(tid, tableId);
+			try {
+				raf = new RandomAccessFile(file, "r");
+				channel = raf.getChannel();
+				length = channel.size();
+			} catch (IOException e) {
+				throw new DbException("can't open " + file + ": " + e.getMessage());
+			}
+
+			int workers = pool.getParallelism();
+			size = Math.max(1, Math.min(chunkSize, Math.max(MIN_CHUNK_SIZE, length / (workers * CHUNKS_PER_WORKER) + 1)));
+			numChunks = (int) ((length + size - 1) / size);
+
+			endStates = new ArrayList<>(numChunks);
+			for (int i = 0; i < numChunks; i++) {
+				endStates.add(new CompletableFuture<int[]>());
+			}
+			running = new HashMap<>();
+			finished = new LinkedBlockingQueue<>();
+			nextToSubmit = 0;
+			nextToEmit = 0;
+			emitted = 0;
+			numKnown = 0;
+			knownState = CsvTokenizer.FIELD_START;
+			current = null;
+
+			while (nextToSubmit < numChunks && nextToSubmit < workers * CHUNKS_PER_WORKER) {
+				submit(nextToSubmit++);
+			}
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			if (running != null) {
+				for (ChunkTask task : running.values()) task.cancel(true);
+				running = null;
+			}
+			try {
+				if (raf != null) raf.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			raf = null;
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (raf == null) return null;
+
+			while (current == null || !current.hasNext()) {
+				if (emitted == numChunks) return null;
+
+				Chunk chunk = nextChunk();
+				emitted++;
+				if (nextToSubmit < numChunks) submit(nextToSubmit++);
+				current = chunk.tuples.iterator();
+			}
+			return current.next();
+		}
+
+		private void submit(int number) {
+			ChunkTask task = new ChunkTask(this, number, -1);
+			running.put(number, task);
+			pool.execute(task);
+		}
+
+		/**
+		 * Waits for the next chunk to hand out, re-parsing it if it was parsed
+		 * from the wrong quote state.
+		 */
+		private Chunk nextChunk() throws DbException {
+			try {
+				Chunk chunk;
+				if (ordered) {
+					chunk = running.get(nextToEmit).get();
+					nextToEmit++;
+				} else {
+					chunk = finished.take().get();
+				}
+				running.remove(chunk.number);
+
+				int startState = startState(chunk.number);
+				if (startState != chunk.startState) {
+					ChunkTask fixup = new ChunkTask(this, chunk.number, startState);
+					pool.execute(fixup);
+					chunk = fixup.get();
+				}
+				if (chunk.error != null) {
+					throw new DbException("can't parse " + file + ": " + chunk.error.getMessage());
+				}
+				return chunk;
+			} catch (InterruptedException | ExecutionException e) {
+				throw new DbException("parallel scan of " + file + " failed: " + e);
+			}
+		}
+
+		/** @return the quote state the given chunk starts in */
+		private int startState(int number) throws InterruptedException, ExecutionException {
+			if (number < numKnown) {
+				// only reached for unordered scans; go over the chunks from the start
+				int state = CsvTokenizer.FIELD_START;
+				for (int i = 0; i < number; i++) {
+					state = endStates.get(i).get()[state];
+				}
+				return state;
+			}
+			while (numKnown < number) {
+				knownState = endStates.get(numKnown).get()[knownState];
+				numKnown++;
+			}
+			return knownState;
+		}
+
+	}
+
+	/** Parses the rows starting in one chunk, given the quote state at its start. */
+	private class ChunkTask extends RecursiveTask<Chunk> {
+
+		private static final long serialVersionUID = 1L;
+
+		// taken from the iterator when the task is created, so that a task
+		// left running by close() can't touch the state of a later open()
+		private FileChannel channel;
+		private long size;
+		private long length;
+		private boolean ordered;
+		private CompletableFuture<int[]> endStates;
+		private LinkedBlockingQueue<ChunkTask> finished;
+
+		private int number;
+		// the quote state to parse from, or -1 to guess it
+		private int startState;
+		private boolean fixup;
+
+		// the bytes read so far, starting one byte before the chunk
+		private byte[] data;
+		private long dataStart;
+		private int dataLength;
+
+		ChunkTask(ScanIterator scan, int number, int startState) {
+			this.channel = scan.channel;
+			this.size = scan.size;
+			this.length = scan.length;
+			this.ordered = scan.ordered;
+			this.endStates = scan.endStates.get(number);
+			this.finished = scan.finished;
+			this.number = number;
+			this.startState = startState;
+			this.fixup = startState >= 0;
+		}
+
+		@Override
+		protected Chunk compute() {
+			try {
+				return parseChunk();
+			} catch (IOException e) {
+				endStates.completeExceptionally(e);
+				throw new UncheckedIOException(e);
+			} catch (RuntimeException e) {
+				endStates.completeExceptionally(e);
+				throw e;
+			} finally {
+				// the consumer picks up the result, or the failure, with get()
+				if (!ordered && !fixup) finished.add(this);
+			}
+		}
+
+		private Chunk parseChunk() throws IOException {
+			long start = number * size;
+			long end = Math.min(start + size, length);
+			dataStart = Math.max(start - 1, 0);
+			data = new byte[(int) (end - dataStart) + READ_AHEAD_SIZE];
+			dataLength = 0;
+			fill(end);
+
+			int chunkStart = (int) (start - dataStart);
+			int chunkEnd = (int) (end - dataStart);
+			int[] state = new int[CsvTokenizer.NUM_STATES];
+			for (int s = 0; s < state.length; s++) {
+				state[s] = s;
+			}
+			for (int i = chunkStart; i < chunkEnd; i++) {
+				for (int s = 0; s < state.length; s++) {
+					state[s] = CsvTokenizer.nextState(state[s], data[i]);
+				}
+			}
+			endStates.complete(state);
+
+			if (startState < 0) {
+				startState = chunkStart > 0 ? CsvTokenizer.guessState(data[chunkStart - 1]) : CsvTokenizer.FIELD_START;
+			}
+			Chunk chunk = new Chunk();
+			chunk.number = number;
+			chunk.startState = startState;
+			try {
+				chunk.tuples = parseRows(chunkStart, chunkEnd, state[startState]);
+			} catch (NumberFormatException e) {
+				chunk.error = e;
+			}
+			return chunk;
+		}
+
+		/**
+		 * Reads from the file until at least upTo bytes of it are in data.
+		 *
+		 * @return false if nothing more could be read
+		 */
+		private boolean fill(long upTo) throws IOException {
+			upTo = Math.min(upTo, length);
+			if (dataStart + dataLength >= upTo) return false;
+
+			if (upTo - dataStart > data.length) {
+				data = Arrays.copyOf(data, (int) Math.max(upTo - dataStart, data.length * 2L));
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(data, dataLength, (int) (upTo - dataStart) - dataLength);
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, dataStart + buffer.position());
+				if (read <= 0) break;
+			}
+			int read = buffer.position() - dataLength;
+			dataLength = buffer.position();
+			return read > 0;
+		}
+
+		/**
+		 * Parses every row that starts in [chunkStart, chunkEnd).
+		 *
+		 * @param endState the quote state at the end of the chunk
+		 */
+		private List<Tuple> parseRows(int chunkStart, int chunkEnd, int endState) throws IOException {
+			List<Tuple> tuples = new ArrayList<>();
+
+			// find the first row start in the chunk
+			int pos = chunkStart;
+			if (dataStart + chunkStart > 0) {
+				int state = startState;
+				boolean rowStart = data[chunkStart - 1] == '\n' && state == CsvTokenizer.FIELD_START;
+				while (!rowStart && pos < chunkEnd) {
+					byte b = data[pos++];
+					rowStart = b == '\n' && state != CsvTokenizer.QUOTED;
+					state = CsvTokenizer.nextState(state, b);
+				}
+				if (!rowStart) return tuples;
+			}
+
+			// the last row starting in the chunk may run past its end
+			int state = endState;
+			int rowsEnd = chunkEnd;
+			if (rowsEnd > 0 && (data[rowsEnd - 1] != '\n' || state != CsvTokenizer.FIELD_START)) {
+				while (true) {
+					if (rowsEnd == dataLength && !fill(dataStart + dataLength + READ_AHEAD_SIZE)) break;
+					byte b = data[rowsEnd++];
+					boolean rowEnd = b == '\n' && state != CsvTokenizer.QUOTED;
+					state = CsvTokenizer.nextState(state, b);
+					if (rowEnd) break;
+				}
+			}
+
+			CsvTokenizer tokenizer = new CsvTokenizer(tupleDesc);
+			tokenizer.reset(ByteBuffer.wrap(data, pos, rowsEnd - pos));
+			while (tokenizer.nextRow()) {
+				tuples.add(tokenizer.readTuple());
+			}
+			return tuples;
+		}
+
+	}
+
+}
@@ -0,0 +1,32 @@
+package simpledb;
+
+import java.util.List;
+
+/**
+ * A DbFile whose tuples can also be read by a parallel scan that goes
+ * straight to the file rather than through the buffer pool.
+ */
+public interface ParallelScannable {
+
+    /**
+     * Returns an iterator that reads this file in parallel.
+     *
+     * @param tid the transaction the scan runs as part of
+     * @param ordered whether tuples have to be returned in the order they
+     *                appear in the file; unordered scans hand out rows as
+     *                soon as they are parsed
+     */
+    public DbFileIterator parallelIterator(TransactionId tid, boolean ordered);
+
+    /**
+     * Returns an iterator that reads this file in parallel and only returns
+     * the tuples that satisfy every filter, or null if the file can't filter
+     * while scanning in parallel.
+     *
+     * @param filters predicates FilterableFile.canFilter accepted
+     */
+    public default DbFileIterator parallelIterator(TransactionId tid, boolean ordered, List<Predicate> filters) {
+        return null;
+    }
+
+}
@@ -595,7 +595,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile|csvDirectory [-explain] [-f queryFile]";
 
     protected void shutdown() {
         System.out.println("Bye");
@@ -604,8 +604,15 @@ public class Parser {
     protected boolean interactive = true;
 
     protected void start(String[] argv) throws IOException {
-        // first add tables to database
-        Database.getCatalog().loadSchema(argv[0]);
+        // first add tables to database; a directory of CSVs needs no catalog file
+        File catalog = new File(argv[0]);
+        if (catalog.isDirectory()) {
+            CsvDirectory directory = new CsvDirectory(catalog);
+            directory.watch();
+            Database.getCatalog().addProvider(directory);
+        } else {
+            Database.getCatalog().loadSchema(argv[0]);
+        }
         TableStats.computeStatistics();
 
         String queryFile = null;
@@ -0,0 +1,545 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A table backed by a directory of CSVs that share a schema, such as the one
+ * file per hour an upstream job drops into a directory. Each CSV is a
+ * partition of the table, read through a CsvFile of its own: it keeps its own
+ * page index, column cache and zone map, and its pages go through the
+ * BufferPool under the partition's id. The partitions are the table's child
+ * files, so the Catalog finds the file a partition's pages belong to.
+ * <p>
+ * The directory is listed again whenever a scan starts. A new CSV only adds a
+ * partition and a deleted one only drops its partition; the others, and the
+ * pages cached for them, are left alone. Partitions are scanned in file name
+ * order.
+ * <p>
+ * For each partition the table also summarizes the range of every column over
+ * all of its rows, the same way CsvZoneMap summarizes a page, and keeps the
+ * summaries in the directory (as <tt>.partitions.zones</tt>). A summary is
+ * tied to the name, length and modification time of the CSV it was built
+ * from. A filtered scan summarizes the partitions it hasn't yet, and skips
+ * those where no row can satisfy every filter without reading their pages.
+ */
+public class PartitionedCsvFile implements DbFile, ParallelScannable, FilterableFile {
+
+	/** Partitions scanned ahead of the consumer per worker, by a parallel scan. */
+	private static final int PARTITIONS_PER_WORKER = 2;
+
+	private File directory;
+	private String extension;
+	private TupleDesc tupleDesc;
+	private ForkJoinPool pool;
+	// partitions by file name, and by table id
+	private TreeMap<String, CsvFile> partitions;
+	private Map<Integer, CsvFile> partitionIds;
+	// the partitions as of the last listing, read without locking the table
+	private volatile List<CsvFile> children;
+	private CsvZoneMap summaries;
+	// how much of a partition a parallel scan maps at once
+	long pieceSize = SegmentedMapping.DEFAULT_SEGMENT_SIZE;
+
+	/**
+	 * Creates a table over the files ending with .csv in a directory.
+	 */
+	public PartitionedCsvFile(File directory, TupleDesc td) {
+		this(directory, td, ".csv", ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param directory the directory the partitions are in
+	 * @param td the schema of every partition
+	 * @param extension the ending of the names of partition files; other
+	 *                  files in the directory are ignored
+	 * @param pool the pool parallel scans read partitions on
+	 */
+	public PartitionedCsvFile(File directory, TupleDesc td, String extension, ForkJoinPool pool) {
+		this.directory = directory;
+		this.tupleDesc = td;
+		this.extension = extension;
+		this.pool = pool;
+		this.partitions = new TreeMap<>();
+		this.partitionIds = new HashMap<>();
+		this.children = Collections.emptyList();
+		this.summaries = new CsvZoneMap(new File(directory, ".partitions"), td);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Lists the directory, adding a partition for each new CSV and dropping
+	 * the partitions of CSVs that are gone, and tells the Catalog when the
+	 * partitions changed.
+	 *
+	 * @return the partitions, in file name order
+	 */
+	public synchronized List<CsvFile> refresh() {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isFile() && !f.getName().startsWith(".") && f.getName().endsWith(extension);
+			}
+		});
+		if (files == null) files = new File[0];
+
+		Map<String, File> listed = new HashMap<>();
+		for (File f : files) {
+			listed.put(f.getName(), f);
+		}
+		BitSet removed = new BitSet();
+		Iterator<Map.Entry<String, CsvFile>> it = partitions.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, CsvFile> entry = it.next();
+			if (listed.containsKey(entry.getKey())) continue;
+			partitionIds.remove(entry.getValue().getId());
+			removed.set(summaryKey(entry.getKey()));
+			Database.getBufferPool().discardPages(entry.getValue().getId());
+			entry.getValue().close();
+			it.remove();
+		}
+		summaries.forget(removed);
+		boolean added = false;
+		for (Map.Entry<String, File> entry : listed.entrySet()) {
+			if (partitions.containsKey(entry.getKey())) continue;
+			CsvFile partition = new CsvFile(entry.getValue(), tupleDesc);
+			partitions.put(entry.getKey(), partition);
+			partitionIds.put(partition.getId(), partition);
+			added = true;
+		}
+		if (added || !removed.isEmpty()) {
+			children = Collections.unmodifiableList(new ArrayList<>(partitions.values()));
+			Database.getCatalog().updateChildFiles(this);
+		}
+		return new ArrayList<>(partitions.values());
+	}
+
+	/** @return the partitions as of the last time the directory was listed */
+	@Override
+	public List<CsvFile> getChildFiles() {
+		return children;
+	}
+
+	private synchronized List<CsvFile> getPartitions() {
+		if (partitions.isEmpty()) return refresh();
+		return new ArrayList<>(partitions.values());
+	}
+
+	/**
+	 * @return the partition with the given table id, or null if it isn't one
+	 *   of this table's
+	 */
+	public synchronized CsvFile getPartition(int tableid) {
+		return partitionIds.get(tableid);
+	}
+
+	private static int summaryKey(String name) {
+		return name.hashCode() & Integer.MAX_VALUE;
+	}
+
+	/** @return a checksum of the name, length and modification time of a CSV */
+	private static long fingerprint(File f, long length) {
+		byte[] key = (f.getName() + "/" + length + "/" + f.lastModified()).getBytes(StandardCharsets.UTF_8);
+		return CsvPageIndex.checksum(CsvPageIndex.CHECKSUM_SEED, key, 0, key.length);
+	}
+
+	/**
+	 * @param filters predicates CsvTokenizer.canEvaluate accepts
+	 * @return true if no row of the partition can satisfy all of the filters,
+	 *   summarizing the partition first if it has changed since it last was
+	 */
+	private boolean canSkip(File f, List<Predicate> filters) {
+		long length = f.length();
+		if (length > Integer.MAX_VALUE) return false;
+		int key = summaryKey(f.getName());
+		long fingerprint = fingerprint(f, length);
+		if (!summaries.contains(key, fingerprint)) {
+			try {
+				summaries.addPage(key, map(f, 0, length), fingerprint);
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		return summaries.canSkip(key, filters, fingerprint);
+	}
+
+	/** @return size bytes of a file from position on, mapped read-only */
+	private static ByteBuffer map(File f, long position, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, position, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @param piece bytes of a CSV that start at a row boundary
+	 * @return the offset just past the last newline in the piece that ends a
+	 *   row, or 0 if none does
+	 */
+	private static int rowsEnd(ByteBuffer piece) {
+		int state = CsvTokenizer.FIELD_START;
+		int end = 0;
+		for (int i = 0, n = piece.limit(); i < n; i++) {
+			byte b = piece.get(i);
+			if (b == '\n' && state != CsvTokenizer.QUOTED) end = i + 1;
+			state = CsvTokenizer.nextState(state, b);
+		}
+		return end;
+	}
+
+	/**
+	 * @param filters predicates CsvTokenizer.canEvaluate accepts, or null
+	 * @return the partitions a scan with the given filters has to read
+	 */
+	List<CsvFile> partitionsToScan(List<Predicate> filters) {
+		List<CsvFile> scanned = new ArrayList<>();
+		for (CsvFile partition : refresh()) {
+			if (filters != null && !filters.isEmpty() && canSkip(partition.getFile(), filters)) continue;
+			scanned.add(partition);
+		}
+		return scanned;
+	}
+
+	private CsvFile partitionOf(PageId pid) {
+		CsvFile partition = getPartition(pid.getTableId());
+		if (partition == null) {
+			throw new IllegalArgumentException("page " + pid.getPageNumber() + " of table "
+					+ pid.getTableId() + " isn't in a partition of " + directory);
+		}
+		return partition;
+	}
+
+	/**
+	 * Pages are read through the partition they belong to; this only
+	 * forwards to it.
+	 */
+	@Override
+	public Page readPage(PageId id) {
+		return partitionOf(id).readPage(id);
+	}
+
+	@Override
+	public void writePage(Page p) throws IOException {
+		partitionOf(p.getId()).writePage(p);
+	}
+
+	/**
+	 * Appends the tuple to the last partition in file name order, which for
+	 * files named by time is the newest.
+	 */
+	@Override
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		List<CsvFile> all = getPartitions();
+		if (all.isEmpty()) throw new DbException("no partition in " + directory + " to insert into");
+		return all.get(all.size() - 1).insertTuple(tid, t);
+	}
+
+	@Override
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return partitionOf(t.getRecordId().getPageId()).deleteTuple(tid, t);
+	}
+
+	@Override
+	public DbFileIterator iterator(TransactionId tid) {
+		return iterator(tid, null, null);
+	}
+
+	@Override
+	public DbFileIterator iterator(TransactionId tid, BitSet columns) {
+		return iterator(tid, columns, null);
+	}
+
+	@Override
+	public boolean canFilter(Predicate p) {
+		return CsvTokenizer.canEvaluate(tupleDesc, p);
+	}
+
+	/**
+	 * Scans the partitions one after another through the BufferPool, skipping
+	 * partitions the filters rule out; within a partition, the CsvFile skips
+	 * pages by its own zone map.
+	 */
+	@Override
+	public DbFileIterator iterator(TransactionId tid, BitSet columns, List<Predicate> filters) {
+		return new PartitionIterator(tid, columns, filters);
+	}
+
+	/**
+	 * Reads the partitions in parallel, bypassing the buffer pool.
+	 */
+	@Override
+	public DbFileIterator parallelIterator(TransactionId tid, boolean ordered) {
+		return parallelIterator(tid, ordered, null);
+	}
+
+	/**
+	 * Reads the partitions the filters don't rule out in parallel, one
+	 * partition per task, bypassing the buffer pool. At most a few partitions
+	 * per worker are read ahead of the consumer. Like ParallelCsvScan, the
+	 * scan takes a shared table lock on each partition it reads before
+	 * reading them, and a partition larger than can be mapped at once is read a
+	 * piece at a time.
+	 *
+	 * @param ordered whether tuples have to be returned partition by
+	 *                partition in file name order; unordered scans hand out
+	 *                each partition's rows as soon as it is read
+	 * @param filters predicates canFilter accepted, or null
+	 */
+	@Override
+	public DbFileIterator parallelIterator(TransactionId tid, boolean ordered, List<Predicate> filters) {
+		return new ParallelIterator(tid, ordered, filters);
+	}
+
+	/** Closes every partition, and saves the partition summaries. */
+	@Override
+	public synchronized void close() {
+		for (CsvFile partition : partitions.values()) {
+			Database.getBufferPool().discardPages(partition.getId());
+			partition.close();
+		}
+		partitions.clear();
+		partitionIds.clear();
+		children = Collections.emptyList();
+		summaries.save();
+	}
+
+	/**
+	 * The id of the table as a whole; its partitions have ids of their own.
+	 */
+	@Override
+	public int getId() {
+		return directory.getAbsoluteFile().hashCode();
+	}
+
+	@Override
+	public TupleDesc getTupleDesc() {
+		return tupleDesc;
+	}
+
+	@Override
+	public int numPages() {
+		int numPages = 0;
+		for (CsvFile partition : getPartitions()) {
+			numPages += partition.numPages();
+		}
+		return numPages;
+	}
+
+	@Override
+	public boolean isModified() {
+		for (CsvFile partition : getPartitions()) {
+			if (partition.isModified()) return true;
+		}
+		return false;
+	}
+
+	private class PartitionIterator extends AbstractDbFileIterator {
+
+		private TransactionId transactionId;
+		private BitSet columns;
+		private List<Predicate> filters;
+		private Iterator<CsvFile> toScan;
+		private DbFileIterator current;
+
+		PartitionIterator(TransactionId tid, BitSet columns, List<Predicate> filters) {
+			this.transactionId = tid;
+			this.columns = columns;
+			this.filters = filters;
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			toScan = partitionsToScan(filters).iterator();
+			current = null;
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			if (current != null) current.close();
+			current = null;
+			toScan = null;
+			summaries.save();
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (toScan == null) return null;
+
+			while (current == null || !current.hasNext()) {
+				if (current != null) current.close();
+				current = null;
+				if (!toScan.hasNext()) return null;
+				current = toScan.next().iterator(transactionId, columns, filters);
+				current.open();
+			}
+			return current.next();
+		}
+
+	}
+
+	/** Reads all the rows of one partition that satisfy the filters. */
+	private class PartitionTask extends RecursiveTask<List<Tuple>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private File file;
+		private List<Predicate> filters;
+		// where the task goes once it is done, for unordered scans
+		private LinkedBlockingQueue<PartitionTask> finished;
+
+		PartitionTask(File file, List<Predicate> filters, LinkedBlockingQueue<PartitionTask> finished) {
+			this.file = file;
+			this.filters = filters;
+			this.finished = finished;
+		}
+
+		@Override
+		protected List<Tuple> compute() {
+			try {
+				List<Tuple> tuples = new ArrayList<>();
+				long length = file.length();
+				CsvTokenizer tokenizer = new CsvTokenizer(tupleDesc);
+				// each piece but the last ends at the last row that ends in it
+				for (long pos = 0; pos < length; ) {
+					long size = Math.min(length - pos, pieceSize);
+					ByteBuffer piece = map(file, pos, size);
+					int end = pos + size == length ? (int) size : rowsEnd(piece);
+					if (end == 0) {
+						throw new IllegalStateException("no row of " + file + " ends within " + pieceSize
+								+ " bytes of offset " + pos);
+					}
+					piece.limit(end);
+					tokenizer.reset(piece);
+					while (tokenizer.nextRow()) {
+						if (filters != null && !tokenizer.satisfiesAll(filters)) continue;
+						tuples.add(tokenizer.readTuple());
+					}
+					pos += end;
+				}
+				return tuples;
+			} catch (IOException e) {
+				throw new IllegalStateException("can't read " + file + ": " + e.getMessage());
+			} finally {
+				// the consumer picks up the result, or the failure, with get()
+				if (finished != null) finished.add(this);
+			}
+		}
+
+	}
+
+	private class ParallelIterator extends AbstractDbFileIterator {
+
+		private TransactionId transactionId;
+		private boolean ordered;
+		private List<Predicate> filters;
+
+		private List<CsvFile> toScan;
+		private List<PartitionTask> running;
+		private LinkedBlockingQueue<PartitionTask> finished;
+		private int nextToSubmit;
+		private int emitted;
+		private Iterator<Tuple> current;
+
+		ParallelIterator(TransactionId tid, boolean ordered, List<Predicate> filters) {
+			this.transactionId = tid;
+			this.ordered = ordered;
+			this.filters = filters;
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			toScan = partitionsToScan(filters);
+			for (CsvFile partition : toScan) {
+				Database.getBufferPool().lockTable(transactionId, partition.getId());
+			}
+			running = new ArrayList<>();
+			finished = new LinkedBlockingQueue<>();
+			nextToSubmit = 0;
+			emitted = 0;
+			current = null;
+
+			int ahead = pool.getParallelism() * PARTITIONS_PER_WORKER;
+			while (nextToSubmit < toScan.size() && nextToSubmit < ahead) {
+				submit();
+			}
+		}
+
+		private void submit() {
+			File f = toScan.get(nextToSubmit++).getFile();
+			PartitionTask task = new PartitionTask(f, filters, ordered ? null : finished);
+			running.add(task);
+			pool.execute(task);
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			if (running != null) {
+				for (PartitionTask task : running) task.cancel(true);
+				running = null;
+			}
+			toScan = null;
+			summaries.save();
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (toScan == null) return null;
+
+			while (current == null || !current.hasNext()) {
+				if (emitted == toScan.size()) return null;
+
+				PartitionTask task;
+				try {
+					task = ordered ? running.get(0) : finished.take();
+					current = task.get().iterator();
+				} catch (InterruptedException | ExecutionException e) {
+					throw new DbException("parallel scan of " + directory + " failed: " + e);
+				}
+				running.remove(task);
+				emitted++;
+				if (nextToSubmit < toScan.size()) submit();
+			}
+			return current.next();
+		}
+
+	}
+
+}
@@ -0,0 +1,22 @@
+package simpledb;
+
+import java.util.BitSet;
+
+/**
+ * A DbFile that can leave the fields a query doesn't need undecoded. The
+ * tuples of a projected scan keep the file's TupleDesc, but only the required
+ * fields are set; the rest are null.
+ */
+public interface ProjectableFile {
+
+    /**
+     * Returns an iterator over the tuples of this file that only decodes the
+     * given columns. Like DbFile.iterator, it reads pages through the buffer
+     * pool.
+     *
+     * @param tid the transaction the scan runs as part of
+     * @param columns the indexes of the fields the scan has to return
+     */
+    public DbFileIterator iterator(TransactionId tid, BitSet columns);
+
+}
@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ReadAhead watches the pages BufferPool has to read, and once a table's
+ * pages are being read in order, reads the next few pages on background
+ * threads, a run of consecutive pages at a time. The pages are staged here rather than put in the pool, since no
+ * lock has been taken on them yet; BufferPool takes a staged page instead of
+ * reading it when the scan gets to it.
+ * <p>
+ * Pages are only staged while a scan keeps moving forward: reading any other
+ * page of the table drops what was staged for it.
+ *
+ * @Threadsafe
+ */
+public class ReadAhead {
+
+	/** Number of pages read ahead of a sequential scan. */
+	public static final int DEFAULT_WINDOW = 8;
+
+	private static final ExecutorService io = Executors.newFixedThreadPool(4, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "read ahead");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private BufferPool pool;
+	private int window;
+	// for each table, the last page that had to be read and the last page staged
+	private Map<Integer, Integer> lastPage;
+	private Map<Integer, Integer> stagedUpTo;
+	private Map<PageId, Future<Page>> staged;
+
+	public ReadAhead(BufferPool pool, int window) {
+		this.pool = pool;
+		this.window = window;
+		this.lastPage = new HashMap<>();
+		this.stagedUpTo = new HashMap<>();
+		this.staged = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Notes that a page wasn't in the pool, and starts reading the pages after
+	 * it if this continues a sequential scan.
+	 *
+	 * @param file the file the page belongs to
+	 */
+	public synchronized void missed(DbFile file, PageId pid) {
+		if (window <= 0) return;
+
+		int table = pid.getTableId();
+		int page = pid.getPageNumber();
+		Integer last = lastPage.put(table, page);
+		if (last == null || page != last + 1) {
+			if (last != null && page != last) drop(table);
+			return;
+		}
+
+		int upTo = stagedUpTo.containsKey(table) ? stagedUpTo.get(table) : page;
+		// top the window up once the scan is half way through it
+		if (upTo - page > window / 2) return;
+
+		int end = Math.min(page + window, file.numPages() - 1);
+		List<PageId> run = new ArrayList<>();
+		for (int p = Math.max(upTo, page) + 1; p <= end; p++) {
+			PageId next = pid.withPageNumber(p);
+			if (staged.containsKey(next) || pool.isCached(next)) {
+				stage(file, run);
+				run = new ArrayList<>();
+			} else {
+				run.add(next);
+			}
+		}
+		stage(file, run);
+		stagedUpTo.put(table, Math.max(upTo, end));
+	}
+
+	/**
+	 * Reads a run of consecutive pages on an I/O thread, with one call if the
+	 * file can read several pages at once.
+	 */
+	private void stage(final DbFile file, final List<PageId> run) {
+		if (run.isEmpty()) return;
+		final List<CompletableFuture<Page>> futures = new ArrayList<>();
+		for (PageId pid : run) {
+			CompletableFuture<Page> future = new CompletableFuture<>();
+			futures.add(future);
+			staged.put(pid, future);
+		}
+
+		io.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					List<Page> pages = new ArrayList<>();
+					if (run.size() > 1 && file instanceof MultiPageFile) {
+						pages = ((MultiPageFile) file).readPages(run.get(0), run.size());
+					} else {
+						for (PageId pid : run) {
+							pages.add(file.readPage(pid));
+						}
+					}
+					for (int i = 0; i < futures.size(); i++) {
+						if (i < pages.size()) {
+							futures.get(i).complete(pages.get(i));
+						} else {
+							futures.get(i).complete(null);
+						}
+					}
+				} catch (Exception e) {
+					for (CompletableFuture<Page> future : futures) {
+						future.completeExceptionally(e);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Takes a staged page, waiting for it if it is still being read.
+	 *
+	 * @return the page, or null if it wasn't staged or couldn't be read
+	 */
+	public Page take(PageId pid) {
+		Future<Page> future = staged.remove(pid);
+		if (future == null) return null;
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		} catch (CancellationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Drops a staged page, because the page in the pool or on disk has changed
+	 * since it was read.
+	 */
+	public void forget(PageId pid) {
+		Future<Page> future = staged.remove(pid);
+		if (future != null) future.cancel(false);
+	}
+
+	/**
+	 * Drops everything staged for a table, and forgets where its scans were,
+	 * because the table was dropped.
+	 */
+	public synchronized void forget(int table) {
+		lastPage.remove(table);
+		drop(table);
+	}
+
+	private synchronized void drop(int table) {
+		stagedUpTo.remove(table);
+		Iterator<Map.Entry<PageId, Future<Page>>> it = staged.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<PageId, Future<Page>> entry = it.next();
+			if (entry.getKey().getTableId() == table) {
+				entry.getValue().cancel(false);
+				it.remove();
+			}
+		}
+	}
+
+}
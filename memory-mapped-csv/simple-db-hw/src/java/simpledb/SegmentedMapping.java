@@ -0,0 +1,120 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read-only mapping of a file of any length, made of fixed size segments
+ * since a single MappedByteBuffer can't cover more than 2 GB.
+ * <p>
+ * Segments are only mapped when a range inside them is asked for, and at most
+ * maxSegments of them are held at a time, least recently used first to go.
+ * Ranges are copied out of the segments rather than handed out as views of
+ * them, so nothing but the mapping refers to a segment: once it is dropped
+ * (or the mapping is closed) it is unreachable, and the garbage collector
+ * unmaps it without waiting for pages that were read from it. A range that
+ * crosses the end of a segment, such as a page whose rows straddle the
+ * boundary, is copied from each segment it covers in turn.
+ */
+public class SegmentedMapping {
+
+	/** Size of a segment; a 1 GB mapping fits any JVM's address space. */
+	public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+	public static final int DEFAULT_MAX_SEGMENTS = 4;
+
+	private File file;
+	private long length;
+	private long segmentSize;
+	private Map<Long, MappedByteBuffer> segments;
+
+	/**
+	 * Maps the file as it is now; bytes appended later aren't covered.
+	 */
+	public SegmentedMapping(File file, long segmentSize, final int maxSegments) {
+		this.file = file;
+		this.length = file.length();
+		this.segmentSize = segmentSize;
+		this.segments = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+				return size() > maxSegments;
+			}
+		};
+	}
+
+	/** @return the number of bytes of the file the mapping covers */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * @return a copy of the bytes from start up to end, which must lie within
+	 *   the mapping and be less than 2 GB apart
+	 */
+	public synchronized ByteBuffer read(long start, long end) throws IOException {
+		if (start < 0 || end < start || end > length || end - start > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("can't map bytes " + start + " to " + end);
+		}
+
+		byte[] bytes = new byte[(int) (end - start)];
+		for (long pos = start; pos < end; ) {
+			long segment = pos / segmentSize;
+			long segmentStart = segment * segmentSize;
+			MappedByteBuffer buffer = segments.get(segment);
+			if (buffer == null) {
+				buffer = map(segmentStart, Math.min(segmentSize, length - segmentStart));
+				segments.put(segment, buffer);
+			}
+			int n = (int) (Math.min(end, segmentStart + buffer.limit()) - pos);
+			ByteBuffer view = buffer.duplicate();
+			view.position((int) (pos - segmentStart));
+			view.get(bytes, (int) (pos - start), n);
+			pos += n;
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+	/**
+	 * Extends the mapping over bytes appended to the file since it was made.
+	 * Full segments stay mapped; only the one the file used to end in, which
+	 * was mapped short, is dropped to be mapped again at its new size.
+	 */
+	public synchronized void extend() {
+		long newLength = file.length();
+		if (newLength <= length) return;
+		segments.remove(length / segmentSize);
+		length = newLength;
+	}
+
+	/** @return the number of segments currently held */
+	public synchronized int numMappedSegments() {
+		return segments.size();
+	}
+
+	/** Drops every segment; the mapping maps them again if read from. */
+	public synchronized void close() {
+		segments.clear();
+	}
+
+	/**
+	 * Maps part of the file. The channel is closed straight away; the mapping
+	 * stays valid until it is garbage collected.
+	 */
+	private MappedByteBuffer map(long position, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, position, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+}
@@ -18,6 +18,10 @@ public class SeqScan implements DbIterator {
     private DbFile file;
 
     private DbFileIterator iterator;
+    // what the scan pushes down to files that can skip work themselves
+    private BitSet columns;
+    private List<Predicate> filters = new ArrayList<Predicate>();
+    private boolean parallel;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -53,6 +57,20 @@ public class SeqScan implements DbIterator {
     	return Database.getCatalog().getTableName(tableId);
     }
     
+    /**
+     * @return the id of the table the operator scans
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the transaction the scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return transactionId;
+    }
+
     /**
      * @return Return the alias of the table this operator scans. 
      * */
@@ -82,7 +100,86 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Reads the table with a parallel scan if its file supports one, no
+     * columns were pushed down to it, and the file can evaluate any filters
+     * that were while scanning in parallel. Must be called before open().
+     *
+     * @param ordered
+     *            whether tuples have to come back in file order; pass false
+     *            when the operators above don't depend on scan order.
+     * @return true if the scan will run in parallel
+     */
+    public boolean useParallelScan(boolean ordered) {
+        if (!(file instanceof ParallelScannable) || columns != null) return false;
+        ParallelScannable scannable = (ParallelScannable) file;
+        DbFileIterator parallelIterator = filters.isEmpty() ? scannable.parallelIterator(transactionId, ordered)
+                : scannable.parallelIterator(transactionId, ordered, filters);
+        if (parallelIterator == null) return false;
+        iterator = parallelIterator;
+        parallel = true;
+        return true;
+    }
+
+    /**
+     * Goes back to reading the table through the buffer pool, with any
+     * filters that were pushed down, if useParallelScan() made the scan
+     * parallel. Must be called before open().
+     */
+    public void useSerialScan() {
+        if (!parallel) return;
+        iterator = filters.isEmpty() ? file.iterator(transactionId) : pushedIterator();
+        parallel = false;
+    }
+
+    /** @return whether the table is read with a parallel scan */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Reads only the given columns of the table if its file can skip the
+     * others; the tuples returned still have every field of the table, but
+     * the ones not asked for may be null. Must be called before open().
+     *
+     * @param columns
+     *            the indexes of the fields the operators above use
+     * @return true if the scan will skip unused columns
+     */
+    public boolean useColumns(BitSet columns) {
+        if (!(file instanceof ProjectableFile)) return false;
+        this.columns = columns;
+        iterator = pushedIterator();
+        return true;
+    }
+
+    /**
+     * Has the table's file drop tuples that don't satisfy p while reading
+     * them, if it can evaluate p itself, so no Filter is needed for it. The
+     * predicate refers to fields by their index in the table. Must be called
+     * before open().
+     *
+     * @return true if the scan will only return tuples that satisfy p
+     */
+    public boolean useFilter(Predicate p) {
+        if (!(file instanceof FilterableFile) || !((FilterableFile) file).canFilter(p)) return false;
+        filters.add(p);
+        iterator = pushedIterator();
+        return true;
+    }
+
+    private DbFileIterator pushedIterator() {
+        parallel = false;
+        if (!filters.isEmpty())
+            return ((FilterableFile) file).iterator(transactionId, columns, filters);
+        return ((ProjectableFile) file).iterator(transactionId, columns);
+    }
+
     public void open() throws DbException, TransactionAbortedException {
+        // a parallel scan reads the file, so it wouldn't see rows this
+        // transaction wrote that are still only in the pool
+        if (parallel && Database.getBufferPool().holdsDirtyPages(transactionId, tableId))
+            useSerialScan();
         iterator.open();
     }
 
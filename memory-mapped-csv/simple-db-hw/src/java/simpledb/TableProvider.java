@@ -0,0 +1,23 @@
+package simpledb;
+
+/**
+ * A source of tables that aren't added to the Catalog up front, but opened
+ * the first time a query names them.
+ */
+public interface TableProvider {
+
+    /**
+     * Opens the table with the given name. The Catalog adds the file it
+     * returns under that name, so a table is only opened once.
+     *
+     * @return the table's file, or null if this provider has no such table
+     */
+    public DbFile openTable(String name);
+
+    /**
+     * @return the name of the primary key field of a table this provider
+     *   opened, or "" if it has none
+     */
+    public String getPrimaryKey(String name);
+
+}
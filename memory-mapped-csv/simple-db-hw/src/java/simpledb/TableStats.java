@@ -167,6 +167,23 @@ public class TableStats {
         return 1.0 * dbFile.numPages() * ioCostPerPage;
     }
 
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate
+     * through an index on its field instead, either a B+ tree or a hash
+     * index. Neither is clustered, so every matching tuple may cost a page
+     * read of its own. The index pages read to find the tuples (the pages on
+     * the way down a B+ tree and its leaves, or a hash bucket and its
+     * overflow pages) are few enough in comparison that they are counted as
+     * one read.
+     * 
+     * @param selectivityFactor
+     *            The selectivity of the predicate the index answers
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(double selectivityFactor) {
+        return (1.0 + numTuples * selectivityFactor) * ioCostPerPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Measures how many bytes are allocated per row when CSV rows are decoded,
+ * comparing the old String.split path with CsvTokenizer decoding tuples,
+ * reading primitive values only, and decoding a CsvPage. Needs a JVM whose
+ * ThreadMXBean reports allocated bytes (HotSpot does).
+ *
+ * usage: TestTokenizerAllocation [rows]
+ */
+public class TestTokenizerAllocation {
+
+	public static void main(String[] args) {
+		int rows = args.length > 0 ? Integer.valueOf(args[0]) : 1000000;
+
+		// ints, plus a low-cardinality string column like a category or status
+		Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE };
+		TupleDesc td = new TupleDesc(types);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < rows; i++) {
+			String row = i + "," + (i * 31) + ",status" + (i / 1000 % 4) + "," + (-i) + "\n";
+			out.write(row.getBytes(), 0, row.length());
+		}
+		byte[] data = out.toByteArray();
+
+		com.sun.management.ThreadMXBean bean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		for (int trial = 0; trial < 3; trial++) {
+			System.out.println("Trial " + trial);
+
+			long before = bean.getThreadAllocatedBytes(thread);
+			long start = System.currentTimeMillis();
+			long sum = scanSplit(data, td);
+			report("String.split", bean.getThreadAllocatedBytes(thread) - before, rows, start, sum);
+
+			before = bean.getThreadAllocatedBytes(thread);
+			start = System.currentTimeMillis();
+			sum = scanTokenizer(data, td);
+			report("CsvTokenizer, tuples", bean.getThreadAllocatedBytes(thread) - before, rows, start, sum);
+
+			before = bean.getThreadAllocatedBytes(thread);
+			start = System.currentTimeMillis();
+			sum = scanPrimitives(data, td);
+			report("CsvTokenizer, primitives", bean.getThreadAllocatedBytes(thread) - before, rows, start, sum);
+
+			before = bean.getThreadAllocatedBytes(thread);
+			start = System.currentTimeMillis();
+			sum = scanPage(data, td, rows);
+			report("CsvPage", bean.getThreadAllocatedBytes(thread) - before, rows, start, sum);
+		}
+	}
+
+	private static void report(String name, long bytes, int rows, long start, long sum) {
+		long time = System.currentTimeMillis() - start;
+		System.out.printf("  %-28s %8.2f bytes/row %6d ms (checksum %d)%n",
+				name, (bytes * 1.0) / rows, time, sum);
+	}
+
+	/** Decodes every row the way CsvFile used to, one String per line. */
+	private static long scanSplit(byte[] data, TupleDesc td) {
+		long sum = 0;
+		int lineStart = 0;
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] != '\n') continue;
+			String[] values = new String(data, lineStart, i - lineStart).split(",");
+			Tuple tuple = new Tuple(td);
+			for (int j = 0; j < values.length; j++) {
+				if (td.getFieldType(j).equals(Type.INT_TYPE)) {
+					tuple.setField(j, new IntField(Integer.valueOf(values[j])));
+				} else {
+					tuple.setField(j, new StringField(values[j], 2048));
+				}
+			}
+			sum += ((IntField) tuple.getField(1)).getValue();
+			lineStart = i + 1;
+		}
+		return sum;
+	}
+
+	private static long scanTokenizer(byte[] data, TupleDesc td) {
+		long sum = 0;
+		CsvTokenizer tokenizer = new CsvTokenizer(td);
+		tokenizer.reset(ByteBuffer.wrap(data));
+		while (tokenizer.nextRow()) {
+			Tuple tuple = tokenizer.readTuple();
+			sum += ((IntField) tuple.getField(1)).getValue();
+		}
+		return sum;
+	}
+
+	/** Reads the int column straight from the bytes, without any tuples. */
+	private static long scanPrimitives(byte[] data, TupleDesc td) {
+		long sum = 0;
+		CsvTokenizer tokenizer = new CsvTokenizer(td);
+		tokenizer.reset(ByteBuffer.wrap(data));
+		while (tokenizer.nextRow()) {
+			sum += tokenizer.getInt(1);
+		}
+		return sum;
+	}
+
+	/** Decodes all the rows as a single CsvPage and iterates over it. */
+	private static long scanPage(byte[] data, TupleDesc td, int rows) {
+		long sum = 0;
+		CsvPage page = new CsvPage(new CsvPageId(0, 0), 0, data, td, rows, null);
+		Iterator<Tuple> it = page.iterator();
+		while (it.hasNext()) {
+			sum += ((IntField) it.next().getField(1)).getValue();
+		}
+		return sum;
+	}
+
+}
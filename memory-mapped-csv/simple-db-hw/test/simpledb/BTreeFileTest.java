@@ -0,0 +1,189 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BTreeFileTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 2000;
+    private static final int MAX_VALUE = 300;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile table;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // small pages, so that a few thousand entries make a tree three levels deep
+        BufferPool.setPageSize(256);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        BufferPool.resetPageSize();
+    }
+
+    private File tempIndexFile() throws IOException {
+        File f = File.createTempFile("index", ".btree");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /** @return the first fields of the tuples an iterator returns, in order */
+    private List<Integer> keys(DbFileIterator it) throws Exception {
+        List<Integer> keys = new ArrayList<Integer>();
+        it.open();
+        while (it.hasNext()) {
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        return keys;
+    }
+
+    /** @return the sorted first fields of the tuples that satisfy "key op operand" */
+    private List<Integer> expected(Predicate.Op op, int operand) {
+        List<Integer> keys = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            if (new IntField(t.get(0)).compare(op, new IntField(operand))) keys.add(t.get(0));
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private void checkScans(BTreeFile index) throws Exception {
+        Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ };
+        int[] operands = { -1, 0, 17, MAX_VALUE / 2, MAX_VALUE - 1, MAX_VALUE };
+        for (Predicate.Op op : ops) {
+            for (int operand : operands) {
+                assertEquals(op + " " + operand, expected(op, operand),
+                        keys(index.indexIterator(tid, op, new IntField(operand))));
+            }
+        }
+        assertEquals(expected(Predicate.Op.GREATER_THAN, Integer.MIN_VALUE), keys(index.iterator(tid)));
+    }
+
+    /**
+     * An index built from the table answers equality and range scans.
+     */
+    @Test public void create() throws Exception {
+        BTreeFile index = BTreeFile.create(tempIndexFile(), table, 0, tid);
+        Database.getCatalog().addIndex(index);
+        checkScans(index);
+    }
+
+    /**
+     * Inserting into an empty index splits leaves and internal pages, and
+     * keeps every entry reachable.
+     */
+    @Test public void insertSplitsPages() throws Exception {
+        BTreeFile index = new BTreeFile(tempIndexFile(), table, 0);
+        Database.getCatalog().addIndex(index);
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            // written out right away, since the pages outnumber the buffer pool
+            for (Page page : index.insertTuple(tid, it.next())) {
+                index.writePage(page);
+            }
+        }
+        it.close();
+
+        int perLeaf = (BufferPool.getPageSize() - 10) / 12;
+        assertTrue(index.numPages() > ROWS / perLeaf);
+        checkScans(index);
+    }
+
+    /**
+     * Tuples inserted into and deleted from the table through the BufferPool
+     * are added to and removed from its index.
+     */
+    @Test public void bufferPoolMaintainsIndex() throws Exception {
+        BTreeFile index = BTreeFile.create(tempIndexFile(), table, 0, tid);
+        Database.getCatalog().addIndex(index);
+
+        for (int i = 0; i < 3; i++) {
+            Tuple t = new Tuple(table.getTupleDesc());
+            t.setField(0, new IntField(MAX_VALUE + 5));
+            t.setField(1, new IntField(i));
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        }
+        assertEquals(3, keys(index.indexIterator(tid, Predicate.Op.EQUALS, new IntField(MAX_VALUE + 5))).size());
+
+        int key = tuples.get(0).get(0);
+        DbFileIterator it = index.indexIterator(tid, Predicate.Op.EQUALS, new IntField(key));
+        it.open();
+        List<Tuple> matches = new ArrayList<Tuple>();
+        while (it.hasNext()) matches.add(it.next());
+        it.close();
+        for (Tuple t : matches) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        assertTrue(keys(index.indexIterator(tid, Predicate.Op.EQUALS, new IntField(key))).isEmpty());
+        assertEquals(expected(Predicate.Op.GREATER_THAN_OR_EQ, key).size() - matches.size() + 3,
+                keys(index.indexIterator(tid, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(key))).size());
+    }
+
+    /**
+     * The planner reads a selective filter on an indexed field through the
+     * index, but still scans the table when most of it matches.
+     */
+    @Test public void plannerUsesIndex() throws Exception {
+        BTreeFile index = BTreeFile.create(tempIndexFile(), table, 0, tid);
+        Database.getCatalog().addIndex(index);
+        String name = Database.getCatalog().getTableName(table.getId());
+        Map<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), TableStats.IOCOSTPERPAGE));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.EQUALS, "17");
+        lp.addProjectField("t.c0", null);
+        DbIterator plan = ((Project) lp.physicalPlan(tid, stats, false)).getChildren()[0];
+        assertTrue(plan instanceof IndexScan);
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            assertEquals(new IntField(17), plan.next().getField(0));
+            count++;
+        }
+        plan.close();
+        assertEquals(expected(Predicate.Op.EQUALS, 17).size(), count);
+
+        lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.GREATER_THAN, "10");
+        lp.addProjectField("t.c0", null);
+        plan = ((Project) lp.physicalPlan(tid, stats, false)).getChildren()[0];
+        assertFalse(plan instanceof IndexScan);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeFileTest.class);
+    }
+}
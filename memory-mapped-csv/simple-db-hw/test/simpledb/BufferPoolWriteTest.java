@@ -5,6 +5,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
@@ -48,6 +50,47 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class that dirties a fixed set of pages on insert and records how they are written
+    class HeapFileRecordingWrites extends HeapFile {
+
+    	private int[] pageNumbers;
+    	List<List<Integer>> writes = new ArrayList<List<Integer>>();
+
+    	public HeapFileRecordingWrites(File f, TupleDesc td, int... pageNumbers) {
+    		super(f, td);
+    		this.pageNumbers = pageNumbers;
+    	}
+
+    	@Override
+    	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+    			throws DbException, IOException, TransactionAbortedException {
+    		ArrayList<Page> dirtypages = new ArrayList<Page>();
+    		for (int pageNumber : pageNumbers) {
+    			HeapPage p = new HeapPage(new HeapPageId(getId(), pageNumber),
+    					HeapPage.createEmptyPageData());
+    			p.insertTuple(t);
+    			dirtypages.add(p);
+    		}
+    		return dirtypages;
+    	}
+
+    	@Override
+    	public void writePage(Page page) throws IOException {
+    		writes.add(Arrays.asList(page.getId().getPageNumber()));
+    		super.writePage(page);
+    	}
+
+    	@Override
+    	public void writePages(List<Page> pages) throws IOException {
+    		List<Integer> run = new ArrayList<Integer>();
+    		for (Page page : pages) {
+    			run.add(page.getId().getPageNumber());
+    		}
+    		writes.add(run);
+    		super.writePages(pages);
+    	}
+    }
+    
     /**
      * Set up initial resources for each unit test.
      */
@@ -133,6 +176,27 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Dirty pages are written in page order, and runs of consecutive pages
+     * are written with one call.
+     */
+    @Test public void flushSortedRuns() throws Exception {
+    	HeapFileRecordingWrites hf = new HeapFileRecordingWrites(empty.getFile(), empty.getTupleDesc(),
+    			3, 1, 6, 0, 2);
+    	Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    	Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+    	Database.getBufferPool().flushAllPages();
+
+    	assertEquals(2, hf.writes.size());
+    	assertEquals(Arrays.asList(0, 1, 2, 3), hf.writes.get(0));
+    	assertEquals(Arrays.asList(6), hf.writes.get(1));
+    	assertEquals(7, hf.numPages());
+
+    	HeapPage p = (HeapPage) hf.readPages(new HeapPageId(hf.getId(), 2), 2).get(1);
+    	assertEquals(3, p.getId().getPageNumber());
+    	assertEquals(503, p.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
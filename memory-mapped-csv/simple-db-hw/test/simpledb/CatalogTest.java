@@ -1,9 +1,19 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.Assert;
 import junit.framework.JUnit4TestAdapter;
@@ -93,6 +103,132 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Tables listed in a catalog file are in the catalog once it is loaded,
+     * but their files aren't opened until they are read
+     */
+    @Test public void loadSchemaLazily() throws Exception {
+        File dir = Files.createTempDirectory("catalog").toFile();
+        dir.deleteOnExit();
+        File catalogFile = new File(dir, "catalog.txt");
+        catalogFile.deleteOnExit();
+        PrintWriter pw = new PrintWriter(catalogFile);
+        pw.println("emp (id int pk, name string)");
+        pw.println("dept (id int, title string)");
+        pw.close();
+
+        Database.getCatalog().loadSchema(catalogFile.getPath());
+        assertTrue(containsTable("emp"));
+        assertTrue(containsTable("dept"));
+
+        int id = Database.getCatalog().getTableId("emp");
+        assertEquals("id", Database.getCatalog().getPrimaryKey(id));
+        assertEquals("name", Database.getCatalog().getTupleDesc(id).getFieldName(1));
+        assertEquals(new File(dir, "emp.dat").getAbsoluteFile(),
+                ((HeapFile) Database.getCatalog().getDatabaseFile(id)).getFile().getAbsoluteFile());
+        assertFalse(new File(dir, "emp.dat").exists());
+    }
+
+    /**
+     * Lookups from other threads keep finding the tables that stay in the
+     * catalog while tables are added and removed
+     */
+    @Test public void concurrentLookups() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            assertEquals(id1, Database.getCatalog().getTableId(nameThisTestRun));
+                            assertEquals(id2, Database.getCatalog().getDatabaseFile(id2).getId());
+                            assertEquals(2, Database.getCatalog().getTupleDesc(id1).numFields());
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            readers[i].start();
+        }
+
+        ArrayList<Integer> added = new ArrayList<Integer>();
+        while (added.size() < 500) {
+            int id = r.nextInt();
+            if (id == id1 || id == id2 || added.contains(id)) continue;
+            Database.getCatalog().addTable(new SkeletonFile(id, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+            added.add(id);
+            if (added.size() % 2 == 0) Database.getCatalog().removeTable(added.get(added.size() - 2));
+        }
+        done.set(true);
+        for (Thread reader : readers) reader.join();
+        assertNull(failure.get());
+
+        int tables = 0;
+        for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); it.next()) tables++;
+        assertEquals(2 + added.size() / 2, tables);
+    }
+
+    /**
+     * A scan that started before its table was dropped reads the rest of it
+     */
+    @Test public void scanDroppedTable() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        scan.open();
+        assertTrue(scan.hasNext());
+        scan.next();
+        Database.getCatalog().removeTable(table.getId());
+        int rows = 1;
+        while (scan.hasNext()) {
+            scan.next();
+            rows++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2000, rows);
+    }
+
+    /**
+     * A transaction that wrote to a table dropped before it finishes still
+     * commits, writing its pages through the file they were read from, and
+     * releases its locks.
+     */
+    @Test public void commitToDroppedTable() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid = new HeapPageId(table.getId(), 0);
+        int empty = ((HeapPage) table.readPage(pid)).getNumEmptySlots();
+
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] { 7, 7 }));
+        assertTrue(Database.getBufferPool().holdsLock(tid, pid));
+        Database.getCatalog().removeTable(table.getId());
+        Database.getBufferPool().transactionComplete(tid);
+        assertFalse(Database.getBufferPool().holdsLock(tid, pid));
+        assertEquals(empty - 1, ((HeapPage) table.readPage(pid)).getNumEmptySlots());
+
+        // one that aborts leaves the page as it was
+        Database.getCatalog().addTable(table);
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] { 8, 8 }));
+        Database.getCatalog().removeTable(table.getId());
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertFalse(Database.getBufferPool().holdsLock(tid, pid));
+        assertEquals(empty - 1, ((HeapPage) table.readPage(pid)).getNumEmptySlots());
+    }
+
+    private boolean containsTable(String tableName) {
+        Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        while (it.hasNext()) {
+            if (Database.getCatalog().getTableName(it.next()).equals(tableName)) return true;
+        }
+        return false;
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,182 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CsvColumnCacheTest extends SimpleDbTestBase {
+
+    private static final int ROWS_PER_PAGE = 10;
+
+    private File csv;
+    private TupleDesc td;
+
+    @Before public void createCsv() throws IOException {
+        csv = File.createTempFile("columns", ".csv");
+        csv.deleteOnExit();
+        new File(csv.getPath() + ".cols").deleteOnExit();
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        append(0, 25);
+    }
+
+    private void append(int from, int to) throws IOException {
+        FileWriter fw = new FileWriter(csv, true);
+        for (int i = from; i < to; i++) {
+            fw.write(i + ",name" + i + "\n");
+        }
+        fw.close();
+    }
+
+    /** @return a page index over the CSV as it is now */
+    private CsvPageIndex index() throws IOException {
+        CsvPageIndex index = new CsvPageIndex(csv, ROWS_PER_PAGE);
+        index.reset();
+        return index;
+    }
+
+    /** Parses every page of the CSV and offers it to the cache. */
+    private void fill(CsvColumnCache cache) throws IOException {
+        CsvPageIndex index = index();
+        CsvTokenizer tokenizer = new CsvTokenizer(td);
+        for (int p = 0; p < index.numPages(); p++) {
+            long start = index.getPageStart(p);
+            byte[] data = new byte[(int) (index.getPageEnd(p) - start)];
+            RandomAccessFile raf = new RandomAccessFile(csv, "r");
+            raf.seek(start);
+            raf.readFully(data);
+            raf.close();
+
+            List<Tuple> tuples = new ArrayList<Tuple>();
+            tokenizer.reset(ByteBuffer.wrap(data));
+            while (tokenizer.nextRow()) tuples.add(tokenizer.readTuple());
+            cache.addPage(p, start, data, tuples);
+        }
+    }
+
+    /**
+     * Only full pages are cached, and a new cache object reads them back.
+     */
+    @Test public void persisted() throws Exception {
+        CsvColumnCache cache = new CsvColumnCache(csv, td, ROWS_PER_PAGE);
+        cache.validate();
+        fill(cache);
+        assertEquals(2, cache.numPages());
+
+        CsvColumnCache reloaded = new CsvColumnCache(csv, td, ROWS_PER_PAGE);
+        reloaded.validate();
+        assertEquals(2, reloaded.numPages());
+        List<Tuple> page = reloaded.readPage(1, index());
+        assertEquals(ROWS_PER_PAGE, page.size());
+        assertEquals(new IntField(10), page.get(0).getField(0));
+        assertEquals(new StringField("name19", Type.STRING_LEN), page.get(9).getField(1));
+        assertNull(reloaded.readPage(2, index()));
+    }
+
+    /**
+     * Appending keeps the cached pages; rewriting bytes of a page drops that
+     * page and the ones after it, but not those before.
+     */
+    @Test public void changes() throws Exception {
+        CsvColumnCache cache = new CsvColumnCache(csv, td, ROWS_PER_PAGE);
+        cache.validate();
+        fill(cache);
+
+        append(25, 40);
+        CsvColumnCache appended = new CsvColumnCache(csv, td, ROWS_PER_PAGE);
+        appended.validate();
+        assertEquals(2, appended.numPages());
+        fill(appended);
+        assertEquals(4, appended.numPages());
+
+        // the first row of page 1
+        RandomAccessFile raf = new RandomAccessFile(csv, "rw");
+        raf.seek(index().getPageStart(1));
+        raf.write('9');
+        raf.close();
+        appended.validate();
+        assertNull(appended.readPage(1, index()));
+        assertEquals(1, appended.numPages());
+        assertEquals(new IntField(0), appended.readPage(0, index()).get(0).getField(0));
+    }
+
+    /**
+     * A CsvFile serves pages from the cache left behind by an earlier one
+     * only after checking the page's bytes, so a row changed behind its back,
+     * even keeping the CSV's length and modification time, is parsed again.
+     */
+    @Test public void csvFile() throws Exception {
+        append(25, 100);
+        CsvFile first = new CsvFile(csv, td);
+        for (int p = 0; p < first.numPages(); p++) {
+            // pages reach the cache once their rows are decoded
+            ((CsvPage) first.readPage(new CsvPageId(first.getId(), p))).iterator();
+        }
+        new File(csv.getPath() + ".idx").deleteOnExit();
+
+        // change the first row behind the cache's back, keeping the length and time
+        long modified = csv.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(csv, "rw");
+        raf.write('7');
+        raf.close();
+        csv.setLastModified(modified);
+
+        CsvFile second = new CsvFile(csv, td);
+        CsvPage page = (CsvPage) second.readPage(new CsvPageId(second.getId(), 0));
+        assertEquals(new IntField(7), page.iterator().next().getField(0));
+        int rowsPerPage = page.numTuples();
+        page = (CsvPage) second.readPage(new CsvPageId(second.getId(), 1));
+        assertEquals(new IntField(rowsPerPage), page.iterator().next().getField(0));
+    }
+
+    /**
+     * Pages only reach the cache once every column has been decoded, so
+     * scans that project some columns leave it as it is; the page goes to
+     * the cache once a later scan decodes the rest of its columns.
+     */
+    @Test public void projectedScans() throws Exception {
+        append(25, 100);
+        CsvFile file = new CsvFile(csv, td);
+        new File(csv.getPath() + ".idx").deleteOnExit();
+        BitSet first = new BitSet();
+        first.set(0);
+        List<CsvPage> pages = new ArrayList<CsvPage>();
+        for (int p = 0; p < file.numPages(); p++) {
+            CsvPage page = (CsvPage) file.readPage(new CsvPageId(file.getId(), p));
+            page.iterator(first).next();
+            pages.add(page);
+        }
+        int rowsPerPage = pages.get(0).numTuples();
+        CsvColumnCache cache = new CsvColumnCache(csv, td, rowsPerPage);
+        cache.validate();
+        assertEquals(0, cache.numPages());
+
+        for (CsvPage page : pages) {
+            page.iterator().next();
+        }
+        cache = new CsvColumnCache(csv, td, rowsPerPage);
+        cache.validate();
+        assertEquals(100 / rowsPerPage, cache.numPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CsvColumnCacheTest.class);
+    }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CsvDirectoryTest extends SimpleDbTestBase {
+
+    private File dir;
+    private CsvDirectory directory;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDirectory("tables").toFile();
+        dir.deleteOnExit();
+        writeTable("trips", "1,boston,2.5,\n2,\"new york\",3,x\n-3,cambridge,4.25,\n");
+        writeTable("empty", "");
+        writeFile(new File(dir, "notes.txt"), "not,a,table\n");
+
+        directory = new CsvDirectory(dir);
+        Database.getCatalog().addProvider(directory);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        directory.stop();
+        Database.getCatalog().removeProvider(directory);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    private File writeTable(String name, String contents) throws IOException {
+        File f = new File(dir, name + ".csv");
+        writeFile(f, contents);
+        for (String side : new String[] { ".idx", ".cols", ".zones" }) {
+            new File(f.getPath() + side).deleteOnExit();
+        }
+        return f;
+    }
+
+    private void writeFile(File f, String contents) throws IOException {
+        f.deleteOnExit();
+        PrintWriter pw = new PrintWriter(f);
+        pw.print(contents);
+        pw.close();
+    }
+
+    /**
+     * A column is an int only if every sampled value of it is one.
+     */
+    @Test public void infersSchema() throws Exception {
+        TupleDesc td = CsvDirectory.inferSchema(new File(dir, "trips.csv"), "trips");
+        assertEquals(new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.STRING_TYPE, Type.STRING_TYPE },
+                new String[] { "trips_0", "trips_1", "trips_2", "trips_3" }), td);
+
+        td = CsvDirectory.inferSchema(new File(dir, "empty.csv"), "empty");
+        assertEquals(1, td.numFields());
+        assertEquals(Type.STRING_TYPE, td.getFieldType(0));
+    }
+
+    /**
+     * Tables are opened when first looked up by name, and only once.
+     */
+    @Test public void opensOnLookup() throws Exception {
+        assertEquals(Arrays.asList("empty", "trips"), directory.refresh());
+        assertNull(directory.openTable("notes"));
+
+        int id = Database.getCatalog().getTableId("trips");
+        assertEquals(id, Database.getCatalog().getTableId("trips"));
+        DbFile table = Database.getCatalog().getDatabaseFile(id);
+        assertTrue(table instanceof CsvFile);
+        assertEquals("trips_1", table.getTupleDesc().getFieldName(1));
+
+        DbIterator scan = new SeqScan(tid, id, "t");
+        scan.open();
+        int sum = 0;
+        while (scan.hasNext()) {
+            sum += ((IntField) scan.next().getField(0)).getValue();
+        }
+        scan.close();
+        assertEquals(0, sum);
+    }
+
+    /**
+     * A table is dropped from the catalog once its CSV is gone.
+     */
+    @Test public void dropsDeletedTables() throws Exception {
+        File f = writeTable("later", "7,seven\n");
+        int id = Database.getCatalog().getTableId("later");
+        assertEquals("later", Database.getCatalog().getTableName(id));
+
+        assertTrue(f.delete());
+        assertEquals(Arrays.asList("empty", "trips"), directory.refresh());
+        try {
+            Database.getCatalog().getTableId("later");
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A CSV that is deleted and written again is read afresh, although its
+     * new table has the same id as the dropped one.
+     */
+    @Test public void recreatedTable() throws Exception {
+        File f = writeTable("later", "7,seven\n");
+        int id = Database.getCatalog().getTableId("later");
+        assertEquals(7, sum(id));
+
+        assertTrue(f.delete());
+        directory.refresh();
+        assertFalse(FileWatcher.getInstance().isWatched(f));
+
+        writeTable("later", "1,one\n2,two\n");
+        assertEquals(id, Database.getCatalog().getTableId("later"));
+        assertEquals(3, sum(id));
+    }
+
+    private int sum(int tableid) throws Exception {
+        DbIterator scan = new SeqScan(tid, tableid, "t");
+        scan.open();
+        int sum = 0;
+        while (scan.hasNext()) {
+            sum += ((IntField) scan.next().getField(0)).getValue();
+        }
+        scan.close();
+        return sum;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CsvDirectoryTest.class);
+    }
+}
@@ -0,0 +1,407 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CsvFileTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 100;
+
+    private File csv;
+    private CsvFile cf;
+    private TupleDesc td;
+    private TransactionId tid;
+
+    @Before public void createCsvFile() throws IOException {
+        csv = File.createTempFile("csvfile", ".csv");
+        csv.deleteOnExit();
+        new File(csv.getPath() + ".idx").deleteOnExit();
+        new File(csv.getPath() + ".zones").deleteOnExit();
+
+        PrintWriter pw = new PrintWriter(csv);
+        for (int i = 0; i < ROWS; i++) {
+            pw.print(i + "," + (i * 2) + "\n");
+        }
+        pw.close();
+
+        td = Utility.getTupleDesc(2);
+        cf = new CsvFile(csv, td);
+        Database.getCatalog().addTable(cf, "csv");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int perPage() {
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+    }
+
+    private int count() throws Exception {
+        TransactionId reader = new TransactionId();
+        DbFileIterator it = cf.iterator(reader);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(reader);
+        return count;
+    }
+
+    private void insert(int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            Database.getBufferPool().insertTuple(tid, cf.getId(), Utility.getHeapTuple(ROWS + i, 2));
+        }
+    }
+
+    /**
+     * Inserted rows reach the CSV only when the transaction commits, and
+     * spill onto new pages once the last page is full.
+     */
+    @Test public void insertCommit() throws Exception {
+        long length = csv.length();
+        int inserted = perPage() + 10;
+        insert(inserted);
+        assertEquals(length, csv.length());
+        assertEquals((ROWS + inserted - 1) / perPage() + 1, cf.numPages());
+
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(ROWS + inserted, count());
+        assertEquals((ROWS + inserted - 1) / perPage() + 1, cf.numPages());
+
+        // the CSV itself holds the rows, not just the cached pages
+        CsvFile reopened = new CsvFile(csv, td);
+        assertEquals(cf.numPages(), reopened.numPages());
+        tid = new TransactionId();
+    }
+
+    @Test public void insertAbort() throws Exception {
+        long length = csv.length();
+        insert(perPage());
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        assertEquals(length, csv.length());
+        assertEquals(ROWS, count());
+        assertEquals((ROWS - 1) / perPage() + 1, cf.numPages());
+        tid = new TransactionId();
+    }
+
+    /**
+     * readPages cuts the same pages out of one read as readPage does one by one.
+     */
+    @Test public void readPages() throws Exception {
+        PrintWriter pw = new PrintWriter(new FileWriter(csv, true));
+        for (int i = ROWS; i < 3 * perPage(); i++) {
+            pw.print(i + "," + (i * 2) + "\n");
+        }
+        pw.close();
+        cf = new CsvFile(csv, td);
+        new File(csv.getPath() + ".cols").deleteOnExit();
+
+        List<Page> pages = cf.readPages(new CsvPageId(cf.getId(), 1), 10);
+        assertEquals(2, pages.size());
+        for (Page p : pages) {
+            Iterator<Tuple> batched = ((CsvPage) p).iterator();
+            Iterator<Tuple> single = ((CsvPage) cf.readPage(p.getId())).iterator();
+            while (single.hasNext()) {
+                assertEquals(single.next().getField(1), batched.next().getField(1));
+            }
+            assertFalse(batched.hasNext());
+        }
+    }
+
+    /**
+     * A projected scan leaves the other fields null, and a later full scan of
+     * the same pages in the pool decodes them.
+     */
+    @Test public void projectedScan() throws Exception {
+        BitSet columns = new BitSet();
+        columns.set(1);
+        DbFileIterator it = cf.iterator(tid, columns);
+        it.open();
+        int i = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertNull(t.getField(0));
+            assertEquals(new IntField(i * 2), t.getField(1));
+            i++;
+        }
+        it.close();
+        assertEquals(ROWS, i);
+
+        it = cf.iterator(tid);
+        it.open();
+        i = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals(new IntField(i * 2), t.getField(1));
+            i++;
+        }
+        it.close();
+        assertEquals(ROWS, i);
+    }
+
+    private int countMatching(List<Predicate> filters) throws Exception {
+        DbFileIterator it = cf.iterator(tid, null, filters);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * Pushed down predicates give the same rows whether they are evaluated on
+     * the raw rows or on pages that have been decoded already.
+     */
+    @Test public void filteredScan() throws Exception {
+        List<Predicate> filters = new ArrayList<Predicate>();
+        filters.add(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(50)));
+        filters.add(new Predicate(0, Predicate.Op.LIKE, new IntField(55)));
+        assertEquals(1, countMatching(filters));
+
+        filters.remove(1);
+        filters.add(new Predicate(1, Predicate.Op.EQUALS, new IntField(120)));
+        assertEquals(1, countMatching(filters));
+        assertEquals(ROWS, count());
+        assertEquals(1, countMatching(filters));
+    }
+
+    /** Writes rows from, from + 1, ... to a CSV, replacing what it held. */
+    private void writeRows(File f, int from, int rows) throws IOException {
+        PrintWriter pw = new PrintWriter(f);
+        for (int i = from; i < from + rows; i++) {
+            pw.print(i + "," + (i * 2) + "\n");
+        }
+        pw.close();
+        // a new modification time, even on file systems that only keep seconds
+        f.setLastModified(f.lastModified() + 2000);
+    }
+
+    /**
+     * A running scan keeps reading the version of the CSV it started on when
+     * a new version is moved over the CSV, while new scans read the new one.
+     * A CSV rewritten in place under a scan fails the scan instead.
+     */
+    @Test public void snapshotScan() throws Exception {
+        writeRows(csv, 0, 3 * perPage());
+        cf = new CsvFile(csv, td);
+        Database.getCatalog().addTable(cf, "csv");
+        new File(csv.getPath() + ".cols").deleteOnExit();
+
+        DbFileIterator it = cf.iterator(tid);
+        it.open();
+        List<Tuple> seen = new ArrayList<Tuple>();
+        for (int i = 0; i <= perPage(); i++) seen.add(it.next());
+
+        File replacement = File.createTempFile("csvfile", ".csv", csv.getParentFile());
+        replacement.deleteOnExit();
+        writeRows(replacement, 10000, 2 * perPage());
+        Files.move(replacement.toPath(), csv.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        FileWatcher.getInstance().watch(csv).check();
+
+        assertEquals(2 * perPage(), count());
+        while (it.hasNext()) seen.add(it.next());
+        it.close();
+        assertEquals(3 * perPage(), seen.size());
+        for (int i = 0; i < seen.size(); i++) {
+            assertEquals(new IntField(i), seen.get(i).getField(0));
+        }
+
+        it = cf.iterator(tid);
+        it.open();
+        assertEquals(new IntField(10000), it.next().getField(0));
+        writeRows(csv, 20000, 2 * perPage());
+        FileWatcher.getInstance().watch(csv).check();
+        try {
+            while (it.hasNext()) it.next();
+            fail("expected DbException");
+        } catch (DbException e) {
+            // page 1 of the version the scan is reading is gone
+        }
+        it.close();
+        assertEquals(2 * perPage(), count());
+    }
+
+    /**
+     * The last page of the version a scan reads is checked too, up to where
+     * that version ended, so rewriting it in place fails the scan rather
+     * than mixing rows of both versions.
+     */
+    @Test public void tailRewrittenInPlace() throws Exception {
+        int rows = perPage() + perPage() / 2;
+        writeRows(csv, 1000, rows);
+        cf = new CsvFile(csv, td);
+        Database.getCatalog().addTable(cf, "csv");
+        new File(csv.getPath() + ".cols").deleteOnExit();
+
+        DbFileIterator it = cf.iterator(tid);
+        it.open();
+        for (int i = 0; i < perPage(); i++) {
+            assertEquals(new IntField(1000 + i), it.next().getField(0));
+        }
+
+        // same length, so only the page's bytes tell the versions apart
+        writeRows(csv, 2000, rows);
+        FileWatcher.getInstance().watch(csv).check();
+        try {
+            while (it.hasNext()) it.next();
+            fail("expected DbException");
+        } catch (DbException e) {
+            // the last page of the version the scan is reading changed
+        }
+        it.close();
+        assertEquals(rows, count());
+    }
+
+    /**
+     * The planner reads a CSV with a parallel scan when nothing is pushed
+     * into the scan, in file order only under an ORDER BY, and the scan takes
+     * shared locks on the table's pages like a scan through the pool would.
+     */
+    @Test public void plannerUsesParallelScan() throws Exception {
+        CsvFile named = new CsvFile(csv, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(named, "csv");
+        Map<String, TableStats> stats = new HashMap<String, TableStats>();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(named.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        Project plan = (Project) lp.physicalPlan(tid, stats, false);
+        assertTrue(((SeqScan) plan.getChildren()[0]).isParallel());
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        assertEquals(ROWS, count);
+        assertTrue(Database.getBufferPool().holdsLock(tid, new CsvPageId(named.getId(), 0)));
+
+        lp = new LogicalPlan();
+        lp.addScan(named.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        lp.addOrderBy("t.c1", false);
+        plan = (Project) lp.physicalPlan(tid, stats, false);
+        DbIterator scan = ((OrderBy) plan.getChildren()[0]).getChildren()[0];
+        assertTrue(((SeqScan) scan).isParallel());
+        plan.open();
+        for (int i = ROWS - 1; i >= 0; i--) {
+            assertEquals(new IntField(i * 2), plan.next().getField(1));
+        }
+        plan.close();
+
+        // a scan that decodes only some columns reads through the pool
+        lp = new LogicalPlan();
+        lp.addScan(named.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        plan = (Project) lp.physicalPlan(tid, stats, false);
+        assertFalse(((SeqScan) plan.getChildren()[0]).isParallel());
+
+        // the inner side of a nested loop join is rewound for every outer
+        // tuple, so it reads through the pool too
+        stats.put("csv", new TableStats(named.getId(), 1));
+        lp = new LogicalPlan();
+        lp.addScan(named.getId(), "t");
+        lp.addScan(named.getId(), "u");
+        lp.addJoin("t.c0", "u.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        lp.addProjectField("u.c0", null);
+        lp.addProjectField("u.c1", null);
+        plan = (Project) lp.physicalPlan(tid, stats, false);
+        DbIterator[] sides = ((Join) plan.getChildren()[0]).getChildren();
+        assertTrue(((SeqScan) sides[0]).isParallel());
+        assertFalse(((SeqScan) sides[1]).isParallel());
+        plan.open();
+        count = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        assertEquals(ROWS, count);
+    }
+
+    /**
+     * A transaction that inserted rows it hasn't committed yet sees them in
+     * its own scans, which read through the pool rather than the CSV, while a
+     * parallel scan of another transaction keeps writers out of the table.
+     */
+    @Test public void parallelScanSeesOwnInserts() throws Exception {
+        CsvFile named = new CsvFile(csv, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(named, "csv");
+        Map<String, TableStats> stats = new HashMap<String, TableStats>();
+        Database.getBufferPool().insertTuple(tid, named.getId(), Utility.getHeapTuple(ROWS, 2));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(named.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        Project plan = (Project) lp.physicalPlan(tid, stats, false);
+        plan.open();
+        assertFalse(((SeqScan) plan.getChildren()[0]).isParallel());
+        int count = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        assertEquals(ROWS + 1, count);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        DbFileIterator scan = named.parallelIterator(tid, false);
+        scan.open();
+        TransactionId writer = new TransactionId();
+        try {
+            Database.getBufferPool().insertTuple(writer, named.getId(), Utility.getHeapTuple(ROWS + 1, 2));
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // the scan holds a shared lock on the whole table
+        }
+        scan.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CsvFileTest.class);
+    }
+}
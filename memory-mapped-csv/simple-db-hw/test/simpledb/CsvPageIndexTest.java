@@ -0,0 +1,230 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CsvPageIndexTest extends SimpleDbTestBase {
+
+    private File csv;
+
+    @Before public void createCsv() throws IOException {
+        csv = File.createTempFile("index", ".csv");
+        csv.deleteOnExit();
+        new File(csv.getPath() + ".idx").deleteOnExit();
+    }
+
+    private void append(String s) throws IOException {
+        FileWriter fw = new FileWriter(csv, true);
+        fw.write(s);
+        fw.close();
+    }
+
+    private String readPage(CsvPageIndex index, int page) throws IOException {
+        long start = index.getPageStart(page);
+        byte[] data = new byte[(int) (index.getPageEnd(page) - start)];
+        RandomAccessFile raf = new RandomAccessFile(csv, "r");
+        raf.seek(start);
+        raf.readFully(data);
+        raf.close();
+        return new String(data);
+    }
+
+    /**
+     * Page offsets land on row boundaries, and blank lines don't count as rows.
+     */
+    @Test public void pageOffsets() throws Exception {
+        append("1,1\n2,2\n\n3,3\r\n4,4\n5,5");
+        CsvPageIndex index = new CsvPageIndex(csv, 2);
+        assertFalse(index.isLoaded());
+        index.refresh();
+
+        assertEquals(5, index.numRows());
+        assertEquals(3, index.numPages());
+        assertEquals("1,1\n2,2\n\n", readPage(index, 0));
+        assertEquals("3,3\r\n4,4\n", readPage(index, 1));
+        assertEquals("5,5", readPage(index, 2));
+    }
+
+    /**
+     * Appending extends the existing index, including a trailing partial row.
+     */
+    @Test public void extendOnAppend() throws Exception {
+        append("1,1\n2,2\n3,");
+        CsvPageIndex index = new CsvPageIndex(csv, 2);
+        index.refresh();
+        assertEquals(3, index.numRows());
+
+        append("3\n4,4\n5,5\n");
+        index.refresh();
+        assertEquals(5, index.numRows());
+        assertEquals("3,3\n4,4\n", readPage(index, 1));
+        assertEquals("5,5\n", readPage(index, 2));
+    }
+
+    /**
+     * A saved index is reused as long as the CSV hasn't changed underneath it.
+     */
+    @Test public void persisted() throws Exception {
+        append("1,1\n2,2\n3,3\n");
+        new CsvPageIndex(csv, 2).refresh();
+        assertTrue(new File(csv.getPath() + ".idx").exists());
+
+        CsvPageIndex reloaded = new CsvPageIndex(csv, 2);
+        reloaded.refresh();
+        assertEquals(3, reloaded.numRows());
+        assertEquals("3,3\n", readPage(reloaded, 1));
+
+        // a different page size can't reuse the saved offsets
+        CsvPageIndex other = new CsvPageIndex(csv, 1);
+        other.refresh();
+        assertEquals(3, other.numPages());
+        assertEquals("2,2\n", readPage(other, 1));
+    }
+
+    /**
+     * update() tells appends apart from rewrites of already indexed bytes.
+     */
+    @Test public void detectChanges() throws Exception {
+        append("1,1\n2,2\n");
+        CsvPageIndex index = new CsvPageIndex(csv, 2);
+        assertEquals(CsvPageIndex.Change.APPEND, index.update());
+        assertEquals(CsvPageIndex.Change.NONE, index.update());
+
+        append("3,3\n");
+        assertEquals(CsvPageIndex.Change.APPEND, index.update());
+        assertEquals(3, index.numRows());
+
+        RandomAccessFile raf = new RandomAccessFile(csv, "rw");
+        raf.write('9');
+        raf.close();
+        assertEquals(CsvPageIndex.Change.REWRITE, index.update());
+        assertEquals(3, index.numRows());
+    }
+
+    /**
+     * A saved index survives appends made while it wasn't loaded.
+     */
+    @Test public void persistedAcrossAppend() throws Exception {
+        append("1,1\n2,2\n3,3\n");
+        new CsvPageIndex(csv, 2).refresh();
+        append("4,4\n5,5\n");
+
+        CsvPageIndex reloaded = new CsvPageIndex(csv, 2);
+        assertEquals(CsvPageIndex.Change.APPEND, reloaded.update());
+        assertEquals(5, reloaded.numRows());
+        assertEquals("5,5\n", readPage(reloaded, 2));
+    }
+
+    /**
+     * Rewriting one row only marks its own page changed, even when the row
+     * changes length and moves every later page.
+     */
+    @Test public void changedPages() throws Exception {
+        append("1,1\n2,2\n3,3\n4,4\n5,5\n6,6\n7,7\n");
+        CsvPageIndex index = new CsvPageIndex(csv, 2);
+        index.update();
+
+        FileWriter fw = new FileWriter(csv, false);
+        fw.write("1,1\n2,2222\n3,3\n4,4\n5,5\n6,6\n7,7\n");
+        fw.close();
+        assertEquals(CsvPageIndex.Change.REWRITE, index.update());
+
+        BitSet changed = index.getChangedPages();
+        assertTrue(changed.get(0));
+        assertFalse(changed.get(1));
+        assertFalse(changed.get(2));
+        // the last page is never trusted
+        assertTrue(changed.get(3));
+
+        append("8,8\n");
+        assertEquals(CsvPageIndex.Change.APPEND, index.update());
+        changed = index.getChangedPages();
+        assertEquals(1, changed.cardinality());
+        assertTrue(changed.get(3));
+
+        assertEquals(CsvPageIndex.Change.NONE, index.update());
+        assertTrue(index.getChangedPages().isEmpty());
+    }
+
+    /**
+     * Rows are counted the same way the index counts them, however the CSV
+     * is split into chunks, even when a chunk starts inside a quoted field.
+     */
+    @Test public void countRows() throws Exception {
+        append("1,\"a\n\"\"b\"\"\n\"\n\n\r\n2,b\r\n\"\"\n3,\"\n\n\"\n4");
+        CsvPageIndex index = new CsvPageIndex(csv, 2);
+        assertEquals(5, index.countRows());
+        assertEquals(3, index.countPages());
+        assertFalse(index.isLoaded());
+        for (int chunkSize = 1; chunkSize <= csv.length(); chunkSize++) {
+            assertEquals(5, CsvPageIndex.countRows(csv, csv.length(), chunkSize));
+        }
+
+        index.refresh();
+        assertEquals(5, index.numRows());
+        append("\n5,e\n");
+        for (int chunkSize = 1; chunkSize <= csv.length(); chunkSize++) {
+            assertEquals(6, CsvPageIndex.countRows(csv, csv.length(), chunkSize));
+        }
+    }
+
+    /**
+     * Only a quote at the start of a field opens a quoted field; one in the
+     * middle of a field doesn't make the newline after it part of the row.
+     */
+    @Test public void quoteInsideField() throws Exception {
+        append("1,5\" pipe\n2,\"a\nb\"\n3,x\"\"y\n4,\"\"\"\"\n5,5\n");
+        CsvPageIndex index = new CsvPageIndex(csv, 2);
+        index.refresh();
+        assertEquals(5, index.numRows());
+        assertEquals("1,5\" pipe\n2,\"a\nb\"\n", readPage(index, 0));
+        assertEquals("3,x\"\"y\n4,\"\"\"\"\n", readPage(index, 1));
+        for (int chunkSize = 1; chunkSize <= csv.length(); chunkSize++) {
+            assertEquals(5, CsvPageIndex.countRows(csv, csv.length(), chunkSize));
+        }
+    }
+
+    /**
+     * An index that was saved with the CSV as it is gives the count without
+     * being loaded; once the CSV changes the rows are counted again.
+     */
+    @Test public void countRowsFromSavedIndex() throws Exception {
+        append("1,1\n2,2\n3,3\n");
+        new CsvPageIndex(csv, 2).refresh();
+        // a count that can't have come from the CSV shows the saved one was used
+        RandomAccessFile raf = new RandomAccessFile(csv.getPath() + ".idx", "rw");
+        raf.seek(4 * 3 + 8 * 6);
+        raf.writeInt(40);
+        raf.close();
+
+        CsvPageIndex index = new CsvPageIndex(csv, 2);
+        assertEquals(40, index.countRows());
+        assertFalse(index.isLoaded());
+
+        append("4,4\n");
+        csv.setLastModified(csv.lastModified() + 2000);
+        assertEquals(4, index.countRows());
+        assertEquals(2, index.countPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CsvPageIndexTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CsvTokenizerTest extends SimpleDbTestBase {
+
+    private TupleDesc td;
+    private CsvTokenizer tokenizer;
+
+    @Before public void createTokenizer() {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        tokenizer = new CsvTokenizer(td);
+    }
+
+    private void reset(String csv) {
+        tokenizer.reset(ByteBuffer.wrap(csv.getBytes()));
+    }
+
+    @Test public void fields() {
+        reset("1,one\r\n\n-2147483648, two \n\r\n 3 ,three");
+
+        assertTrue(tokenizer.nextRow());
+        assertEquals(1, tokenizer.getInt(0));
+        assertEquals("one", tokenizer.getString(1));
+
+        assertTrue(tokenizer.nextRow());
+        assertEquals(Integer.MIN_VALUE, tokenizer.getInt(0));
+        assertEquals(" two ", tokenizer.getString(1));
+
+        assertTrue(tokenizer.nextRow());
+        assertEquals(3, tokenizer.getInt(0));
+        assertEquals("three", tokenizer.getString(1));
+
+        assertFalse(tokenizer.nextRow());
+    }
+
+    /**
+     * Quoted fields can hold commas, newlines and escaped quotes.
+     */
+    @Test public void quoted() {
+        reset("1,\"a, \"\"b\"\"\nc\"\r\n\"2\",\"\"\n");
+
+        assertTrue(tokenizer.nextRow());
+        assertEquals(2, tokenizer.numFields());
+        assertEquals("a, \"b\"\nc", tokenizer.getString(1));
+
+        assertTrue(tokenizer.nextRow());
+        assertEquals(2, tokenizer.getInt(0));
+        assertEquals("", tokenizer.getString(1));
+
+        assertFalse(tokenizer.nextRow());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void badInt() {
+        reset("1x,a\n");
+        tokenizer.nextRow();
+        tokenizer.getInt(0);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void overflow() {
+        reset("2147483648,a\n");
+        tokenizer.nextRow();
+        tokenizer.getInt(0);
+    }
+
+    /**
+     * Only the requested columns are decoded.
+     */
+    @Test public void columns() {
+        reset("x,one\n");
+        BitSet columns = new BitSet();
+        columns.set(1);
+
+        assertTrue(tokenizer.nextRow());
+        Tuple t = tokenizer.readTuple(null, columns);
+        assertNull(t.getField(0));
+        assertEquals("one", ((StringField) t.getField(1)).getValue());
+    }
+
+    /**
+     * Rows that repeat a column's value share its field; tuples of earlier
+     * rows keep their values.
+     */
+    @Test public void sharesValues() {
+        reset("1,same\n1,same\n3,other\n");
+
+        tokenizer.nextRow();
+        Tuple first = tokenizer.readTuple();
+        tokenizer.nextRow();
+        Tuple second = tokenizer.readTuple();
+        assertNotSame(first, second);
+        assertSame(first.getField(0), second.getField(0));
+        assertSame(first.getField(1), second.getField(1));
+
+        tokenizer.nextRow();
+        Tuple third = tokenizer.readTuple();
+        assertEquals(new IntField(3), third.getField(0));
+        assertEquals(new StringField("other", Type.STRING_LEN), third.getField(1));
+        assertEquals(new IntField(1), second.getField(0));
+        assertEquals(new StringField("same", Type.STRING_LEN), second.getField(1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CsvTokenizerTest.class);
+    }
+}
@@ -0,0 +1,180 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CsvZoneMapTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 5;
+
+    /** Counts the pages read from the CSV. */
+    private static class CountingCsvFile extends CsvFile {
+        AtomicInteger reads = new AtomicInteger();
+
+        CountingCsvFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            reads.incrementAndGet();
+            return super.readPage(pid);
+        }
+
+        @Override
+        public List<Page> readPages(PageId first, int count) throws IOException {
+            List<Page> pages = super.readPages(first, count);
+            reads.addAndGet(pages.size());
+            return pages;
+        }
+    }
+
+    private File csv;
+    private TupleDesc td;
+    private TransactionId tid;
+
+    @Before public void createCsv() throws IOException {
+        csv = File.createTempFile("zones", ".csv");
+        csv.deleteOnExit();
+        new File(csv.getPath() + ".idx").deleteOnExit();
+        new File(csv.getPath() + ".cols").deleteOnExit();
+        new File(csv.getPath() + ".zones").deleteOnExit();
+
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        PrintWriter pw = new PrintWriter(csv);
+        // one more row than PAGES full pages, so that every page of interest is complete
+        for (int i = 0; i <= PAGES * perPage(); i++) {
+            pw.print(i + ",name" + (char) ('a' + i / perPage()) + "\n");
+        }
+        pw.close();
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int perPage() {
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+    }
+
+    private CountingCsvFile open() {
+        CountingCsvFile cf = new CountingCsvFile(csv, td);
+        Database.getCatalog().addTable(cf, "zones");
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        return cf;
+    }
+
+    private int scan(CsvFile cf, Predicate p) throws Exception {
+        List<Predicate> filters = new ArrayList<Predicate>();
+        filters.add(p);
+        DbFileIterator it = cf.iterator(tid, null, filters);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * The first filtered scan summarizes the pages it reads; after that only
+     * the pages that can match, and the last page, are read, even by a
+     * CsvFile that loads the summaries from disk.
+     */
+    @Test public void skipsPages() throws Exception {
+        CountingCsvFile cf = open();
+        Predicate p = new Predicate(0, Predicate.Op.EQUALS, new IntField(2 * perPage() + 3));
+        assertEquals(1, scan(cf, p));
+
+        cf = open();
+        assertEquals(1, scan(cf, p));
+        assertEquals(2, cf.reads.get());
+
+        cf = open();
+        Predicate name = new Predicate(1, Predicate.Op.EQUALS, new StringField("named", Type.STRING_LEN));
+        assertEquals(perPage(), scan(cf, name));
+        assertEquals(2, cf.reads.get());
+    }
+
+    /**
+     * Pages are only summarized by scans with filters; reading a page for a
+     * plain scan leaves the zone map alone.
+     */
+    @Test public void summarizedOnlyForFilters() throws Exception {
+        CountingCsvFile cf = open();
+        DbFileIterator it = cf.iterator(tid);
+        it.open();
+        while (it.hasNext()) it.next();
+        it.close();
+        assertEquals(0, new CsvZoneMap(csv, td).numPages());
+
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(-1));
+        assertEquals(PAGES * perPage() + 1, scan(cf, p));
+        assertEquals(PAGES, new CsvZoneMap(csv, td).numPages());
+    }
+
+    /**
+     * A summary isn't used once the bytes of its page change.
+     */
+    @Test public void rewrittenPage() throws Exception {
+        CsvPageIndex index = new CsvPageIndex(csv, perPage());
+        index.reset();
+        CsvZoneMap zones = new CsvZoneMap(csv, td);
+        for (int page = 0; page < PAGES; page++) {
+            long start = index.getPageStart(page);
+            byte[] data = new byte[(int) (index.getPageEnd(page) - start)];
+            RandomAccessFile raf = new RandomAccessFile(csv, "r");
+            raf.seek(start);
+            raf.readFully(data);
+            raf.close();
+            zones.addPage(page, ByteBuffer.wrap(data));
+        }
+        zones.save();
+
+        Predicate p = new Predicate(1, Predicate.Op.EQUALS, new StringField("namez", Type.STRING_LEN));
+        List<Predicate> filters = new ArrayList<Predicate>();
+        filters.add(p);
+        assertTrue(zones.canSkip(0, filters, index));
+
+        // the first row becomes 0,namez
+        RandomAccessFile raf = new RandomAccessFile(csv, "rw");
+        raf.seek("0,name".length());
+        raf.writeBytes("z");
+        raf.close();
+        index.reset();
+
+        zones = new CsvZoneMap(csv, td);
+        assertEquals(PAGES, zones.numPages());
+        assertFalse(zones.canSkip(0, filters, index));
+        assertTrue(zones.canSkip(1, filters, index));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CsvZoneMapTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FileWatcherTest extends SimpleDbTestBase {
+
+    private File csv;
+
+    @Before public void createCsv() throws IOException {
+        csv = File.createTempFile("watched", ".csv");
+        csv.deleteOnExit();
+        new File(csv.getPath() + ".idx").deleteOnExit();
+        new File(csv.getPath() + ".cols").deleteOnExit();
+        append("1,1\n");
+    }
+
+    private void append(String s) throws IOException {
+        FileWriter fw = new FileWriter(csv, true);
+        fw.write(s);
+        fw.close();
+    }
+
+    /** Waits for the background thread to see a change, up to a few poll intervals. */
+    private void awaitVersion(FileWatcher.WatchedFile watched, long version) throws Exception {
+        long deadline = System.currentTimeMillis() + 5 * FileWatcher.POLL_MILLIS;
+        while (watched.getVersion() < version && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * The version goes up once per change, whether the change is noticed by
+     * the watcher thread or by an explicit check.
+     */
+    @Test public void versions() throws Exception {
+        FileWatcher.WatchedFile watched = FileWatcher.getInstance().watch(csv);
+        assertSame(watched, FileWatcher.getInstance().watch(new File(csv.getPath())));
+        long version = watched.check();
+
+        append("2,2\n");
+        awaitVersion(watched, version + 1);
+        assertEquals(version + 1, watched.getVersion());
+        assertEquals(version + 1, watched.check());
+
+        append("3,3\n");
+        assertEquals(version + 2, watched.check());
+        // a late notification for the same change doesn't count it twice
+        Thread.sleep(100);
+        assertEquals(version + 2, watched.getVersion());
+    }
+
+    /**
+     * A file is watched until every watch() is matched by an unwatch(), and
+     * watching it again afterwards starts over.
+     */
+    @Test public void unwatch() throws Exception {
+        FileWatcher watcher = FileWatcher.getInstance();
+        FileWatcher.WatchedFile watched = watcher.watch(csv);
+        assertSame(watched, watcher.watch(csv));
+
+        watcher.unwatch(csv);
+        assertTrue(watcher.isWatched(csv));
+        watcher.unwatch(csv);
+        assertFalse(watcher.isWatched(csv));
+
+        FileWatcher.WatchedFile again = watcher.watch(csv);
+        assertNotSame(watched, again);
+        watcher.unwatch(csv);
+        assertFalse(watcher.isWatched(csv));
+    }
+
+    /**
+     * A CsvFile notices a change to its CSV without a scan having to stat it.
+     */
+    @Test public void csvFile() throws Exception {
+        CsvFile cf = new CsvFile(csv, Utility.getTupleDesc(2));
+        assertFalse(cf.isModified());
+
+        FileWatcher.WatchedFile watched = FileWatcher.getInstance().watch(csv);
+        long version = watched.getVersion();
+        append("2,2\n");
+        awaitVersion(watched, version + 1);
+        assertTrue(cf.isModified());
+
+        cf.iterator(new TransactionId());
+        assertFalse(cf.isModified());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileWatcherTest.class);
+    }
+}
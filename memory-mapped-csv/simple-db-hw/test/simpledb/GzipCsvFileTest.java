@@ -0,0 +1,189 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GzipCsvFileTest extends SimpleDbTestBase {
+
+    // enough rows for several blocks
+    private static final int ROWS = 20000;
+
+    private TupleDesc td;
+    private File csv;
+    private TransactionId tid;
+
+    /**
+     * Writes a CSV whose string fields are quoted and hold a comma and a
+     * newline, so that some blocks start inside a quoted field.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        csv = tempFile(".csv");
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < ROWS; i++) {
+            rows.append(i).append(",\"row ").append(i).append(",\nend\"\n");
+        }
+        write(csv, rows.toString().getBytes(StandardCharsets.ISO_8859_1));
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("gzip", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    private void write(File f, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+    }
+
+    private GzipCsvFile open(File f) {
+        GzipCsvFile table = new GzipCsvFile(f, td);
+        Database.getCatalog().addTable(table, "gzip");
+        return table;
+    }
+
+    /** @return the first fields of the tuples an iterator returns, in order */
+    private List<Integer> keys(DbFileIterator it) throws Exception {
+        List<Integer> keys = new ArrayList<Integer>();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            if (t.getField(1) != null) {
+                assertEquals("row " + key + ",\nend", ((StringField) t.getField(1)).getValue());
+            }
+            keys.add(key);
+        }
+        it.close();
+        return keys;
+    }
+
+    private List<Integer> range(int from, int to) {
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) keys.add(i);
+        return keys;
+    }
+
+    /**
+     * A plain gzip file is streamed, with projections and filters.
+     */
+    @Test public void plainGzip() throws Exception {
+        File gz = tempFile(".csv.gz");
+        GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(gz));
+        out.write(Files.readAllBytes(csv.toPath()));
+        out.close();
+
+        GzipCsvFile table = open(gz);
+        assertFalse(table.isBlockCompressed());
+        assertEquals(range(0, ROWS), keys(table.iterator(tid)));
+
+        BitSet columns = new BitSet();
+        columns.set(0);
+        List<Predicate> filters = new ArrayList<Predicate>();
+        filters.add(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ROWS - 10)));
+        assertEquals(range(ROWS - 10, ROWS), keys(table.iterator(tid, columns, filters)));
+    }
+
+    /**
+     * A BGZF file is read page by page, each page holding the rows that start
+     * in one block, whether or not the block starts inside a quoted field.
+     */
+    @Test public void blockCompressed() throws Exception {
+        File bgzf = tempFile(".csv.gz");
+        GzipCsvFile.compress(csv, bgzf);
+        GzipCsvFile table = open(bgzf);
+        assertTrue(table.isBlockCompressed());
+        assertTrue(table.numPages() > 3);
+        assertEquals(range(0, ROWS), keys(table.iterator(tid)));
+
+        // pages can be read in any order
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int p = table.numPages() - 1; p >= 0; p--) {
+            List<Integer> page = new ArrayList<Integer>();
+            Iterator<Tuple> it = ((CsvPage) table.readPage(new CsvPageId(table.getId(), p))).iterator();
+            while (it.hasNext()) page.add(((IntField) it.next().getField(0)).getValue());
+            keys.addAll(0, page);
+        }
+        assertEquals(range(0, ROWS), keys);
+
+        List<Predicate> filters = new ArrayList<Predicate>();
+        filters.add(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(5)));
+        assertEquals(range(0, 5), keys(table.iterator(tid, null, filters)));
+    }
+
+    /**
+     * A block boundary may fall anywhere, including inside a quoted field,
+     * when blocks aren't cut at row ends the way compress cuts them.
+     */
+    @Test public void blocksSplitRows() throws Exception {
+        File bgzf = tempFile(".csv.gz");
+        byte[] data = Files.readAllBytes(csv.toPath());
+        FileOutputStream out = new FileOutputStream(bgzf);
+        File piece = tempFile(".csv");
+        File compressed = tempFile(".csv.gz");
+        for (int start = 0; start < data.length; start += 1000) {
+            write(piece, Arrays.copyOfRange(data, start, Math.min(start + 1000, data.length)));
+            GzipCsvFile.compress(piece, compressed);
+            // each piece ends with an empty block, which is fine in the middle of a file
+            out.write(Files.readAllBytes(compressed.toPath()));
+        }
+        out.close();
+
+        GzipCsvFile table = open(bgzf);
+        assertTrue(table.isBlockCompressed());
+        assertEquals(range(0, ROWS), keys(table.iterator(tid)));
+    }
+
+    /**
+     * Parallel scans of a BGZF file return the same rows, in file order when
+     * ordered.
+     */
+    @Test public void parallelScan() throws Exception {
+        File bgzf = tempFile(".csv.gz");
+        GzipCsvFile.compress(csv, bgzf);
+        GzipCsvFile table = open(bgzf);
+        assertEquals(range(0, ROWS), keys(table.parallelIterator(tid, true)));
+
+        List<Integer> unordered = keys(table.parallelIterator(tid, false));
+        Collections.sort(unordered);
+        assertEquals(range(0, ROWS), unordered);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GzipCsvFileTest.class);
+    }
+}
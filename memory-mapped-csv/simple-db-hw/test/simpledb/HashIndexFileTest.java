@@ -0,0 +1,187 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashIndexFileTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 2000;
+    private static final int MAX_VALUE = 500;
+
+    private List<Integer> keys;
+    private HeapFile table;
+    private HashIndexFile index;
+    private TransactionId tid;
+
+    /**
+     * Creates an empty table with a hash index on its first field, and
+     * inserts rows into it through the BufferPool.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // small pages, so that buckets split and overflow
+        BufferPool.setPageSize(256);
+        Database.resetBufferPool(1000);
+        table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        index = new HashIndexFile(tempIndexFile(), table, 0);
+        Database.getCatalog().addIndex(index);
+
+        keys = new ArrayList<Integer>();
+        Random r = new Random(1);
+        tid = new TransactionId();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = new Tuple(table.getTupleDesc());
+            keys.add(r.nextInt(MAX_VALUE));
+            t.setField(0, new IntField(keys.get(i)));
+            t.setField(1, new IntField(i));
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        BufferPool.resetPageSize();
+    }
+
+    private File tempIndexFile() throws IOException {
+        File f = File.createTempFile("index", ".hash");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private int count(List<Integer> keys, int key) {
+        int count = 0;
+        for (int k : keys) {
+            if (k == key) count++;
+        }
+        return count;
+    }
+
+    /** @return the tuples with the given key, checking that they all have it */
+    private List<Tuple> lookup(int key) throws Exception {
+        List<Tuple> found = new ArrayList<Tuple>();
+        DbFileIterator it = index.indexIterator(tid, Predicate.Op.EQUALS, new IntField(key));
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new IntField(key), t.getField(0));
+            found.add(t);
+        }
+        it.close();
+        return found;
+    }
+
+    /**
+     * Every key can be looked up after the inserts split buckets, and the
+     * index holds an entry for every row.
+     */
+    @Test public void lookups() throws Exception {
+        assertTrue(index.numPages() > ROWS / 20);
+        for (int key = -1; key <= MAX_VALUE; key++) {
+            assertEquals(count(keys, key), lookup(key).size());
+        }
+
+        DbFileIterator it = index.iterator(tid);
+        it.open();
+        int rows = 0;
+        while (it.hasNext()) {
+            it.next();
+            rows++;
+        }
+        it.close();
+        assertEquals(ROWS, rows);
+    }
+
+    /**
+     * Deleting tuples through the BufferPool removes them from the index,
+     * and the index is still intact when it is opened again.
+     */
+    @Test public void deletes() throws Exception {
+        int key = keys.get(0);
+        for (Tuple t : lookup(key)) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        assertEquals(0, lookup(key).size());
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        index = new HashIndexFile(index.getFile(), table, 0);
+        Database.getCatalog().addIndex(index);
+        assertEquals(0, lookup(key).size());
+        assertEquals(count(keys, keys.get(1)), lookup(keys.get(1)).size());
+    }
+
+    /**
+     * An IndexJoin probes the index for each outer tuple, for equality
+     * through the hash index and for ranges through a B+ tree.
+     */
+    @Test public void indexJoin() throws Exception {
+        int[] outer = { 3, 0, 3, 250, 499, 777, -2 };
+        int[] data = new int[outer.length * 2];
+        for (int i = 0; i < outer.length; i++) {
+            data[2 * i] = outer[i];
+        }
+
+        JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        IndexJoin join = new IndexJoin(eq, TestUtil.createTupleList(2, data),
+                new IndexScan(tid, index, null, "t"));
+        int expected = 0;
+        for (int o : outer) expected += count(keys, o);
+        assertEquals(expected, drain(join));
+
+        BTreeFile tree = BTreeFile.create(tempIndexFile(), table, 0, tid);
+        Database.getCatalog().addIndex(tree);
+        JoinPredicate lt = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        join = new IndexJoin(lt, TestUtil.createTupleList(2, data), new IndexScan(tid, tree, null, "t"));
+        expected = 0;
+        for (int o : outer) {
+            for (int k : keys) {
+                if (o < k) expected++;
+            }
+        }
+        assertEquals(expected, drain(join));
+    }
+
+    /** @return the number of tuples the join returns, checking that a rewind returns them again */
+    private int drain(DbIterator it) throws Exception {
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            assertEquals(4, it.next().getTupleDesc().numFields());
+            count++;
+        }
+        it.rewind();
+        int again = 0;
+        while (it.hasNext()) {
+            it.next();
+            again++;
+        }
+        it.close();
+        assertEquals(count, again);
+        return count;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashIndexFileTest.class);
+    }
+}
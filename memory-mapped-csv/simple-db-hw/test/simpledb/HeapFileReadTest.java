@@ -3,6 +3,8 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -21,6 +23,7 @@ public class HeapFileReadTest extends SimpleDbTestBase {
      */
     @Before
     public void setUp() throws Exception {
+        super.setUp();
         hf = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
         td = Utility.getTupleDesc(2);
         tid = new TransactionId();
@@ -77,6 +80,98 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() reading from a mapping, including a
+     * page written after the file was mapped
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        hf.useMappedReads(true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(1));
+        assertFalse(page.isSlotUsed(20));
+
+        HeapPageId next = new HeapPageId(hf.getId(), 1);
+        HeapPage written = new HeapPage(next, HeapPage.createEmptyPageData());
+        written.insertTuple(Utility.getHeapTuple(7, 2));
+        hf.writePage(written);
+        assertEquals(2, hf.numPages());
+        assertEquals(503, ((HeapPage) hf.readPage(next)).getNumEmptySlots());
+    }
+
+    /**
+     * A missing .dat file isn't created by reading it; reads fail instead.
+     */
+    @Test
+    public void missingFile() throws Exception {
+        File missing = new File(System.getProperty("java.io.tmpdir"), "missing" + System.nanoTime() + ".dat");
+        HeapFile file = new HeapFile(missing, td);
+        try {
+            file.readPage(new HeapPageId(file.getId(), 0));
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            file.iterator(tid).open();
+            fail("expected exception");
+        } catch (DbException e) {
+        }
+        assertFalse(missing.exists());
+    }
+
+    /**
+     * A file that can't be written is opened read-only, so it can be scanned,
+     * and writing a page to it fails with an IOException.
+     */
+    @Test
+    public void readOnlyFile() throws Exception {
+        File f = hf.getFile();
+        assertTrue(f.setWritable(false));
+        try {
+            // root can write the file regardless
+            if (f.canWrite()) return;
+            HeapFile readOnly = new HeapFile(f, td);
+            HeapPageId pid = new HeapPageId(readOnly.getId(), 0);
+            HeapPage page = (HeapPage) readOnly.readPage(pid);
+            assertEquals(484, page.getNumEmptySlots());
+            try {
+                readOnly.writePage(page);
+                fail("expected exception");
+            } catch (IOException e) {
+            }
+            readOnly.close();
+        } finally {
+            f.setWritable(true);
+        }
+    }
+
+    /**
+     * Closing the file closes its channel; a scan started afterwards opens it
+     * again, and closes it when it is done.
+     */
+    @Test
+    public void close() throws Exception {
+        hf.useMappedReads(true);
+        assertNotNull(hf.readPage(new HeapPageId(hf.getId(), 0)));
+        // a read past the end gets an empty page out of the existing mapping
+        HeapPage past = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 3));
+        assertEquals(504, past.getNumEmptySlots());
+        hf.close();
+        hf.close();
+
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(20, count);
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -0,0 +1,164 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HeapFileReloadTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 2000;
+
+    private File csv;
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void createHeapFile() throws IOException {
+        csv = File.createTempFile("reload", ".csv");
+        csv.deleteOnExit();
+        new File(csv.getPath() + ".idx").deleteOnExit();
+        write(0, false);
+
+        hf = new HeapFile(csv, Utility.getTupleDesc(2));
+        hf.getFile().deleteOnExit();
+        Database.getCatalog().addTable(hf, "reload");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Writes ROWS rows whose second column is value. */
+    private void write(int value, boolean append) throws IOException {
+        PrintWriter pw = new PrintWriter(new FileWriter(csv, append));
+        for (int i = 0; i < ROWS; i++) {
+            pw.println(i + "," + value);
+        }
+        pw.close();
+        // make sure the modification time moves on even on coarse file systems
+        csv.setLastModified(csv.lastModified() + 1000 * (value + 1));
+    }
+
+    private int sumOfSecondColumn(DbFileIterator it) throws Exception {
+        int sum = 0;
+        while (it.hasNext()) {
+            sum += ((IntField) it.next().getField(1)).getValue();
+        }
+        return sum;
+    }
+
+    private int count(DbFileIterator it) throws Exception {
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * A scan that is already open keeps reading the old snapshot after a
+     * rewrite of the CSV is swapped in; scans opened afterwards see the new one.
+     */
+    @Test public void snapshotSwap() throws Exception {
+        DbFileIterator before = hf.iterator(tid);
+        before.open();
+        before.next();
+
+        write(1, false);
+        hf.iterator(tid);
+        hf.awaitReload();
+        assertFalse(hf.isModified());
+
+        assertEquals(0, sumOfSecondColumn(before));
+        before.close();
+
+        DbFileIterator after = hf.iterator(tid);
+        after.open();
+        assertEquals(ROWS, sumOfSecondColumn(after));
+        after.close();
+        hf.getFile().deleteOnExit();
+    }
+
+    /**
+     * Appending to the CSV adds rows to the table without touching the rows
+     * that were already there.
+     */
+    @Test public void append() throws Exception {
+        assertEquals(ROWS, count(hf.iterator(tid)));
+        File dat = hf.getFile();
+
+        write(1, true);
+        hf.iterator(tid);
+        hf.awaitReload();
+        hf.getFile().deleteOnExit();
+
+        assertEquals(2 * ROWS, count(hf.iterator(tid)));
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        assertEquals(ROWS, sumOfSecondColumn(it));
+        it.close();
+        // no scan was reading the .dat file, so the new rows went onto its end
+        assertEquals(dat, hf.getFile());
+    }
+
+    /**
+     * Rows appended while a scan is reading the table go into a new snapshot,
+     * and the scan doesn't see them.
+     */
+    @Test public void appendWhileScanning() throws Exception {
+        File dat = hf.getFile();
+        DbFileIterator before = hf.iterator(tid);
+        before.open();
+
+        write(1, true);
+        hf.iterator(tid);
+        hf.awaitReload();
+        hf.getFile().deleteOnExit();
+        assertFalse(dat.equals(hf.getFile()));
+
+        int count = 0;
+        while (before.hasNext()) {
+            before.next();
+            count++;
+        }
+        before.close();
+        assertEquals(ROWS, count);
+        assertEquals(2 * ROWS, count(hf.iterator(tid)));
+    }
+
+    /**
+     * Snapshots left behind by an earlier run are deleted when the table is
+     * opened again, rather than being overwritten by the next reload.
+     */
+    @Test public void staleSnapshots() throws Exception {
+        File stale = new File(hf.getFile().getAbsoluteFile().getParentFile(),
+                csv.getName().replaceAll(".csv", ".1.dat"));
+        stale.deleteOnExit();
+        stale.createNewFile();
+
+        new HeapFile(csv, Utility.getTupleDesc(2)).close();
+        assertFalse(stale.exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileReloadTest.class);
+    }
+}
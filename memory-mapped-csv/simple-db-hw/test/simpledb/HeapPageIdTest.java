@@ -76,6 +76,17 @@ public class HeapPageIdTest extends SimpleDbTestBase {
         assertFalse(pid2.equals(pid1Copy));
     }
 
+    /**
+     * Unit test for HeapPageId.withPageNumber()
+     */
+    @Test public void withPageNumber() {
+        PageId next = pid.withPageNumber(2);
+        assertTrue(next instanceof HeapPageId);
+        assertEquals(1, next.getTableId());
+        assertEquals(2, next.getPageNumber());
+        assertEquals(new HeapPageId(1, 2), next);
+    }
+
     /**
      * JUnit suite target
      */
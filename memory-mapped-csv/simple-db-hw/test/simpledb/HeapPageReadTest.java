@@ -6,6 +6,7 @@ import simpledb.systemtest.SystemTestUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import org.junit.Before;
@@ -120,6 +121,19 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for a HeapPage built from a slice of a larger buffer
+     */
+    @Test public void fromBuffer() throws Exception {
+        byte[] padded = new byte[EXAMPLE_DATA.length + 16];
+        System.arraycopy(EXAMPLE_DATA, 0, padded, 8, EXAMPLE_DATA.length);
+        ByteBuffer slice = ByteBuffer.wrap(padded, 8, EXAMPLE_DATA.length);
+        HeapPage page = new HeapPage(pid, slice, Database.getCatalog().getTupleDesc(pid.getTableId()));
+
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,314 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class MappedFileTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 1000;
+
+    private File csv;
+    private MappedFile mf;
+    private TupleDesc td;
+    private TransactionId tid;
+
+    @Before public void createMappedFile() throws IOException {
+        csv = File.createTempFile("mapped", ".csv");
+        csv.deleteOnExit();
+        new File(csv.getPath() + ".idx").deleteOnExit();
+        new File(csv.getPath() + ".zones").deleteOnExit();
+
+        PrintWriter pw = new PrintWriter(csv);
+        for (int i = 0; i < ROWS; i++) {
+            pw.print(i + ",name" + i + "," + (-i) + "\r\n");
+        }
+        pw.close();
+
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+        mf = new MappedFile(csv, td);
+        Database.getCatalog().addTable(mf, "mapped");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Pages are cut on row boundaries and together hold every row.
+     */
+    @Test public void readPage() throws Exception {
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        assertEquals((ROWS - 1) / perPage + 1, mf.numPages());
+
+        MappedPage page = (MappedPage) mf.readPage(new MappedPageId(mf.getId(), 1));
+        assertEquals(perPage, page.numTuples());
+
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        assertEquals(new IntField(perPage), first.getField(0));
+        assertEquals(new StringField("name" + perPage, Type.STRING_LEN), first.getField(1));
+        assertEquals(new IntField(-perPage), first.getField(2));
+        assertEquals(1, first.getRecordId().getPageId().getPageNumber());
+    }
+
+    @Test public void iterator() throws Exception {
+        DbFileIterator it = mf.iterator(tid);
+        assertFalse(it.hasNext());
+
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(count), it.next().getField(0));
+            count++;
+        }
+        assertEquals(ROWS, count);
+        it.close();
+    }
+
+    private Tuple inserted(int id) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField("inserted", Type.STRING_LEN));
+        t.setField(2, new IntField(7));
+        return t;
+    }
+
+    private Tuple lastTuple(List<Integer> count) throws Exception {
+        DbFileIterator it = mf.iterator(tid);
+        it.open();
+        Tuple last = null;
+        int n = 0;
+        while (it.hasNext()) {
+            last = it.next();
+            n++;
+        }
+        it.close();
+        count.add(n);
+        return last;
+    }
+
+    /**
+     * Inserted rows are visible to their transaction at once but only reach
+     * the CSV when it commits.
+     */
+    @Test public void insertTuple() throws Exception {
+        long length = csv.length();
+        Database.getBufferPool().insertTuple(tid, mf.getId(), inserted(ROWS));
+        Database.getBufferPool().insertTuple(tid, mf.getId(), inserted(ROWS + 1));
+        assertEquals(length, csv.length());
+
+        List<Integer> count = new ArrayList<>();
+        assertEquals(new IntField(ROWS + 1), lastTuple(count).getField(0));
+        assertEquals(ROWS + 2, (int) count.get(0));
+
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(csv.length() > length);
+
+        tid = new TransactionId();
+        count.clear();
+        Tuple last = lastTuple(count);
+        assertEquals(ROWS + 2, (int) count.get(0));
+        assertTrue(last.getField(1).equals(new StringField("inserted", Type.STRING_LEN)));
+    }
+
+    /**
+     * Rows inserted by a transaction that aborts never reach the CSV.
+     */
+    @Test public void insertAbort() throws Exception {
+        long length = csv.length();
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        for (int i = 0; i < perPage; i++) {
+            Database.getBufferPool().insertTuple(tid, mf.getId(), inserted(ROWS + i));
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(length, csv.length());
+
+        tid = new TransactionId();
+        List<Integer> count = new ArrayList<>();
+        assertEquals(new IntField(ROWS - 1), lastTuple(count).getField(0));
+        assertEquals(ROWS, (int) count.get(0));
+        assertEquals((ROWS - 1) / perPage + 1, mf.numPages());
+    }
+
+    /**
+     * A page read through the BufferPool after the CSV is rewritten comes from
+     * a new mapping, without a scan starting in between.
+     */
+    @Test public void remapsAfterRewrite() throws Exception {
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        MappedPageId second = new MappedPageId(mf.getId(), 1);
+        MappedPage page = (MappedPage) Database.getBufferPool().getPage(tid, mf, second, Permissions.READ_ONLY);
+        assertEquals(new IntField(perPage), page.iterator().next().getField(0));
+
+        // longer rows, so every page but the first starts somewhere else
+        PrintWriter pw = new PrintWriter(csv);
+        for (int i = 0; i < ROWS; i++) {
+            pw.print(i + ",renamed" + i + "," + (-i) + "\r\n");
+        }
+        pw.close();
+        FileWatcher.getInstance().watch(csv).check();
+        FileWatcher.getInstance().unwatch(csv);
+
+        page = (MappedPage) Database.getBufferPool().getPage(tid, mf, second, Permissions.READ_ONLY);
+        Tuple first = page.iterator().next();
+        assertEquals(new IntField(perPage), first.getField(0));
+        assertEquals(new StringField("renamed" + perPage, Type.STRING_LEN), first.getField(1));
+    }
+
+    /**
+     * Rewriting one row of the CSV drops only the page that holds it.
+     */
+    @Test public void keepsUnchangedPagesAfterRewrite() throws Exception {
+        MappedPageId firstId = new MappedPageId(mf.getId(), 0);
+        MappedPageId lastId = new MappedPageId(mf.getId(), mf.numPages() - 1);
+        Page first = Database.getBufferPool().getPage(tid, mf, firstId, Permissions.READ_ONLY);
+        Page last = Database.getBufferPool().getPage(tid, mf, lastId, Permissions.READ_ONLY);
+
+        PrintWriter pw = new PrintWriter(csv);
+        for (int i = 0; i < ROWS; i++) {
+            pw.print(i + (i == ROWS - 1 ? ",NAME" : ",name") + i + "," + (-i) + "\r\n");
+        }
+        pw.close();
+        FileWatcher.getInstance().watch(csv).check();
+        FileWatcher.getInstance().unwatch(csv);
+
+        // reading the last page again catches up with the rewrite
+        Page reread = Database.getBufferPool().getPage(tid, mf, lastId, Permissions.READ_ONLY);
+        assertTrue(reread != last);
+        Iterator<Tuple> it = ((MappedPage) reread).iterator();
+        Tuple t = null;
+        while (it.hasNext()) t = it.next();
+        assertEquals(new StringField("NAME" + (ROWS - 1), Type.STRING_LEN), t.getField(1));
+        assertTrue(Database.getBufferPool().getPage(tid, mf, firstId, Permissions.READ_ONLY) == first);
+    }
+
+    /**
+     * With segments far smaller than the CSV, pages whose rows straddle a
+     * segment boundary still read correctly, and few segments stay mapped.
+     */
+    @Test public void segments() throws Exception {
+        SegmentedMapping mapping = new SegmentedMapping(csv, 1000, 2);
+        assertEquals(csv.length(), mapping.length());
+        // crosses two segment boundaries
+        ByteBuffer crossing = mapping.read(990, 2010);
+        byte[] bytes = new byte[1020];
+        crossing.get(bytes);
+        RandomAccessFile raf = new RandomAccessFile(csv, "r");
+        byte[] expected = new byte[1020];
+        raf.seek(990);
+        raf.readFully(expected);
+        raf.close();
+        assertTrue(Arrays.equals(expected, bytes));
+
+        for (long start = 0; start + 10 <= csv.length(); start += 1000) {
+            mapping.read(start, start + 10);
+        }
+        assertEquals(2, mapping.numMappedSegments());
+
+        MappedFile segmented = new MappedFile(csv, td, 1000, 2);
+        Database.getCatalog().addTable(segmented, "segmented");
+        DbFileIterator it = segmented.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new IntField(count), t.getField(0));
+            assertEquals(new StringField("name" + count, Type.STRING_LEN), t.getField(1));
+            count++;
+        }
+        it.close();
+        assertEquals(ROWS, count);
+    }
+
+    /**
+     * Pages are copied out of the segments, so none of them keeps a segment
+     * alive: only the segments the mapping holds stay mapped, and pages read
+     * from segments it has since dropped, or after it is closed, still read
+     * correctly.
+     */
+    @Test public void liveSegments() throws Exception {
+        MappedFile segmented = new MappedFile(csv, td, 1000, 2);
+        Database.getCatalog().addTable(segmented, "segmented");
+        List<MappedPage> pages = new ArrayList<MappedPage>();
+        for (int p = 0; p < segmented.numPages(); p++) {
+            pages.add((MappedPage) segmented.readPage(new MappedPageId(segmented.getId(), p)));
+        }
+        assertTrue(pages.size() > 2);
+        segmented.close();
+
+        int count = 0;
+        for (MappedPage page : pages) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                assertEquals(new IntField(count++), it.next().getField(0));
+            }
+        }
+        assertEquals(ROWS, count);
+
+        SegmentedMapping mapping = new SegmentedMapping(csv, 1000, 2);
+        ByteBuffer data = mapping.read(0, 500);
+        assertFalse(data.isDirect());
+        for (long start = 0; start + 10 <= csv.length(); start += 1000) {
+            mapping.read(start, start + 10);
+            assertTrue(mapping.numMappedSegments() <= 2);
+        }
+        mapping.close();
+        assertEquals(0, mapping.numMappedSegments());
+        assertEquals('0', data.get(0));
+    }
+
+    /**
+     * Rows that fail a pushed down predicate are skipped, and the rest keep
+     * their record ids.
+     */
+    @Test public void filteredScan() throws Exception {
+        List<Predicate> filters = new ArrayList<Predicate>();
+        filters.add(new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(-500)));
+        filters.add(new Predicate(1, Predicate.Op.EQUALS, new StringField("name700", Type.STRING_LEN)));
+        assertTrue(mf.canFilter(filters.get(0)));
+        assertTrue(mf.canFilter(filters.get(1)));
+        assertFalse(mf.canFilter(new Predicate(1, Predicate.Op.LIKE, new StringField("name", Type.STRING_LEN))));
+
+        BitSet columns = new BitSet();
+        columns.set(0);
+        DbFileIterator it = mf.iterator(tid, columns, filters);
+        it.open();
+        assertTrue(it.hasNext());
+        Tuple t = it.next();
+        assertEquals(new IntField(700), t.getField(0));
+        assertNull(t.getField(1));
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        assertEquals(700 % perPage, t.getRecordId().getTupleNumber());
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedFileTest.class);
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ParallelCsvScanTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 500;
+
+    private File csv;
+    private TupleDesc td;
+    private ForkJoinPool pool;
+
+    /**
+     * Every fifth row has a quoted string with an embedded newline, comma and
+     * escaped quote, so that small chunks often start inside a quoted field.
+     */
+    @Before public void createCsv() throws IOException {
+        csv = File.createTempFile("parallel", ".csv");
+        csv.deleteOnExit();
+
+        PrintWriter pw = new PrintWriter(csv);
+        for (int i = 0; i < ROWS; i++) {
+            if (i % 5 == 0) {
+                pw.print(i + ",\"line one\nline, \"\"two\"\"\"," + (-i) + "\r\n");
+            } else {
+                pw.print(i + ",plain" + i + "," + (-i) + "\n");
+            }
+            if (i % 50 == 0) pw.print("\n");
+        }
+        pw.close();
+
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+        pool = new ForkJoinPool(4);
+    }
+
+    @After public void shutdownPool() {
+        pool.shutdown();
+    }
+
+    private List<Tuple> scan(int chunkSize, boolean ordered) throws Exception {
+        DbFileIterator it = new ParallelCsvScan(csv, td, pool, chunkSize).iterator(ordered);
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext()) tuples.add(it.next());
+        it.close();
+        return tuples;
+    }
+
+    private void checkRow(int i, Tuple t) {
+        assertEquals(new IntField(i), t.getField(0));
+        String expected = i % 5 == 0 ? "line one\nline, \"two\"" : "plain" + i;
+        assertEquals(expected, ((StringField) t.getField(1)).getValue());
+        assertEquals(new IntField(-i), t.getField(2));
+    }
+
+    /**
+     * An ordered scan returns every row in file order, whatever the chunk size.
+     */
+    @Test public void ordered() throws Exception {
+        for (int chunkSize : new int[] { 1, 7, 64, 1000, 1 << 20 }) {
+            List<Tuple> tuples = scan(chunkSize, true);
+            assertEquals(ROWS, tuples.size());
+            for (int i = 0; i < ROWS; i++) {
+                checkRow(i, tuples.get(i));
+            }
+        }
+    }
+
+    /**
+     * An unordered scan returns the same rows, possibly in a different order.
+     */
+    @Test public void unordered() throws Exception {
+        for (int chunkSize : new int[] { 3, 64, 1000 }) {
+            List<Tuple> tuples = scan(chunkSize, false);
+            assertEquals(ROWS, tuples.size());
+
+            List<Integer> keys = new ArrayList<Integer>();
+            for (Tuple t : tuples) {
+                int key = ((IntField) t.getField(0)).getValue();
+                checkRow(key, t);
+                keys.add(key);
+            }
+            Collections.sort(keys);
+            for (int i = 0; i < ROWS; i++) {
+                assertEquals(i, (int) keys.get(i));
+            }
+        }
+    }
+
+    @Test public void rewind() throws Exception {
+        DbFileIterator it = new ParallelCsvScan(csv, td, pool, 100).iterator(true);
+        it.open();
+        for (int i = 0; i < 10; i++) it.next();
+        it.rewind();
+        int count = 0;
+        while (it.hasNext()) checkRow(count++, it.next());
+        assertEquals(ROWS, count);
+        it.close();
+    }
+
+    /**
+     * A quote in the middle of an unquoted field is part of the field, and
+     * doesn't hide the newline after it, wherever the chunks start.
+     */
+    @Test public void quoteInsideField() throws Exception {
+        PrintWriter pw = new PrintWriter(csv);
+        for (int i = 0; i < 20; i++) {
+            if (i % 4 == 0) pw.print(i + ",5\" pipe," + (-i) + "\n");
+            else if (i % 4 == 1) pw.print(i + ",\"\"\"a\n\"," + (-i) + "\n");
+            else pw.print(i + ",plain" + i + "," + (-i) + "\n");
+        }
+        pw.close();
+
+        for (int chunkSize = 1; chunkSize <= csv.length(); chunkSize += 3) {
+            List<Tuple> tuples = scan(chunkSize, true);
+            assertEquals(20, tuples.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals(new IntField(i), tuples.get(i).getField(0));
+                String expected = i % 4 == 0 ? "5\" pipe" : i % 4 == 1 ? "\"a\n" : "plain" + i;
+                assertEquals(expected, ((StringField) tuples.get(i).getField(1)).getValue());
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelCsvScanTest.class);
+    }
+}
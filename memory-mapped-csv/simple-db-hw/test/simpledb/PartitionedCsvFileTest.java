@@ -0,0 +1,265 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PartitionedCsvFileTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 100;
+
+    private File dir;
+    private TupleDesc td;
+    private PartitionedCsvFile table;
+    private TransactionId tid;
+
+    /**
+     * Creates a directory with three partitions; partition h holds the rows
+     * 100h to 100h + 99.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDirectory("partitions").toFile();
+        dir.deleteOnExit();
+        new File(dir, ".partitions.zones").deleteOnExit();
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        for (int h = 0; h < 3; h++) {
+            writePartition(h);
+        }
+        // not a partition
+        writeFile(new File(dir, "notes.txt"), "not,a,partition\n");
+
+        table = new PartitionedCsvFile(dir, td);
+        Database.getCatalog().addTable(table, "hourly");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void writePartition(int h) throws IOException {
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < ROWS; i++) {
+            rows.append(h * ROWS + i).append(",hour").append(h).append('\n');
+        }
+        File f = new File(dir, String.format("hour%02d.csv", h));
+        writeFile(f, rows.toString());
+        for (String side : new String[] { ".idx", ".cols", ".zones" }) {
+            new File(f.getPath() + side).deleteOnExit();
+        }
+    }
+
+    private void writeFile(File f, String contents) throws IOException {
+        f.deleteOnExit();
+        PrintWriter pw = new PrintWriter(f);
+        pw.print(contents);
+        pw.close();
+    }
+
+    /** @return the first fields of the tuples an iterator returns, in order */
+    private List<Integer> keys(DbFileIterator it) throws Exception {
+        List<Integer> keys = new ArrayList<Integer>();
+        it.open();
+        while (it.hasNext()) {
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        return keys;
+    }
+
+    private List<Integer> range(int from, int to) {
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) keys.add(i);
+        return keys;
+    }
+
+    private List<Predicate> filter(Predicate.Op op, int operand) {
+        List<Predicate> filters = new ArrayList<Predicate>();
+        filters.add(new Predicate(0, op, new IntField(operand)));
+        return filters;
+    }
+
+    /**
+     * A scan returns the rows of every partition, in file name order, and
+     * ignores files that aren't partitions.
+     */
+    @Test public void scansPartitions() throws Exception {
+        assertEquals(range(0, 3 * ROWS), keys(table.iterator(tid)));
+        assertEquals(3, table.refresh().size());
+        // the partitions' index files don't become partitions either
+        assertEquals(range(0, 3 * ROWS), keys(table.iterator(tid)));
+        assertEquals(3, table.refresh().size());
+    }
+
+    /**
+     * A new file only adds a partition; the existing ones stay as they were.
+     */
+    @Test public void newPartition() throws Exception {
+        assertEquals(3 * ROWS, keys(table.iterator(tid)).size());
+        List<CsvFile> before = table.refresh();
+
+        writePartition(3);
+        assertEquals(range(0, 4 * ROWS), keys(table.iterator(tid)));
+        List<CsvFile> after = table.refresh();
+        assertEquals(4, after.size());
+        for (int h = 0; h < 3; h++) {
+            assertSame(before.get(h), after.get(h));
+        }
+        assertSame(after.get(3), Database.getCatalog().getDatabaseFile(after.get(3).getId()));
+    }
+
+    /**
+     * A filtered scan skips the partitions whose summaries rule out the
+     * filters, and summarizes a partition again once its CSV changes.
+     */
+    @Test public void prunesPartitions() throws Exception {
+        List<Predicate> filters = filter(Predicate.Op.GREATER_THAN_OR_EQ, 2 * ROWS + 50);
+        assertEquals(1, table.partitionsToScan(filters).size());
+        assertEquals(range(2 * ROWS + 50, 3 * ROWS), keys(table.iterator(tid, null, filters)));
+        assertEquals(3, table.partitionsToScan(filter(Predicate.Op.NOT_EQUALS, 7)).size());
+        assertEquals(0, table.partitionsToScan(filter(Predicate.Op.LESS_THAN, 0)).size());
+
+        // summaries are kept with the table, for the next one over the directory
+        PartitionedCsvFile reopened = new PartitionedCsvFile(dir, td);
+        assertEquals(1, reopened.partitionsToScan(filters).size());
+
+        File first = new File(dir, "hour00.csv");
+        writeFile(first, "999,late\n");
+        first.setLastModified(first.lastModified() + 2000);
+        assertEquals(2, table.partitionsToScan(filters).size());
+        List<Integer> expected = range(2 * ROWS + 50, 3 * ROWS);
+        expected.add(0, 999);
+        assertEquals(expected, keys(table.iterator(tid, null, filters)));
+    }
+
+    /**
+     * Parallel scans return the same rows, partition by partition when
+     * ordered.
+     */
+    @Test public void parallelScan() throws Exception {
+        assertEquals(range(0, 3 * ROWS), keys(table.parallelIterator(tid, true)));
+
+        List<Integer> unordered = keys(table.parallelIterator(tid, false));
+        Collections.sort(unordered);
+        assertEquals(range(0, 3 * ROWS), unordered);
+
+        List<Predicate> filters = filter(Predicate.Op.LESS_THAN, ROWS / 2);
+        assertEquals(range(0, ROWS / 2), keys(table.parallelIterator(tid, true, filters)));
+    }
+
+    /**
+     * Partitions are registered with the Catalog as the table's child files
+     * once the directory is listed, and dropped with the table.
+     */
+    @Test public void childFiles() throws Exception {
+        keys(table.iterator(tid));
+        List<CsvFile> partitions = table.refresh();
+        assertEquals(partitions, table.getChildFiles());
+        for (CsvFile partition : partitions) {
+            assertSame(partition, Database.getCatalog().getDatabaseFile(partition.getId()));
+        }
+
+        new File(dir, "hour01.csv").delete();
+        keys(table.iterator(tid));
+        try {
+            Database.getCatalog().getDatabaseFile(partitions.get(1).getId());
+            fail("removed partitions should be dropped from the catalog");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+
+        Database.getCatalog().removeTable(table.getId());
+        try {
+            Database.getCatalog().getDatabaseFile(partitions.get(0).getId());
+            fail("partitions should be dropped with their table");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The planner reads a partitioned table in parallel, with the filters it
+     * pushed down to the scan, and the scan locks the pages it reads.
+     */
+    @Test public void plannerUsesParallelScan() throws Exception {
+        PartitionedCsvFile named = new PartitionedCsvFile(dir,
+                new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, new String[] { "k", "h" }));
+        Database.getCatalog().addTable(named, "named");
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(named.getId(), "t");
+        lp.addFilter("t.k", Predicate.Op.GREATER_THAN_OR_EQ, String.valueOf(2 * ROWS + 50));
+        lp.addProjectField("t.k", null);
+        lp.addProjectField("t.h", null);
+        Project plan = (Project) lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+        SeqScan scan = (SeqScan) plan.getChildren()[0];
+        assertTrue(scan.isParallel());
+
+        List<Integer> keys = new ArrayList<Integer>();
+        plan.open();
+        while (plan.hasNext()) {
+            keys.add(((IntField) plan.next().getField(0)).getValue());
+        }
+        plan.close();
+        assertEquals(range(2 * ROWS + 50, 3 * ROWS), keys);
+        CsvFile last = named.refresh().get(2);
+        assertTrue(Database.getBufferPool().holdsLock(tid, new CsvPageId(last.getId(), 0)));
+    }
+
+    /**
+     * A parallel scan reads partitions larger than it maps at once a piece
+     * at a time, without splitting rows, even quoted ones with newlines.
+     */
+    @Test public void pieces() throws Exception {
+        StringBuilder rows = new StringBuilder();
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < ROWS; i++) {
+            rows.append(1000 + i).append(i % 3 == 0 ? ",\"two\nlines\"\n" : ",plain\n");
+            expected.add(1000 + i);
+        }
+        for (String side : new String[] { ".idx", ".cols", ".zones" }) {
+            new File(dir, "hour99.csv" + side).deleteOnExit();
+        }
+        writeFile(new File(dir, "hour99.csv"), rows.toString());
+
+        table.pieceSize = 64;
+        List<Integer> all = range(0, 3 * ROWS);
+        all.addAll(expected);
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        DbFileIterator it = table.parallelIterator(tid, true);
+        it.open();
+        while (it.hasNext()) tuples.add(it.next());
+        it.close();
+        List<Integer> keys = new ArrayList<Integer>();
+        for (Tuple t : tuples) keys.add(((IntField) t.getField(0)).getValue());
+        assertEquals(all, keys);
+        assertEquals(new StringField("two\nlines", Type.STRING_LEN), tuples.get(3 * ROWS).getField(1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PartitionedCsvFileTest.class);
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 20;
+
+    /** Records the name of the thread each page was read on. */
+    private static class RecordingHeapFile extends HeapFile {
+        List<String> readers = Collections.synchronizedList(new ArrayList<String>());
+
+        RecordingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+            for (int i = 0; i < PAGES; i++) readers.add(null);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readers.set(pid.getPageNumber(), Thread.currentThread().getName());
+            return super.readPage(pid);
+        }
+
+        @Override
+        public List<Page> readPages(PageId first, int count) throws IOException {
+            List<Page> pages = super.readPages(first, count);
+            for (Page page : pages) {
+                readers.set(page.getId().getPageNumber(), Thread.currentThread().getName());
+            }
+            return pages;
+        }
+    }
+
+    private RecordingHeapFile table;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * PAGES, 1000, null,
+                new ArrayList<ArrayList<Integer>>());
+        table = new RecordingHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void scan() throws Exception {
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(992 * PAGES, count);
+    }
+
+    /**
+     * Once a scan reads two pages in a row, the pages after them are read on
+     * the read ahead threads, and the scan uses those instead of reading again.
+     */
+    @Test public void sequentialScan() throws Exception {
+        scan();
+        assertEquals(Thread.currentThread().getName(), table.readers.get(0));
+        assertEquals(Thread.currentThread().getName(), table.readers.get(1));
+        for (int p = 2; p < PAGES; p++) {
+            assertEquals("read ahead", table.readers.get(p));
+        }
+    }
+
+    /**
+     * Pages that are already in the pool aren't read again.
+     */
+    @Test public void cachedPagesSkipped() throws Exception {
+        for (int p = 0; p < PAGES; p += 2) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(table.getId(), p), Permissions.READ_ONLY);
+        }
+        for (int p = 0; p < PAGES; p++) table.readers.set(p, null);
+
+        scan();
+        for (int p = 0; p < PAGES; p += 2) {
+            assertEquals(null, table.readers.get(p));
+        }
+        assertTrue(table.readers.get(1) != null);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -7,6 +7,7 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -71,7 +72,7 @@ public class ScanTest extends SimpleDbTestBase {
      * @throws TransactionAbortedException
      * @throws DbException */
     @Test public void testCache() throws IOException, DbException, TransactionAbortedException {
-        /** Counts the number of readPage operations. */
+        /** Counts the number of pages read, one at a time or in runs. */
         class InstrumentedHeapFile extends HeapFile {
             public InstrumentedHeapFile(File f, TupleDesc td) {
                 super(f, td);
@@ -83,6 +84,13 @@ public class ScanTest extends SimpleDbTestBase {
                 return super.readPage(pid);
             }
 
+            @Override
+            public List<Page> readPages(PageId first, int count) throws IOException {
+                List<Page> pages = super.readPages(first, count);
+                readCount += pages.size();
+                return pages;
+            }
+
             public int readCount = 0;
         }
 